@@ -0,0 +1,87 @@
+package com.blogspot.mydailyjava.guava.cache.overflow;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the throughput of many threads that read and write persisted values of a small set of keys, with and
+ * without locks of the operating system.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ContentionBenchmark {
+
+    private static final int KEY_COUNT = 64;
+
+    @Param({"1024"})
+    public int valueSize;
+
+    @Param({"file", "segment"})
+    public String store;
+
+    @Param({"striped", "file-lock"})
+    public String locking;
+
+    private FileSystemPersistingCache<Integer, byte[]> cache;
+    private byte[] value;
+
+    @State(Scope.Thread)
+    public static class KeySequence {
+
+        private final Random random = new Random();
+
+        private int next() {
+            return random.nextInt(KEY_COUNT);
+        }
+    }
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setUp() throws Exception {
+        FileSystemCacheBuilder<Object, Object> builder = FileSystemCacheBuilder.newBuilder().maximumSize(1L);
+        if (store.equals("segment")) {
+            builder.segmentedPersistence(64L * 1024L * 1024L);
+        }
+        if (locking.equals("file-lock")) {
+            builder.fileLocking();
+        }
+        cache = (FileSystemPersistingCache<Integer, byte[]>) builder.<Integer, byte[]>build();
+        value = new byte[valueSize];
+        new Random(0L).nextBytes(value);
+        for (int key = 0; key < KEY_COUNT; key++) {
+            cache.persistValue(key, value);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        cache.invalidateAll();
+        cache.close();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public byte[] read(KeySequence keySequence) throws Exception {
+        return cache.findPersisted(keySequence.next());
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(12)
+    public byte[] mixedRead(KeySequence keySequence) throws Exception {
+        return cache.findPersisted(keySequence.next());
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(4)
+    public void mixedWrite(KeySequence keySequence) throws Exception {
+        cache.persistValue(keySequence.next(), value);
+    }
+}
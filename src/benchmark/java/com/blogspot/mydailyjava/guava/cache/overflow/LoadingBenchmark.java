@@ -0,0 +1,74 @@
+package com.blogspot.mydailyjava.guava.cache.overflow;
+
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures lookups of a loading cache where values are either held in memory, persisted or loaded. A load copies a
+ * value of the configured size such that it is cheap compared to a typical backend and the measured time is
+ * dominated by the cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoadingBenchmark {
+
+    @Param({"128", "4096"})
+    public int valueSize;
+
+    @Param({"1024", "16384"})
+    public int keyCount;
+
+    @Param({"0.1", "0.5"})
+    public double heapRatio;
+
+    @Param({"file", "segment"})
+    public String store;
+
+    private LoadingCache<Integer, byte[]> cache;
+
+    @State(Scope.Thread)
+    public static class KeySequence {
+
+        private final Random random = new Random();
+    }
+
+    @Setup
+    public void setUp() {
+        FileSystemCacheBuilder<Object, Object> builder = FileSystemCacheBuilder.newBuilder()
+                .maximumSize(Math.max((long) (keyCount * heapRatio), 1L))
+                .maximumDiskEntries(keyCount / 2);
+        if (store.equals("segment")) {
+            builder.segmentedPersistence(64L * 1024L * 1024L);
+        }
+        final byte[] value = new byte[valueSize];
+        new Random(0L).nextBytes(value);
+        cache = builder.build(new CacheLoader<Integer, byte[]>() {
+            @Override
+            public byte[] load(Integer key) {
+                return Arrays.copyOf(value, value.length);
+            }
+        });
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        cache.invalidateAll();
+        ((Closeable) cache).close();
+    }
+
+    @Benchmark
+    public byte[] get(KeySequence keySequence) {
+        return cache.getUnchecked(keySequence.random.nextInt(keyCount));
+    }
+}
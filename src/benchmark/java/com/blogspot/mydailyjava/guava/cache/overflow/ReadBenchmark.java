@@ -0,0 +1,122 @@
+package com.blogspot.mydailyjava.guava.cache.overflow;
+
+import com.google.common.cache.Cache;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures lookups that hit the heap, that hit the overflow tiers and that miss. The share of entries that is held in
+ * memory is controlled by the heap ratio, the remaining entries are persisted. Disk hits are measured on a second
+ * cache with gated promotion such that reading a persisted entry does not move it into memory. The number of threads
+ * is set by the {@code -t} option of JMH.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReadBenchmark {
+
+    @Param({"128", "4096", "65536"})
+    public int valueSize;
+
+    @Param({"1024"})
+    public int keyCount;
+
+    @Param({"0.1", "0.5"})
+    public double heapRatio;
+
+    @Param({"file", "segment", "off-heap"})
+    public String store;
+
+    private Cache<Integer, byte[]> cache, persistedCache;
+    private int hotKey;
+
+    @State(Scope.Thread)
+    public static class KeySequence {
+
+        private final Random random = new Random();
+    }
+
+    @State(Scope.Thread)
+    public static class PersistedKey {
+
+        private final Random random = new Random();
+        private int key;
+
+        /**
+         * Picks a key that is not held in memory. A key that was read frequently enough to be promoted is skipped.
+         */
+        @Setup(Level.Invocation)
+        public void next(ReadBenchmark benchmark) {
+            Map<Integer, byte[]> heap = ((AbstractPersistingCache<Integer, byte[]>) benchmark.persistedCache).getUnderlyingCache().asMap();
+            do {
+                key = random.nextInt(benchmark.keyCount);
+            } while (heap.containsKey(key));
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        cache = fill(newBuilder());
+        persistedCache = fill(newBuilder().gatedPromotion(15));
+        hotKey = keyCount - 1;
+    }
+
+    private FileSystemCacheBuilder<Object, Object> newBuilder() {
+        FileSystemCacheBuilder<Object, Object> builder = FileSystemCacheBuilder.newBuilder()
+                .maximumSize(Math.max((long) (keyCount * heapRatio), 1L));
+        if (store.equals("segment")) {
+            builder.segmentedPersistence(64L * 1024L * 1024L);
+        } else if (store.equals("off-heap")) {
+            builder.offHeapTier(256L * 1024L * 1024L);
+        }
+        return builder;
+    }
+
+    private Cache<Integer, byte[]> fill(FileSystemCacheBuilder<Object, Object> builder) {
+        Cache<Integer, byte[]> cache = builder.build();
+        Random random = new Random(0L);
+        for (int key = 0; key < keyCount; key++) {
+            byte[] value = new byte[valueSize];
+            random.nextBytes(value);
+            cache.put(key, value);
+        }
+        return cache;
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        for (Cache<Integer, byte[]> cache : Arrays.asList(this.cache, persistedCache)) {
+            cache.invalidateAll();
+            ((Closeable) cache).close();
+        }
+    }
+
+    @Benchmark
+    public byte[] heapHit() {
+        return cache.getIfPresent(hotKey);
+    }
+
+    @Benchmark
+    public byte[] uniform(KeySequence keySequence) {
+        return cache.getIfPresent(keySequence.random.nextInt(keyCount));
+    }
+
+    @Benchmark
+    public byte[] diskHit(PersistedKey persistedKey) {
+        return persistedCache.getIfPresent(persistedKey.key);
+    }
+
+    @Benchmark
+    public byte[] miss(KeySequence keySequence) {
+        return cache.getIfPresent(keyCount + keySequence.random.nextInt(keyCount));
+    }
+}
@@ -0,0 +1,71 @@
+package com.blogspot.mydailyjava.guava.cache.overflow;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the stream based read path of persisted values with the memory mapped read path.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReadPathBenchmark {
+
+    private static final int KEY_COUNT = 256;
+
+    @Param({"128", "4096", "131072"})
+    public int valueSize;
+
+    @Param({"file", "segment"})
+    public String store;
+
+    @Param({"stream", "mapped"})
+    public String readMode;
+
+    private FileSystemPersistingCache<Integer, byte[]> cache;
+
+    @State(Scope.Thread)
+    public static class KeySequence {
+
+        private int next;
+
+        private int next() {
+            return next++ % KEY_COUNT;
+        }
+    }
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setUp() throws Exception {
+        FileSystemCacheBuilder<Object, Object> builder = FileSystemCacheBuilder.newBuilder().maximumSize(1L);
+        if (store.equals("segment")) {
+            builder.segmentedPersistence(64L * 1024L * 1024L);
+        }
+        if (readMode.equals("mapped")) {
+            builder.memoryMappedReads();
+        }
+        cache = (FileSystemPersistingCache<Integer, byte[]>) builder.<Integer, byte[]>build();
+        Random random = new Random(0L);
+        for (int key = 0; key < KEY_COUNT; key++) {
+            byte[] value = new byte[valueSize];
+            random.nextBytes(value);
+            cache.persistValue(key, value);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        cache.invalidateAll();
+        cache.close();
+    }
+
+    @Benchmark
+    public byte[] readPersisted(KeySequence keySequence) throws Exception {
+        return cache.findPersisted(keySequence.next());
+    }
+}
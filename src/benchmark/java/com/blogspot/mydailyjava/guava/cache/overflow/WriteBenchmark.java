@@ -0,0 +1,76 @@
+package com.blogspot.mydailyjava.guava.cache.overflow;
+
+import com.google.common.cache.Cache;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures writes to a cache that is full such that every write spills an entry to the overflow tiers, and the
+ * invalidation of a cache with persisted entries.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WriteBenchmark {
+
+    @Param({"128", "4096", "65536"})
+    public int valueSize;
+
+    @Param({"1024"})
+    public int keyCount;
+
+    @Param({"file", "segment", "off-heap"})
+    public String store;
+
+    private Cache<Integer, byte[]> cache;
+    private byte[] value;
+
+    @State(Scope.Thread)
+    public static class KeySequence {
+
+        private final Random random = new Random();
+    }
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        FileSystemCacheBuilder<Object, Object> builder = FileSystemCacheBuilder.newBuilder().maximumSize(Math.max(keyCount / 10, 1));
+        if (store.equals("segment")) {
+            builder.segmentedPersistence(64L * 1024L * 1024L);
+        } else if (store.equals("off-heap")) {
+            builder.offHeapTier(256L * 1024L * 1024L);
+        }
+        cache = builder.build();
+        value = new byte[valueSize];
+        new Random(0L).nextBytes(value);
+        for (int key = 0; key < keyCount; key++) {
+            cache.put(key, value);
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws IOException {
+        cache.invalidateAll();
+        ((Closeable) cache).close();
+    }
+
+    @Benchmark
+    public void spillingPut(KeySequence keySequence) {
+        cache.put(keySequence.random.nextInt(keyCount), value);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 5)
+    @Measurement(iterations = 10)
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+}
@@ -1,33 +1,95 @@
 package com.blogspot.mydailyjava.guava.cache.overflow;
 
+import com.google.common.base.Predicate;
 import com.google.common.cache.*;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.Striped;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.List;
-import java.util.Map;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.ExecutionException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.Lock;
 
-public abstract class AbstractPersistingCache<K, V> implements Cache<K, V> {
+public abstract class AbstractPersistingCache<K, V> implements Cache<K, V>, Closeable {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(AbstractPersistingCache.class);
 
+    private static final int HANDOFF_STRIPES_PER_PROCESSOR = 4;
+
     private final LoadingCache<K, V> underlyingCache;
     private final RemovalListener<K, V> removalListener;
+    private final WriteBehindQueue<K, V> writeBehindQueue;
+    private final boolean persistOnClose;
+    private final ThreadPoolExecutor readExecutor;
+    private final CacheLoader<? super K, V> cacheLoader;
+    private final ThreadPoolExecutor refreshExecutor;
+    private final Set<K> cleanKeys;
+    private final ConcurrentMap<K, Handoff<V>> evicting, persisting;
+    private final Striped<Lock> handoffLocks;
+    private final FrequencySketch frequencySketch;
+    private final int spillAdmissionFrequency, promotionFrequency;
+    private final PersistingStatsCounter statsCounter;
+    private final PersistenceListener persistenceListener;
+
+    private ConcurrentMap<K, V> asMapView;
 
     protected AbstractPersistingCache(CacheBuilder<Object, Object> cacheBuilder) {
         this(cacheBuilder, null);
     }
 
     protected AbstractPersistingCache(CacheBuilder<Object, Object> cacheBuilder, RemovalListener<K, V> removalListener) {
-        this.underlyingCache = makeCache(cacheBuilder);
-        this.removalListener = removalListener;
+        this(FileSystemCacheBuilder.of(cacheBuilder, null, removalListener));
+    }
+
+    AbstractPersistingCache(FileSystemCacheBuilder<? super K, ? super V> builder) {
+        this(builder, null);
+    }
+
+    AbstractPersistingCache(FileSystemCacheBuilder<? super K, ? super V> builder, CacheLoader<? super K, V> cacheLoader) {
+        this.cacheLoader = cacheLoader;
+        this.cleanKeys = Collections.newSetFromMap(new ConcurrentHashMap<K, Boolean>());
+        this.evicting = new ConcurrentHashMap<K, Handoff<V>>();
+        this.persisting = new ConcurrentHashMap<K, Handoff<V>>();
+        this.handoffLocks = Striped.lock(Runtime.getRuntime().availableProcessors() * HANDOFF_STRIPES_PER_PROCESSOR);
+        this.underlyingCache = makeCache(builder.getUnderlyingCacheBuilder());
+        this.removalListener = builder.getRemovalListener();
+        if (builder.getWriteBehindQueueSize() > 0) {
+            this.writeBehindQueue = new PersistingWriteBehindQueue(builder.getWriteBehindQueueSize(), builder.getWriteBehindThreads());
+        } else {
+            this.writeBehindQueue = null;
+        }
+        this.persistOnClose = builder.isPersistOnClose();
+        this.frequencySketch = builder.makeFrequencySketch();
+        this.spillAdmissionFrequency = builder.getSpillAdmissionFrequency();
+        this.promotionFrequency = builder.getPromotionFrequency();
+        this.statsCounter = new PersistingStatsCounter();
+        this.persistenceListener = builder.getPersistenceListener();
+        int readThreads = Runtime.getRuntime().availableProcessors();
+        this.readExecutor = new ThreadPoolExecutor(readThreads, readThreads, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactoryBuilder().setNameFormat("persisted-read-%d").setDaemon(true).build());
+        readExecutor.allowCoreThreadTimeOut(true);
+        if (cacheLoader != null) {
+            this.refreshExecutor = new ThreadPoolExecutor(readThreads, readThreads, 60L, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactoryBuilder().setNameFormat("cache-refresh-%d").setDaemon(true).build());
+            refreshExecutor.allowCoreThreadTimeOut(true);
+        } else {
+            this.refreshExecutor = null;
+        }
     }
 
     private LoadingCache<K, V> makeCache(CacheBuilder<Object, Object> cacheBuilder) {
@@ -40,37 +102,144 @@ public abstract class AbstractPersistingCache<K, V> implements Cache<K, V> {
         @Override
         public void onRemoval(RemovalNotification<K, V> notification) {
             if (isPersistenceRelevant(notification.getCause())) {
+                // Note: A value that was promoted without being modified is still persisted
+                if (cleanKeys.remove(notification.getKey()) && hasPersistedCopy(notification.getKey())) {
+                    onRelease(notification.getKey());
+                    return;
+                }
+                if (!isAdmitted(notification.getKey())) {
+                    onRelease(notification.getKey());
+                    statsCounter.recordRejectedSpill();
+                    if (removalListener != null) {
+                        removalListener.onRemoval(notification);
+                    }
+                    return;
+                }
+                if (writeBehindQueue != null && writeBehindQueue.enqueue(notification.getKey(), notification.getValue())) {
+                    statsCounter.recordSpill();
+                    return;
+                }
+                // Note: Until the value is persisted, it is handed to any reader directly
+                Handoff<V> handoff = new Handoff<V>(notification.getValue());
+                Lock lock = handoffLocks.get(notification.getKey());
+                lock.lock();
+                try {
+                    evicting.put(notification.getKey(), handoff);
+                    persisting.put(notification.getKey(), handoff);
+                } finally {
+                    lock.unlock();
+                }
                 try {
                     persistValue(notification.getKey(), notification.getValue());
+                    statsCounter.recordSpill();
                 } catch (IOException e) {
                     LOGGER.warn(String.format("Could not persist value %s to key %s",
                             notification.getKey(), notification.getValue()), e);
+                } finally {
+                    lock.lock();
+                    try {
+                        // Note: A claimed value is only deleted if it was not evicted and persisted again in the meantime
+                        boolean latest = persisting.remove(notification.getKey(), handoff);
+                        if (!evicting.remove(notification.getKey(), handoff) && handoff.claimed && latest) {
+                            deletePersistedIfExistent(notification.getKey());
+                        }
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+            } else {
+                onRelease(notification.getKey());
+                if (cleanKeys.remove(notification.getKey())) {
+                    deletePersistedIfExistent(notification.getKey());
+                }
+                if (removalListener != null) {
+                    removalListener.onRemoval(notification);
                 }
-            } else if (removalListener != null) {
-                removalListener.onRemoval(notification);
             }
         }
     }
 
+    private static class Handoff<V> {
+
+        private final V value;
+
+        // Note: A handoff is only claimed while holding the lock of its key
+        private boolean claimed;
+
+        private Handoff(V value) {
+            this.value = value;
+        }
+    }
+
+    private V claimEvicting(K key) {
+        if (!evicting.containsKey(key)) return null;
+        Lock lock = handoffLocks.get(key);
+        lock.lock();
+        try {
+            Handoff<V> handoff = evicting.remove(key);
+            if (handoff == null) return null;
+            handoff.claimed = true;
+            return handoff.value;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     private class PersistedStateCacheLoader extends CacheLoader<K, V> {
         @Override
         public V load(K key) throws Exception {
+            long start = isTraced() ? System.nanoTime() : 0L;
             V value = null;
             try {
-                value = findPersisted(key);
-                if (value != null) {
-                    deletePersistedIfExistent(key);
-                    underlyingCache.put(key, value);
+                if (writeBehindQueue != null) {
+                    value = writeBehindQueue.claim(key);
+                }
+                if (value == null) {
+                    value = claimEvicting(key);
+                }
+                boolean refreshDue = false;
+                if (value == null) {
+                    value = findPersisted(key);
+                    if (value != null) {
+                        onPromotion(key);
+                        refreshDue = isRefreshDue(key);
+                        retainPersisted(key);
+                    }
+                }
+                if (refreshDue) {
+                    reloadPromoted(key, value);
                 }
             } catch (Exception e) {
                 LOGGER.warn(String.format("Could not load persisted value to key %s", key), e);
             }
             if (value != null) {
+                statsCounter.recordPersistedHit();
+                statsCounter.recordPromotion();
+                if (isTraced()) {
+                    trace(PersistenceEvent.PROMOTION, key, -1L, start);
+                }
                 return value;
             } else {
+                statsCounter.recordMiss();
                 throw new NotPersistedException();
             }
         }
+
+        @Override
+        public ListenableFuture<V> reload(final K key, final V oldValue) {
+            if (cacheLoader == null) {
+                // Note: Without a loader, a value can only be replaced explicitly
+                return Futures.immediateFuture(oldValue);
+            }
+            ListenableFutureTask<V> reload = ListenableFutureTask.create(new Callable<V>() {
+                @Override
+                public V call() throws Exception {
+                    return cacheLoader.reload(key, oldValue).get();
+                }
+            });
+            refreshExecutor.execute(reload);
+            return reload;
+        }
     }
 
     private class PersistedStateValueLoader extends PersistedStateCacheLoader implements Callable<V> {
@@ -96,10 +265,133 @@ public abstract class AbstractPersistingCache<K, V> implements Cache<K, V> {
         }
     }
 
+    private class PersistingWriteBehindQueue extends WriteBehindQueue<K, V> {
+
+        private PersistingWriteBehindQueue(int capacity, int writerThreads) {
+            super(capacity, writerThreads);
+        }
+
+        @Override
+        protected void persist(Map<K, V> values) throws Exception {
+            persistValues(values);
+        }
+
+        @Override
+        protected boolean isPersisted(K key) {
+            return hasPersistedCopy(key);
+        }
+
+        @Override
+        protected void discard(Map<K, V> values) {
+            for (Map.Entry<K, V> entry : values.entrySet()) {
+                onRelease(entry.getKey());
+                notifyRemoval(entry.getKey(), entry.getValue(), RemovalCause.SIZE);
+            }
+        }
+    }
+
+    private boolean isAdmitted(K key) {
+        return frequencySketch == null || frequencySketch.frequency(key) >= spillAdmissionFrequency;
+    }
+
+    private boolean isPromoted(K key) {
+        return promotionFrequency == 0 || frequencySketch.frequency(key) >= promotionFrequency;
+    }
+
+    /**
+     * Reads a value of a key that is not accessed frequently enough to be promoted without moving it into memory. A
+     * persisted value that is due for a refresh is reloaded into memory.
+     */
+    private V findUnpromoted(K key) {
+        if (isPromoted(key)) return null;
+        V value = underlyingCache.getIfPresent(key);
+        if (value != null) return value;
+        Handoff<V> handoff = evicting.get(key);
+        if (handoff != null) {
+            statsCounter.recordPersistedHit();
+            return handoff.value;
+        }
+        try {
+            value = findPersisted(key);
+            if (value != null) {
+                statsCounter.recordPersistedHit();
+                if (isRefreshDue(key)) {
+                    reloadPromoted(key, value);
+                }
+            }
+            return value;
+        } catch (IOException e) {
+            LOGGER.warn(String.format("Could not read persisted value to key %s", key), e);
+            return null;
+        }
+    }
+
+    void recordLookup(Object key) {
+        statsCounter.recordLookup();
+        recordAccess(key);
+    }
+
+    private void recordAccess(Object key) {
+        if (frequencySketch != null) {
+            frequencySketch.increment(key);
+        }
+    }
+
+    /**
+     * Returns the number of entries that were evicted from memory but that were not persisted as they were not
+     * accessed frequently enough. If no spill admission is configured, no entry is ever rejected.
+     *
+     * @return The number of rejected entries.
+     */
+    public long rejectedSpillCount() {
+        return statsCounter.rejectedSpillCount();
+    }
+
+    /**
+     * Returns statistics about the memory tier and the overflow tiers of this cache. The statistics are always
+     * recorded, independently of {@link com.google.common.cache.CacheBuilder#recordStats()}.
+     *
+     * @return A snapshot of this cache's statistics.
+     */
+    public PersistingCacheStats persistingStats() {
+        return statsCounter.snapshot();
+    }
+
+    PersistingStatsCounter getStatsCounter() {
+        return statsCounter;
+    }
+
+    boolean isTraced() {
+        return persistenceListener != null;
+    }
+
+    /**
+     * Reports an operation that started at the given time to the persistence listener. Callers must check if this
+     * cache {@link #isTraced() is traced} before taking the start time such that untraced operations are not timed.
+     */
+    void trace(PersistenceEvent event, Object key, long byteSize, long start) {
+        try {
+            persistenceListener.onPersistenceEvent(event, key == null ? 0 : key.hashCode(), byteSize, System.nanoTime() - start);
+        } catch (RuntimeException e) {
+            LOGGER.warn(String.format("Persistence listener failed to handle %s event", event), e);
+        }
+    }
+
     protected boolean isPersistenceRelevant(RemovalCause removalCause) {
         // Note: RemovalCause#wasEvicted is package private
         return removalCause != RemovalCause.EXPLICIT
-                && removalCause != RemovalCause.REPLACED;
+                && removalCause != RemovalCause.REPLACED
+                && removalCause != RemovalCause.EXPIRED;
+    }
+
+    boolean hasRemovalListener() {
+        return removalListener != null;
+    }
+
+    void notifyRemoval(K key, V value, RemovalCause removalCause) {
+        if (removalListener != null) {
+            removalListener.onRemoval(RemovalNotifications.make(key, value, removalCause));
+        }
     }
 
     protected LoadingCache<K, V> getUnderlyingCache() {
@@ -110,6 +402,12 @@ public abstract class AbstractPersistingCache<K, V> implements Cache<K, V> {
 
     protected abstract void persistValue(K key, V value) throws IOException;
 
+    protected void persistValues(Map<K, V> values) throws IOException {
+        for (Map.Entry<K, V> entry : values.entrySet()) {
+            persistValue(entry.getKey(), entry.getValue());
+        }
+    }
+
     protected abstract List<String> directoryFor(K key);
 
     protected abstract void persist(K key, V value, OutputStream outputStream) throws IOException;
@@ -124,11 +422,32 @@ public abstract class AbstractPersistingCache<K, V> implements Cache<K, V> {
 
     protected abstract int sizeOfPersisted();
 
+    /**
+     * Returns an iterator over the keys of all persisted entries. Entries that are still queued for being persisted
+     * are not included. The iterator must not deserialize any values and does not need to reflect modifications
+     * that are applied after it was created.
+     *
+     * @return An iterator over the keys of all persisted entries.
+     */
+    protected Iterator<K> persistedKeyIterator() {
+        return Collections.<K>emptyList().iterator();
+    }
+
+    /**
+     * Determines if a value is persisted for a key. Subclasses might override this method to avoid reading the value.
+     */
+    boolean containsPersisted(K key) throws IOException {
+        return findPersisted(key) != null;
+    }
+
     @Override
     @SuppressWarnings("unchecked")
     public V getIfPresent(Object key) {
+        recordLookup(key);
         try {
             K castKey = (K) key;
+            V value = findUnpromoted(castKey);
+            if (value != null) return value;
             return underlyingCache.get(castKey);
         } catch (ClassCastException e) {
             LOGGER.info(String.format("Could not cast key %s to desired type", key), e);
@@ -145,41 +464,248 @@ public abstract class AbstractPersistingCache<K, V> implements Cache<K, V> {
 
     @Override
     public V get(K key, Callable<? extends V> valueLoader) throws ExecutionException {
+        recordLookup(key);
+        // Note: A value loader would otherwise be used to refresh a value on the calling thread
+        V value = underlyingCache.getIfPresent(key);
+        if (value != null) return value;
+        value = findUnpromoted(key);
+        if (value != null) return value;
         return underlyingCache.get(key, new PersistedStateValueLoader(key, valueLoader));
     }
 
     @Override
     @SuppressWarnings("unchecked")
     public ImmutableMap<K, V> getAllPresent(Iterable<?> keys) {
-        ImmutableMap.Builder<K, V> allPresent = ImmutableMap.builder();
+        Set<K> requested = new LinkedHashSet<K>();
         for (Object key : keys) {
-            V value = getIfPresent(key);
-            if (value != null) allPresent.put((K) key, value);
+            try {
+                requested.add((K) key);
+            } catch (ClassCastException e) {
+                LOGGER.info(String.format("Could not cast key %s to desired type", key), e);
+            }
+        }
+        Map<K, V> found = findAll(requested);
+        ImmutableMap.Builder<K, V> allPresent = ImmutableMap.builder();
+        for (K key : requested) {
+            V value = found.get(key);
+            if (value != null) allPresent.put(key, value);
         }
         return allPresent.build();
     }
 
+    /**
+     * Loads all values of the given keys. Values are looked up in memory first, values that are not found in memory
+     * are read from disk in parallel and any remaining keys are loaded by a single call to
+     * {@link CacheLoader#loadAll(Iterable)}. If the loader does not implement bulk loading, the remaining keys are
+     * loaded one by one.
+     *
+     * @param keys        The keys to load.
+     * @param cacheLoader The loader for values that are neither found in memory nor on disk.
+     * @return A map of all keys to their values in the order of the requested keys.
+     * @throws ExecutionException If the loader throws a checked exception.
+     */
+    protected ImmutableMap<K, V> getAll(Iterable<? extends K> keys, final CacheLoader<? super K, V> cacheLoader) throws ExecutionException {
+        Set<K> requested = new LinkedHashSet<K>();
+        for (K key : keys) {
+            requested.add(key);
+        }
+        Map<K, V> found = findAll(requested);
+        Set<K> missing = new LinkedHashSet<K>();
+        for (K key : requested) {
+            if (!found.containsKey(key)) missing.add(key);
+        }
+        if (!missing.isEmpty()) {
+            found.putAll(loadAll(missing, cacheLoader));
+        }
+        ImmutableMap.Builder<K, V> all = ImmutableMap.builder();
+        for (K key : requested) {
+            all.put(key, found.get(key));
+        }
+        return all.build();
+    }
+
+    private Map<K, V> findAll(Set<K> keys) {
+        for (K key : keys) {
+            recordLookup(key);
+        }
+        final Map<K, V> found = new ConcurrentHashMap<K, V>(underlyingCache.getAllPresent(keys));
+        List<K> remaining = new ArrayList<K>(keys.size() - found.size());
+        for (K key : keys) {
+            if (!found.containsKey(key)) remaining.add(key);
+        }
+        if (remaining.isEmpty()) return found;
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        int partitionSize = Math.max(remaining.size() / readExecutor.getMaximumPoolSize(), 1);
+        for (final List<K> partition : Lists.partition(remaining, partitionSize)) {
+            Runnable read = new Runnable() {
+                @Override
+                public void run() {
+                    for (K key : partition) {
+                        V value;
+                        if (isPromoted(key)) {
+                            value = promotePersisted(key);
+                        } else {
+                            value = findUnpromoted(key);
+                            if (value == null) {
+                                statsCounter.recordMiss();
+                            }
+                        }
+                        if (value != null) found.put(key, value);
+                    }
+                }
+            };
+            if (remaining.size() == partition.size()) {
+                read.run();
+            } else {
+                futures.add(readExecutor.submit(read));
+            }
+        }
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                LOGGER.warn("Could not read persisted values", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return found;
+    }
+
+    private V promotePersisted(K key) {
+        long start = isTraced() ? System.nanoTime() : 0L;
+        try {
+            V value = writeBehindQueue == null ? null : writeBehindQueue.claim(key);
+            if (value == null) {
+                value = claimEvicting(key);
+            }
+            boolean refreshDue = false;
+            if (value == null) {
+                value = findPersisted(key);
+                if (value != null) {
+                    onPromotion(key);
+                    refreshDue = isRefreshDue(key);
+                    retainPersisted(key);
+                }
+            }
+            if (value == null) {
+                statsCounter.recordMiss();
+                return null;
+            }
+            statsCounter.recordPersistedHit();
+            // Note: A value that was put concurrently is more recent than the persisted value
+            V previous = underlyingCache.asMap().putIfAbsent(key, value);
+            if (previous != null) {
+                onRelease(key);
+                if (cleanKeys.remove(key)) {
+                    deletePersistedIfExistent(key);
+                }
+                return previous;
+            }
+            statsCounter.recordPromotion();
+            if (isTraced()) {
+                trace(PersistenceEvent.PROMOTION, key, -1L, start);
+            }
+            if (refreshDue) {
+                reloadPromoted(key, value);
+            }
+            return value;
+        } catch (Exception e) {
+            LOGGER.warn(String.format("Could not load persisted value to key %s", key), e);
+            return null;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<K, V> loadAll(Set<K> keys, CacheLoader<? super K, V> cacheLoader) throws ExecutionException {
+        Map<?, V> loaded;
+        try {
+            loaded = cacheLoader.loadAll(keys);
+        } catch (UnsupportedOperationException e) {
+            // Note: The keys were already looked up in all tiers such that they are only loaded
+            Map<K, V> values = new HashMap<K, V>();
+            for (K key : keys) {
+                values.put(key, underlyingCache.get(key, new LoaderCallable(key, cacheLoader)));
+            }
+            return values;
+        } catch (RuntimeException e) {
+            throw new UncheckedExecutionException(e);
+        } catch (Exception e) {
+            throw new ExecutionException(e);
+        } catch (Error e) {
+            throw new ExecutionError(e);
+        }
+        if (loaded == null) {
+            throw new CacheLoader.InvalidCacheLoadException(String.format("%s returned null map from loadAll", cacheLoader));
+        }
+        Map<K, V> values = new HashMap<K, V>();
+        for (Map.Entry<?, V> entry : loaded.entrySet()) {
+            if (entry.getKey() == null || entry.getValue() == null) {
+                throw new CacheLoader.InvalidCacheLoadException(String.format("%s returned null keys or values from loadAll", cacheLoader));
+            }
+            values.put((K) entry.getKey(), entry.getValue());
+        }
+        for (K key : keys) {
+            if (!values.containsKey(key)) {
+                throw new CacheLoader.InvalidCacheLoadException(String.format("%s returned no value for key %s from loadAll", cacheLoader, key));
+            }
+        }
+        underlyingCache.putAll(values);
+        return values;
+    }
+
+    private class LoaderCallable implements Callable<V> {
+
+        private final K key;
+        private final CacheLoader<? super K, V> cacheLoader;
+
+        private LoaderCallable(K key, CacheLoader<? super K, V> cacheLoader) {
+            this.key = key;
+            this.cacheLoader = cacheLoader;
+        }
+
+        @Override
+        public V call() throws Exception {
+            return cacheLoader.load(key);
+        }
+    }
+
     @Override
     public void put(K key, V value) {
+        recordAccess(key);
+        onRelease(key);
         underlyingCache.put(key, value);
     }
 
     @Override
     public void putAll(Map<? extends K, ? extends V> m) {
+        for (K key : m.keySet()) {
+            recordAccess(key);
+            onRelease(key);
+        }
         underlyingCache.putAll(m);
     }
 
     @Override
     public void invalidate(Object key) {
+        long start = isTraced() ? System.nanoTime() : 0L;
         underlyingCache.invalidate(key);
         invalidatePersisted(key);
+        if (isTraced()) {
+            trace(PersistenceEvent.INVALIDATION, key, -1L, start);
+        }
     }
 
     @Override
     public void invalidateAll(Iterable<?> keys) {
         underlyingCache.invalidateAll(keys);
         for (Object key : keys) {
+            long start = isTraced() ? System.nanoTime() : 0L;
             invalidatePersisted(key);
+            if (isTraced()) {
+                trace(PersistenceEvent.INVALIDATION, key, -1L, start);
+            }
         }
     }
 
@@ -187,7 +713,14 @@ public abstract class AbstractPersistingCache<K, V> implements Cache<K, V> {
     private void invalidatePersisted(Object key) {
         try {
             K castKey = (K) key;
-            if (removalListener == null) {
+            V queued = writeBehindQueue == null ? null : writeBehindQueue.claim(castKey);
+            if (queued == null) {
+                queued = claimEvicting(castKey);
+            }
+            if (queued != null && removalListener != null) {
+                removalListener.onRemoval(RemovalNotifications.make(castKey, queued));
+            }
+            if (removalListener == null || queued != null) {
                 deletePersistedIfExistent(castKey);
             } else {
                 V value = findPersisted(castKey);
@@ -205,13 +738,29 @@ public abstract class AbstractPersistingCache<K, V> implements Cache<K, V> {
 
     @Override
     public void invalidateAll() {
+        long start = isTraced() ? System.nanoTime() : 0L;
         underlyingCache.invalidateAll();
+        cleanKeys.clear();
+        for (K key : evicting.keySet()) {
+            claimEvicting(key);
+        }
+        if (writeBehindQueue != null) {
+            writeBehindQueue.clear();
+        }
         deleteAllPersisted();
+        if (isTraced()) {
+            trace(PersistenceEvent.INVALIDATION, null, -1L, start);
+        }
     }
 
     @Override
     public long size() {
-        return underlyingCache.size() + sizeOfPersisted();
+        long size = underlyingCache.size() + Math.max(sizeOfPersisted() - cleanKeys.size(), 0);
+        if (writeBehindQueue != null) {
+            // Note: An entry that is being persisted is otherwise counted as both queued and persisted
+            size += writeBehindQueue.sizeOfUnwritten();
+        }
+        return size;
     }
 
     @Override
@@ -219,13 +768,488 @@ public abstract class AbstractPersistingCache<K, V> implements Cache<K, V> {
         return underlyingCache.stats();
     }
 
+    /**
+     * Returns a view of this cache that spans the memory and the overflow tiers. Lookups fall through to persisted
+     * entries and iterators read persisted entries lazily without moving them into memory. Iterating over the view's
+     * key set never deserializes a value. Before an entry is modified by the view, its persisted value is promoted
+     * such that the modification applies atomically to the entry in memory. Like the cache's
+     * {@link #size()}, iterators are weakly consistent and might return a key twice if its entry is moved between
+     * tiers concurrently.
+     *
+     * @return A view of all entries of this cache.
+     */
     @Override
     public ConcurrentMap<K, V> asMap() {
-        return underlyingCache.asMap();
+        ConcurrentMap<K, V> asMapView = this.asMapView;
+        return asMapView == null ? (this.asMapView = new TwoTierMap()) : asMapView;
+    }
+
+    private class TwoTierMap extends AbstractMap<K, V> implements ConcurrentMap<K, V> {
+
+        private final ConcurrentMap<K, V> heap = underlyingCache.asMap();
+
+        private Set<K> keySet;
+        private Set<Map.Entry<K, V>> entrySet;
+
+        @Override
+        public V get(Object key) {
+            return getIfPresent(key);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public boolean containsKey(Object key) {
+            if (heap.containsKey(key)) return true;
+            try {
+                K castKey = (K) key;
+                return (writeBehindQueue != null && writeBehindQueue.peek(castKey) != null)
+                        || evicting.containsKey(castKey)
+                        || containsPersisted(castKey);
+            } catch (ClassCastException e) {
+                return false;
+            } catch (IOException e) {
+                LOGGER.warn(String.format("Could not determine if a value is persisted to key %s", key), e);
+                return false;
+            }
+        }
+
+        @Override
+        public V put(K key, V value) {
+            promote(key);
+            return heap.put(key, value);
+        }
+
+        @Override
+        public V putIfAbsent(K key, V value) {
+            promote(key);
+            return heap.putIfAbsent(key, value);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public V remove(Object key) {
+            try {
+                promote((K) key);
+            } catch (ClassCastException e) {
+                return null;
+            }
+            return heap.remove(key);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public boolean remove(Object key, Object value) {
+            try {
+                promote((K) key);
+            } catch (ClassCastException e) {
+                return false;
+            }
+            return heap.remove(key, value);
+        }
+
+        @Override
+        public V replace(K key, V value) {
+            promote(key);
+            return heap.replace(key, value);
+        }
+
+        @Override
+        public boolean replace(K key, V oldValue, V newValue) {
+            promote(key);
+            return heap.replace(key, oldValue, newValue);
+        }
+
+        private void promote(K key) {
+            recordLookup(key);
+            if (!heap.containsKey(key)) {
+                promotePersisted(key);
+            }
+        }
+
+        @Override
+        public int size() {
+            return (int) Math.min(AbstractPersistingCache.this.size(), Integer.MAX_VALUE);
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return !keyIterator().hasNext();
+        }
+
+        @Override
+        public void clear() {
+            invalidateAll();
+        }
+
+        @Override
+        public Set<K> keySet() {
+            Set<K> keySet = this.keySet;
+            return keySet == null ? (this.keySet = new KeySet()) : keySet;
+        }
+
+        @Override
+        public Set<Map.Entry<K, V>> entrySet() {
+            Set<Map.Entry<K, V>> entrySet = this.entrySet;
+            return entrySet == null ? (this.entrySet = new EntrySet()) : entrySet;
+        }
+
+        private class KeySet extends AbstractSet<K> {
+
+            @Override
+            public Iterator<K> iterator() {
+                return new Iterator<K>() {
+
+                    private final Iterator<K> keys = keyIterator();
+                    private K last;
+
+                    @Override
+                    public boolean hasNext() {
+                        return keys.hasNext();
+                    }
+
+                    @Override
+                    public K next() {
+                        return last = keys.next();
+                    }
+
+                    @Override
+                    public void remove() {
+                        if (last == null) throw new IllegalStateException();
+                        invalidate(last);
+                        last = null;
+                    }
+                };
+            }
+
+            @Override
+            public boolean contains(Object key) {
+                return containsKey(key);
+            }
+
+            @Override
+            public boolean remove(Object key) {
+                return TwoTierMap.this.remove(key) != null;
+            }
+
+            @Override
+            public int size() {
+                return TwoTierMap.this.size();
+            }
+
+            @Override
+            public boolean isEmpty() {
+                return TwoTierMap.this.isEmpty();
+            }
+
+            @Override
+            public void clear() {
+                invalidateAll();
+            }
+        }
+
+        private class EntrySet extends AbstractSet<Map.Entry<K, V>> {
+
+            @Override
+            public Iterator<Map.Entry<K, V>> iterator() {
+                return new EntryIterator();
+            }
+
+            @Override
+            public boolean contains(Object object) {
+                if (!(object instanceof Map.Entry)) return false;
+                Map.Entry<?, ?> entry = (Map.Entry<?, ?>) object;
+                V value = get(entry.getKey());
+                return value != null && value.equals(entry.getValue());
+            }
+
+            @Override
+            public boolean remove(Object object) {
+                if (!(object instanceof Map.Entry)) return false;
+                Map.Entry<?, ?> entry = (Map.Entry<?, ?>) object;
+                return TwoTierMap.this.remove(entry.getKey(), entry.getValue());
+            }
+
+            @Override
+            public int size() {
+                return TwoTierMap.this.size();
+            }
+
+            @Override
+            public boolean isEmpty() {
+                return TwoTierMap.this.isEmpty();
+            }
+
+            @Override
+            public void clear() {
+                invalidateAll();
+            }
+        }
+
+        private class EntryIterator implements Iterator<Map.Entry<K, V>> {
+
+            private final Iterator<K> keys = keyIterator();
+            private Map.Entry<K, V> next;
+            private K last;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && keys.hasNext()) {
+                    K key = keys.next();
+                    V value = heap.get(key);
+                    if (value == null) {
+                        // Note: Persisted values are deserialized one at a time while iterating
+                        value = peekPersisted(key);
+                    }
+                    if (value != null) {
+                        next = new WriteThroughEntry(key, value);
+                    }
+                }
+                return next != null;
+            }
+
+            @Override
+            public Map.Entry<K, V> next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                Map.Entry<K, V> entry = next;
+                next = null;
+                last = entry.getKey();
+                return entry;
+            }
+
+            @Override
+            public void remove() {
+                if (last == null) throw new IllegalStateException();
+                invalidate(last);
+                last = null;
+            }
+        }
+
+        private class WriteThroughEntry implements Map.Entry<K, V> {
+
+            private final K key;
+            private V value;
+
+            private WriteThroughEntry(K key, V value) {
+                this.key = key;
+                this.value = value;
+            }
+
+            @Override
+            public K getKey() {
+                return key;
+            }
+
+            @Override
+            public V getValue() {
+                return value;
+            }
+
+            @Override
+            public V setValue(V value) {
+                put(key, value);
+                V previous = this.value;
+                this.value = value;
+                return previous;
+            }
+
+            @Override
+            public boolean equals(Object other) {
+                if (!(other instanceof Map.Entry)) return false;
+                Map.Entry<?, ?> entry = (Map.Entry<?, ?>) other;
+                return key.equals(entry.getKey()) && value.equals(entry.getValue());
+            }
+
+            @Override
+            public int hashCode() {
+                return key.hashCode() ^ value.hashCode();
+            }
+
+            @Override
+            public String toString() {
+                return key + "=" + value;
+            }
+        }
+    }
+
+    /**
+     * Iterates over the keys of all entries, starting with the entries that are held in memory. Keys of entries that
+     * are held in memory are skipped when iterating over the persisted entries.
+     */
+    Iterator<K> keyIterator() {
+        final Set<K> heapKeys = underlyingCache.asMap().keySet();
+        // Note: Queued keys are copied as they might be persisted and dequeued while iterating over persisted keys
+        final Set<K> queued = new LinkedHashSet<K>();
+        if (writeBehindQueue != null) {
+            Iterators.addAll(queued, writeBehindQueue.keys());
+        }
+        queued.addAll(evicting.keySet());
+        Iterator<K> persisted = Iterators.filter(persistedKeyIterator(), new Predicate<K>() {
+            @Override
+            public boolean apply(K key) {
+                return !queued.contains(key) && !evicting.containsKey(key)
+                        && (writeBehindQueue == null || writeBehindQueue.peek(key) == null);
+            }
+        });
+        return Iterators.concat(heapKeys.iterator(), Iterators.filter(Iterators.concat(queued.iterator(), persisted), new Predicate<K>() {
+            @Override
+            public boolean apply(K key) {
+                return !heapKeys.contains(key);
+            }
+        }));
+    }
+
+    /**
+     * Returns a value that was evicted from memory but that is not yet persisted.
+     */
+    V peekQueued(K key) {
+        V value = writeBehindQueue == null ? null : writeBehindQueue.peek(key);
+        if (value != null) return value;
+        Handoff<V> handoff = evicting.get(key);
+        return handoff == null ? null : handoff.value;
+    }
+
+    /**
+     * Reads a value that is queued or persisted without moving it into memory.
+     */
+    private V peekPersisted(K key) {
+        V value = peekQueued(key);
+        if (value != null) return value;
+        try {
+            return findPersisted(key);
+        } catch (IOException e) {
+            LOGGER.warn(String.format("Could not read persisted value to key %s", key), e);
+            return null;
+        }
     }
 
     @Override
     public void cleanUp() {
         underlyingCache.cleanUp();
     }
+
+    /**
+     * Keeps the persisted copy of a value that is promoted to memory such that evicting the value again does not
+     * require to persist it. The copy is deleted once the value in memory is replaced or removed.
+     */
+    private void retainPersisted(K key) {
+        if (hasPersistedCopy(key)) {
+            cleanKeys.add(key);
+        } else {
+            deletePersistedIfExistent(key);
+        }
+    }
+
+    boolean hasPersistedCopy(K key) {
+        return false;
+    }
+
+    /**
+     * Releases the persisted copy of a value that was promoted to memory after the copy was deleted such that the
+     * value is persisted again once it is evicted.
+     *
+     * @return {@code true} if a copy of a promoted value was retained.
+     */
+    boolean releaseRetained(K key) {
+        return cleanKeys.remove(key);
+    }
+
+    /**
+     * Notifies that a value that was read by {@link #findPersisted(Object)} by the current thread is promoted to memory.
+     */
+    void onPromotion(K key) {
+    }
+
+    /**
+     * Notifies that a value is removed from memory or replaced without being persisted with the state of its promotion.
+     */
+    void onRelease(K key) {
+    }
+
+    /**
+     * Determines if a value that is promoted from persistence is older than the configured refresh interval. The value
+     * must have been read by {@link #findPersisted(Object)} by the current thread.
+     */
+    boolean isRefreshDue(K key) {
+        return false;
+    }
+
+    boolean isRefreshing() {
+        return cacheLoader != null;
+    }
+
+    private void reloadPromoted(final K key, final V oldValue) {
+        // Note: The promoted value is served while it is reloaded, unless it is replaced in the meantime
+        refreshExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    V value = cacheLoader.reload(key, oldValue).get();
+                    // Note: The promoted value might not yet be stored if it is still being loaded
+                    if (value != null && !underlyingCache.asMap().replace(key, oldValue, value)) {
+                        underlyingCache.asMap().putIfAbsent(key, value);
+                    }
+                } catch (Exception e) {
+                    LOGGER.warn(String.format("Could not refresh value for key %s", key), e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Reloads a value without blocking the calling thread. A value that is held in memory or that is persisted
+     * continues to be served until the reloaded value is available.
+     */
+    void refreshAsynchronously(final K key) {
+        // Note: A refresh reads the current value such that it is counted as a lookup of the tier that serves it
+        statsCounter.recordLookup();
+        V value = underlyingCache.getIfPresent(key);
+        if (value != null) {
+            underlyingCache.refresh(key);
+            return;
+        }
+        value = promotePersisted(key);
+        if (value != null) {
+            // Note: Refreshing the underlying cache would read the value again if it was evicted in the meantime
+            reloadPromoted(key, value);
+            return;
+        }
+        refreshExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    V value = cacheLoader.load(key);
+                    if (value != null) {
+                        underlyingCache.asMap().putIfAbsent(key, value);
+                    }
+                } catch (Exception e) {
+                    LOGGER.warn(String.format("Could not refresh value for key %s", key), e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Waits for all queued entries to be persisted and releases any resources that are held by this cache. If
+     * configured, all entries that are held in memory are persisted as well. The cache should not be used after it
+     * was closed.
+     */
+    @Override
+    public void close() {
+        readExecutor.shutdown();
+        if (refreshExecutor != null) {
+            refreshExecutor.shutdown();
+        }
+        if (writeBehindQueue != null) {
+            writeBehindQueue.close();
+        }
+        if (persistOnClose) {
+            try {
+                Map<K, V> values = new HashMap<K, V>(underlyingCache.asMap());
+                values.keySet().removeAll(cleanKeys);
+                persistValues(values);
+            } catch (IOException e) {
+                LOGGER.warn("Could not persist values on closing the cache", e);
+            }
+        }
+    }
 }
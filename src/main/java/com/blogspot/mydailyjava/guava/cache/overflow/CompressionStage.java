@@ -0,0 +1,68 @@
+package com.blogspot.mydailyjava.guava.cache.overflow;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+class CompressionStage {
+
+    static final byte UNCOMPRESSED = 0, COMPRESSED = 1;
+
+    private final Compressor compressor;
+    private final int threshold;
+
+    private final AtomicLong compressedCount = new AtomicLong();
+    private final AtomicLong uncompressedCount = new AtomicLong();
+    private final AtomicLong serializedBytes = new AtomicLong();
+    private final AtomicLong persistedBytes = new AtomicLong();
+    private final AtomicLong totalCompressionTime = new AtomicLong();
+    private final AtomicLong decompressionCount = new AtomicLong();
+    private final AtomicLong totalDecompressionTime = new AtomicLong();
+
+    CompressionStage(Compressor compressor, int threshold) {
+        this.compressor = compressor;
+        this.threshold = threshold;
+    }
+
+    /**
+     * Returns the compressed form of a serialized value or {@code null} if the value should be persisted as it is.
+     */
+    ByteBuffer compress(ByteBuffer serialized) throws IOException {
+        int length = serialized.remaining();
+        serializedBytes.addAndGet(length);
+        if (compressor != null && length >= threshold) {
+            long start = System.nanoTime();
+            ByteBuffer compressed = compressor.compress(serialized.duplicate());
+            totalCompressionTime.addAndGet(System.nanoTime() - start);
+            if (compressed.remaining() < length) {
+                compressedCount.incrementAndGet();
+                persistedBytes.addAndGet(compressed.remaining());
+                return compressed;
+            }
+        }
+        uncompressedCount.incrementAndGet();
+        persistedBytes.addAndGet(length);
+        return null;
+    }
+
+    ByteBuffer decompress(ByteBuffer compressed, int length) throws IOException {
+        if (compressor == null) {
+            throw new IOException("Found a compressed value but no compressor is configured");
+        }
+        long start = System.nanoTime();
+        ByteBuffer decompressed = compressor.decompress(compressed, length);
+        totalDecompressionTime.addAndGet(System.nanoTime() - start);
+        decompressionCount.incrementAndGet();
+        return decompressed;
+    }
+
+    CompressionStats stats() {
+        return new CompressionStats(compressedCount.get(),
+                uncompressedCount.get(),
+                serializedBytes.get(),
+                persistedBytes.get(),
+                totalCompressionTime.get(),
+                decompressionCount.get(),
+                totalDecompressionTime.get());
+    }
+}
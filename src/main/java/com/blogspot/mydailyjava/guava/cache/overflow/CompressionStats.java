@@ -0,0 +1,124 @@
+package com.blogspot.mydailyjava.guava.cache.overflow;
+
+import com.google.common.base.Objects;
+
+/**
+ * Statistics about the compression of persisted values. Instances of this class are immutable.
+ */
+public final class CompressionStats {
+
+    private final long compressedCount;
+    private final long uncompressedCount;
+    private final long serializedBytes;
+    private final long persistedBytes;
+    private final long totalCompressionTime;
+    private final long decompressionCount;
+    private final long totalDecompressionTime;
+
+    CompressionStats(long compressedCount,
+                     long uncompressedCount,
+                     long serializedBytes,
+                     long persistedBytes,
+                     long totalCompressionTime,
+                     long decompressionCount,
+                     long totalDecompressionTime) {
+        this.compressedCount = compressedCount;
+        this.uncompressedCount = uncompressedCount;
+        this.serializedBytes = serializedBytes;
+        this.persistedBytes = persistedBytes;
+        this.totalCompressionTime = totalCompressionTime;
+        this.decompressionCount = decompressionCount;
+        this.totalDecompressionTime = totalDecompressionTime;
+    }
+
+    /**
+     * @return The number of values that were persisted in compressed form.
+     */
+    public long compressedCount() {
+        return compressedCount;
+    }
+
+    /**
+     * @return The number of values that were persisted uncompressed, either because they were smaller than the
+     * compression threshold or because compressing them did not reduce their size.
+     */
+    public long uncompressedCount() {
+        return uncompressedCount;
+    }
+
+    /**
+     * @return The number of bytes of all persisted values before compression.
+     */
+    public long serializedBytes() {
+        return serializedBytes;
+    }
+
+    /**
+     * @return The number of bytes of all persisted values after compression.
+     */
+    public long persistedBytes() {
+        return persistedBytes;
+    }
+
+    /**
+     * @return The ratio of serialized bytes to persisted bytes or {@code 1.0} if no value was persisted.
+     */
+    public double compressionRatio() {
+        return persistedBytes == 0L ? 1.0d : (double) serializedBytes / persistedBytes;
+    }
+
+    /**
+     * @return The total number of nanoseconds that were spent compressing values, including attempts that did not
+     * reduce a value's size.
+     */
+    public long totalCompressionTime() {
+        return totalCompressionTime;
+    }
+
+    /**
+     * @return The number of values that were decompressed.
+     */
+    public long decompressionCount() {
+        return decompressionCount;
+    }
+
+    /**
+     * @return The total number of nanoseconds that were spent decompressing values.
+     */
+    public long totalDecompressionTime() {
+        return totalDecompressionTime;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) return true;
+        if (other == null || getClass() != other.getClass()) return false;
+        CompressionStats that = (CompressionStats) other;
+        return compressedCount == that.compressedCount
+                && uncompressedCount == that.uncompressedCount
+                && serializedBytes == that.serializedBytes
+                && persistedBytes == that.persistedBytes
+                && totalCompressionTime == that.totalCompressionTime
+                && decompressionCount == that.decompressionCount
+                && totalDecompressionTime == that.totalDecompressionTime;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(compressedCount, uncompressedCount, serializedBytes, persistedBytes,
+                totalCompressionTime, decompressionCount, totalDecompressionTime);
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+                .add("compressedCount", compressedCount)
+                .add("uncompressedCount", uncompressedCount)
+                .add("serializedBytes", serializedBytes)
+                .add("persistedBytes", persistedBytes)
+                .add("totalCompressionTime", totalCompressionTime)
+                .add("decompressionCount", decompressionCount)
+                .add("totalDecompressionTime", totalDecompressionTime)
+                .toString();
+    }
+}
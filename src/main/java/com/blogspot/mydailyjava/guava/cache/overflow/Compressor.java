@@ -0,0 +1,32 @@
+package com.blogspot.mydailyjava.guava.cache.overflow;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Compresses serialized values before they are persisted. Implementations must be thread-safe. A deflate based
+ * implementation is provided by {@link Compressors}.
+ */
+public interface Compressor {
+
+    /**
+     * Compresses a serialized value. If the returned buffer is not smaller than the given buffer, the value is
+     * persisted uncompressed.
+     *
+     * @param buffer A buffer containing the serialized value between its position and its limit.
+     * @return A buffer containing the compressed value between its position and its limit.
+     * @throws IOException If the value cannot be compressed.
+     */
+    ByteBuffer compress(ByteBuffer buffer) throws IOException;
+
+    /**
+     * Decompresses a value that was compressed by {@link #compress(java.nio.ByteBuffer)}. The buffer might not be
+     * backed by an array and must not be retained after this method returns.
+     *
+     * @param buffer A buffer containing the compressed value between its position and its limit.
+     * @param length The length of the value before it was compressed.
+     * @return A buffer containing the decompressed value between its position and its limit.
+     * @throws IOException If the value cannot be decompressed.
+     */
+    ByteBuffer decompress(ByteBuffer buffer, int length) throws IOException;
+}
@@ -0,0 +1,120 @@
+package com.blogspot.mydailyjava.guava.cache.overflow;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Provides {@link Compressor} implementations.
+ */
+public final class Compressors {
+
+    private Compressors() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * @return A compressor that uses the JDK's deflate implementation with the default compression level.
+     */
+    public static Compressor deflate() {
+        return deflate(Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * @param level The compression level between {@code 0} and {@code 9} or {@code -1} for the default level.
+     * @return A compressor that uses the JDK's deflate implementation with the given compression level.
+     */
+    public static Compressor deflate(int level) {
+        checkArgument(level == Deflater.DEFAULT_COMPRESSION || (level >= Deflater.NO_COMPRESSION && level <= Deflater.BEST_COMPRESSION));
+        return new DeflateCompressor(level);
+    }
+
+    private static class DeflateCompressor implements Compressor {
+
+        private final int level;
+
+        // Note: Deflaters and inflaters hold native memory and are therefore reused by each thread
+        private final ThreadLocal<Deflater> deflater;
+        private final ThreadLocal<Inflater> inflater;
+
+        private DeflateCompressor(final int level) {
+            this.level = level;
+            this.deflater = new ThreadLocal<Deflater>() {
+                @Override
+                protected Deflater initialValue() {
+                    return new Deflater(level, true);
+                }
+            };
+            this.inflater = new ThreadLocal<Inflater>() {
+                @Override
+                protected Inflater initialValue() {
+                    return new Inflater(true);
+                }
+            };
+        }
+
+        @Override
+        public ByteBuffer compress(ByteBuffer buffer) {
+            Deflater deflater = this.deflater.get();
+            deflater.reset();
+            setInput(buffer, deflater);
+            deflater.finish();
+            byte[] output = new byte[Math.max(64, buffer.remaining() / 2)];
+            int length = 0;
+            while (!deflater.finished()) {
+                if (length == output.length) {
+                    output = Arrays.copyOf(output, output.length * 2);
+                }
+                length += deflater.deflate(output, length, output.length - length);
+            }
+            return ByteBuffer.wrap(output, 0, length);
+        }
+
+        private static void setInput(ByteBuffer buffer, Deflater deflater) {
+            if (buffer.hasArray()) {
+                deflater.setInput(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            } else {
+                byte[] input = new byte[buffer.remaining()];
+                buffer.duplicate().get(input);
+                deflater.setInput(input);
+            }
+        }
+
+        @Override
+        public ByteBuffer decompress(ByteBuffer buffer, int length) throws IOException {
+            Inflater inflater = this.inflater.get();
+            inflater.reset();
+            if (buffer.hasArray()) {
+                inflater.setInput(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            } else {
+                byte[] input = new byte[buffer.remaining()];
+                buffer.get(input);
+                inflater.setInput(input);
+            }
+            byte[] output = new byte[length];
+            int offset = 0;
+            try {
+                while (offset < length) {
+                    int inflated = inflater.inflate(output, offset, length - offset);
+                    if (inflated == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                        throw new IOException(String.format("Compressed value ended after %d of %d bytes", offset, length));
+                    }
+                    offset += inflated;
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Could not decompress value", e);
+            }
+            return ByteBuffer.wrap(output);
+        }
+
+        @Override
+        public String toString() {
+            return "DeflateCompressor{level=" + level + '}';
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.blogspot.mydailyjava.guava.cache.overflow;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounds the number and the size of persisted entries by a CLOCK policy. Persisted entries are kept in a queue in
+ * the order they were written. An entry that was read since the clock hand last passed it is given a second chance
+ * by being moved to the end of the queue, any other entry is evicted.
+ */
+class DiskEvictionPolicy<K> {
+
+    private final long maximumEntries;
+    private final long maximumBytes;
+
+    private final ConcurrentMap<K, Entry<K>> entries;
+    private final Queue<Entry<K>> clock;
+    private final AtomicInteger clockSize;
+    private final AtomicLong byteSize;
+
+    DiskEvictionPolicy(long maximumEntries, long maximumBytes) {
+        this.maximumEntries = maximumEntries;
+        this.maximumBytes = maximumBytes;
+        this.entries = new ConcurrentHashMap<K, Entry<K>>();
+        this.clock = new ConcurrentLinkedQueue<Entry<K>>();
+        this.clockSize = new AtomicInteger();
+        this.byteSize = new AtomicLong();
+    }
+
+    private static class Entry<K> {
+
+        private final K key;
+        private final long size;
+
+        private volatile boolean referenced;
+        private volatile boolean removed;
+
+        private Entry(K key, long size) {
+            this.key = key;
+            this.size = size;
+        }
+    }
+
+    void recordWrite(K key, long size) {
+        Entry<K> entry = new Entry<K>(key, size);
+        byteSize.addAndGet(size);
+        release(entries.put(key, entry));
+        clock.offer(entry);
+        clockSize.incrementAndGet();
+    }
+
+    void recordAccess(K key) {
+        Entry<K> entry = entries.get(key);
+        if (entry != null) entry.referenced = true;
+    }
+
+    void recordRemoval(K key) {
+        release(entries.remove(key));
+    }
+
+    private void release(Entry<K> entry) {
+        if (entry == null) return;
+        entry.removed = true;
+        byteSize.addAndGet(-entry.size);
+    }
+
+    void clear() {
+        entries.clear();
+        clock.clear();
+        clockSize.set(0);
+        byteSize.set(0L);
+    }
+
+    /**
+     * Removes entries from this policy until its bounds are satisfied.
+     *
+     * @return The keys of the removed entries which are to be deleted from disk.
+     */
+    synchronized List<K> evict() {
+        List<K> victims = new ArrayList<K>();
+        while (entries.size() > maximumEntries || byteSize.get() > maximumBytes) {
+            Entry<K> entry = clock.poll();
+            if (entry == null) break;
+            clockSize.decrementAndGet();
+            if (entry.removed) continue;
+            if (entry.referenced) {
+                entry.referenced = false;
+                clock.offer(entry);
+                clockSize.incrementAndGet();
+            } else if (entries.remove(entry.key, entry)) {
+                release(entry);
+                victims.add(entry.key);
+            }
+        }
+        // Note: Removed entries are only dropped from the clock when they are passed such that they must be purged
+        if (clockSize.get() > 2 * entries.size() + 64) {
+            Iterator<Entry<K>> iterator = clock.iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().removed) {
+                    iterator.remove();
+                    clockSize.decrementAndGet();
+                }
+            }
+        }
+        return victims;
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    long byteSize() {
+        return byteSize.get();
+    }
+}
@@ -0,0 +1,137 @@
+package com.blogspot.mydailyjava.guava.cache.overflow;
+
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.*;
+
+/**
+ * A hashed timer wheel that expires persisted entries in bulk. Every entry is scheduled into the bucket of the tick
+ * of its deadline. A sweeper thread visits the buckets of all ticks that passed since its last run and expires all
+ * entries whose deadline passed and whose deadline was not changed in the meantime. Entries whose deadline lies more
+ * than a full rotation of the wheel in the future are kept in their bucket until a later rotation.
+ */
+abstract class ExpirationWheel<K> {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ExpirationWheel.class);
+
+    private static final int WHEEL_SIZE = 512;
+
+    private static final long MINIMUM_TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(10L), MAXIMUM_TICK_NANOS = TimeUnit.SECONDS.toNanos(1L);
+
+    private final Ticker ticker;
+    private final long tickNanos;
+    private final List<Queue<Timeout<K>>> buckets;
+    private final ConcurrentMap<K, Long> deadlines;
+    private final ScheduledExecutorService sweeper;
+
+    private long lastTick;
+
+    ExpirationWheel(Ticker ticker, long minimumDurationNanos) {
+        this.ticker = ticker;
+        this.tickNanos = Math.max(Math.min(minimumDurationNanos / 16L, MAXIMUM_TICK_NANOS), MINIMUM_TICK_NANOS);
+        this.buckets = new ArrayList<Queue<Timeout<K>>>(WHEEL_SIZE);
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            buckets.add(new ConcurrentLinkedQueue<Timeout<K>>());
+        }
+        this.deadlines = new ConcurrentHashMap<K, Long>();
+        this.lastTick = ticker.read() / tickNanos - 1L;
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("disk-expiration-%d")
+                .setDaemon(true)
+                .build());
+        sweeper.scheduleWithFixedDelay(new Sweeper(), tickNanos, tickNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private static class Timeout<K> {
+
+        private final K key;
+        private final long deadline;
+
+        private Timeout(K key, long deadline) {
+            this.key = key;
+            this.deadline = deadline;
+        }
+    }
+
+    private class Sweeper implements Runnable {
+        @Override
+        public void run() {
+            try {
+                List<K> expired = sweep();
+                if (!expired.isEmpty()) {
+                    expire(expired);
+                }
+            } catch (Exception e) {
+                LOGGER.warn("Could not delete expired entries", e);
+            }
+        }
+    }
+
+    /**
+     * Deletes entries whose deadline passed.
+     *
+     * @param keys The keys of the expired entries.
+     * @throws Exception If the entries cannot be deleted.
+     */
+    protected abstract void expire(List<K> keys) throws Exception;
+
+    void schedule(K key, long deadline) {
+        deadlines.put(key, deadline);
+        buckets.get(indexOf(deadline / tickNanos)).offer(new Timeout<K>(key, deadline));
+    }
+
+    void cancel(K key) {
+        // Note: The timeout is removed from its bucket when the bucket is visited the next time
+        deadlines.remove(key);
+    }
+
+    void clear() {
+        deadlines.clear();
+        for (Queue<Timeout<K>> bucket : buckets) {
+            bucket.clear();
+        }
+    }
+
+    int size() {
+        return deadlines.size();
+    }
+
+    synchronized List<K> sweep() {
+        long now = ticker.read();
+        // Note: The bucket of the current tick is only visited once the tick passed
+        long currentTick = now / tickNanos - 1L;
+        List<K> expired = new ArrayList<K>();
+        for (long tick = Math.max(lastTick + 1L, currentTick - WHEEL_SIZE + 1L); tick <= currentTick; tick++) {
+            Iterator<Timeout<K>> iterator = buckets.get(indexOf(tick)).iterator();
+            while (iterator.hasNext()) {
+                Timeout<K> timeout = iterator.next();
+                Long deadline = deadlines.get(timeout.key);
+                if (deadline == null || deadline != timeout.deadline) {
+                    iterator.remove();
+                } else if (timeout.deadline <= now) {
+                    iterator.remove();
+                    if (deadlines.remove(timeout.key, deadline)) {
+                        expired.add(timeout.key);
+                    }
+                }
+            }
+        }
+        lastTick = Math.max(lastTick, currentTick);
+        return expired;
+    }
+
+    private static int indexOf(long tick) {
+        return (int) (tick & (WHEEL_SIZE - 1));
+    }
+
+    void close() {
+        sweeper.shutdownNow();
+    }
+}
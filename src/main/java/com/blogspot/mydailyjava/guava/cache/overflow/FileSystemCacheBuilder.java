@@ -1,11 +1,20 @@
 package com.blogspot.mydailyjava.guava.cache.overflow;
 
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
 import com.google.common.base.Ticker;
 import com.google.common.cache.*;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.Files;
 
 import java.io.File;
+import java.util.*;
 import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
@@ -18,14 +27,52 @@ public final class FileSystemCacheBuilder<K, V> {
      * {@link com.google.common.cache.CacheBuilder#from(com.google.common.cache.CacheBuilderSpec)}
      */
     public static FileSystemCacheBuilder<Object, Object> from(CacheBuilderSpec spec) {
-        return new FileSystemCacheBuilder<Object, Object>(CacheBuilder.from(spec));
+        return from(spec.toParsableString());
     }
 
     /**
      * {@link com.google.common.cache.CacheBuilder#from(java.lang.String)}
      */
     public static FileSystemCacheBuilder<Object, Object> from(String spec) {
-        return new FileSystemCacheBuilder<Object, Object>(CacheBuilder.from(spec));
+        CacheBuilderSpec.parse(spec);
+        // Note: Expiration and refresh are applied by this builder as they also apply to persisted entries
+        List<String> underlyingSpec = new ArrayList<String>();
+        Map<String, Long> durations = new HashMap<String, Long>();
+        for (String option : Splitter.on(',').trimResults().omitEmptyStrings().split(spec)) {
+            List<String> keyAndValue = ImmutableList.copyOf(Splitter.on('=').trimResults().split(option));
+            if (SPEC_DURATIONS.contains(keyAndValue.get(0))) {
+                durations.put(keyAndValue.get(0), parseDuration(keyAndValue.get(1)));
+            } else {
+                underlyingSpec.add(option);
+            }
+        }
+        FileSystemCacheBuilder<Object, Object> builder = new FileSystemCacheBuilder<Object, Object>(CacheBuilder.from(Joiner.on(',').join(underlyingSpec)));
+        if (durations.containsKey("expireAfterWrite")) {
+            builder.expireAfterWrite(durations.get("expireAfterWrite"), TimeUnit.NANOSECONDS);
+        }
+        if (durations.containsKey("expireAfterAccess")) {
+            builder.expireAfterAccess(durations.get("expireAfterAccess"), TimeUnit.NANOSECONDS);
+        }
+        if (durations.containsKey("refreshAfterWrite")) {
+            builder.refreshAfterWrite(durations.get("refreshAfterWrite"), TimeUnit.NANOSECONDS);
+        }
+        return builder;
+    }
+
+    private static long parseDuration(String duration) {
+        long value = Long.parseLong(duration.substring(0, duration.length() - 1));
+        switch (duration.charAt(duration.length() - 1)) {
+            case 'd':
+                return TimeUnit.DAYS.toNanos(value);
+            case 'h':
+                return TimeUnit.HOURS.toNanos(value);
+            case 'm':
+                return TimeUnit.MINUTES.toNanos(value);
+            case 's':
+                return TimeUnit.SECONDS.toNanos(value);
+            default:
+                throw new IllegalArgumentException(String.format("Unknown time unit of %s", duration));
+        }
     }
 
     /**
@@ -35,10 +82,66 @@ public final class FileSystemCacheBuilder<K, V> {
         return new FileSystemCacheBuilder<Object, Object>();
     }
 
+    static <K, V> FileSystemCacheBuilder<K, V> of(CacheBuilder<Object, Object> cacheBuilder,
+                                                 File persistenceDirectory,
+                                                 RemovalListener<K, V> removalListener) {
+        FileSystemCacheBuilder<K, V> builder = new FileSystemCacheBuilder<K, V>(cacheBuilder);
+        checkArgument(!isRefreshing(cacheBuilder), "Persisted entries are only refreshed if refreshAfterWrite is set on a FileSystemCacheBuilder");
+        // Note: A ready-made builder only reveals its expiration by its description
+        builder.expireAfterWriteNanos = describedNanos(cacheBuilder, "expireAfterWrite");
+        builder.expireAfterAccessNanos = describedNanos(cacheBuilder, "expireAfterAccess");
+        builder.persistenceDirectories = persistenceDirectory == null ? null : ImmutableList.of(persistenceDirectory);
+        builder.removalListener = removalListener;
+        return builder;
+    }
+
+    private static long describedNanos(CacheBuilder<?, ?> cacheBuilder, String property) {
+        Matcher matcher = Pattern.compile("[{ ]" + property + "=(\\d+)ns").matcher(cacheBuilder.toString());
+        return matcher.find() ? Long.parseLong(matcher.group(1)) : -1L;
+    }
+
+    private static boolean isRefreshing(CacheBuilder<Object, Object> cacheBuilder) {
+        try {
+            cacheBuilder.build();
+            return false;
+        } catch (IllegalStateException e) {
+            // Note: A ready-made builder does not reveal its refresh interval but refuses to build a non-loading cache
+            return e.getMessage() != null && e.getMessage().contains("refreshAfterWrite");
+        }
+    }
+
+    private static final Set<String> SPEC_DURATIONS = ImmutableSet.of("expireAfterWrite", "expireAfterAccess", "refreshAfterWrite");
+
+    // Note: Persisted entries are time stamped by the wall clock unless a ticker is set explicitly
+    private static final Ticker WALL_CLOCK_TICKER = new Ticker() {
+        @Override
+        public long read() {
+            return TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+        }
+    };
+
+    private static final long DEFAULT_SKETCH_ENTRIES = 64L * 1024L;
+
     private final CacheBuilder<Object, Object> underlyingCacheBuilder;
 
     private RemovalListener<? super K, ? super V> removalListener;
-    private File persistenceDirectory;
+    private PersistenceListener persistenceListener;
+    private Serializer<?> keySerializer, valueSerializer;
+    private Compressor compressor;
+    private int compressionThreshold;
+    private List<File> persistenceDirectories;
+    private boolean weightByUsableSpace;
+    private long segmentSize;
+    private int bloomFilterExpectedInsertions;
+    private double bloomFilterFalsePositiveProbability;
+    private int writeBehindQueueSize, writeBehindThreads;
+    private boolean memoryMappedReads, fileLocking;
+    private long offHeapBytes;
+    private long maximumSize = -1L, maximumDiskEntries = -1L, maximumDiskBytes = -1L;
+    private int spillAdmissionFrequency, promotionFrequency;
+    private long expireAfterWriteNanos = -1L, expireAfterAccessNanos = -1L, refreshAfterWriteNanos = -1L;
+    private Ticker ticker;
+    private boolean warmRestart, persistOnClose;
 
     private FileSystemCacheBuilder() {
         this.underlyingCacheBuilder = CacheBuilder.newBuilder();
@@ -60,7 +163,8 @@ public final class FileSystemCacheBuilder<K, V> {
      * {@link com.google.common.cache.CacheBuilder#expireAfterAccess(long, TimeUnit)}
      */
     public FileSystemCacheBuilder<K, V> expireAfterAccess(long duration, TimeUnit unit) {
-        underlyingCacheBuilder.expireAfterWrite(duration, unit);
+        underlyingCacheBuilder.expireAfterAccess(duration, unit);
+        this.expireAfterAccessNanos = unit.toNanos(duration);
         return this;
     }
 
@@ -69,6 +173,7 @@ public final class FileSystemCacheBuilder<K, V> {
      */
     public FileSystemCacheBuilder<K, V> expireAfterWrite(long duration, TimeUnit unit) {
         underlyingCacheBuilder.expireAfterWrite(duration, unit);
+        this.expireAfterWriteNanos = unit.toNanos(duration);
         return this;
     }
 
@@ -77,6 +182,7 @@ public final class FileSystemCacheBuilder<K, V> {
      */
     public FileSystemCacheBuilder<K, V> refreshAfterWrite(long duration, TimeUnit unit) {
         underlyingCacheBuilder.refreshAfterWrite(duration, unit);
+        this.refreshAfterWriteNanos = unit.toNanos(duration);
         return this;
     }
 
@@ -93,6 +199,7 @@ public final class FileSystemCacheBuilder<K, V> {
      */
     public FileSystemCacheBuilder<K, V> maximumSize(long size) {
         underlyingCacheBuilder.maximumSize(size);
+        this.maximumSize = size;
         return this;
     }
 
@@ -141,6 +248,7 @@ public final class FileSystemCacheBuilder<K, V> {
      */
     public FileSystemCacheBuilder<K, V> ticker(Ticker ticker) {
         underlyingCacheBuilder.ticker(ticker);
+        this.ticker = ticker;
         return this;
     }
 
@@ -171,8 +279,285 @@ public final class FileSystemCacheBuilder<K, V> {
      * @return This builder.
      */
     public FileSystemCacheBuilder<K, V> persistenceDirectory(File persistenceDirectory) {
-        checkState(this.persistenceDirectory == null);
-        this.persistenceDirectory = checkNotNull(persistenceDirectory);
+        checkState(this.persistenceDirectories == null);
+        this.persistenceDirectories = ImmutableList.of(checkNotNull(persistenceDirectory));
+        return this;
+    }
+
+    /**
+     * Distributes persisted entries over several directories, for example on different devices, such that disk
+     * throughput scales with the number of devices. An entry's directory is chosen by the hash of the path that the
+     * entry is persisted to. Entries that are written together, for example by a write-behind queue, are written to
+     * each directory by a separate thread. The directories <b>must not be used for other purposes</b> and must be
+     * given in the same order when a cache is restarted.
+     *
+     * @param persistenceDirectories The directories which are used by this file cache.
+     * @return This builder.
+     */
+    public FileSystemCacheBuilder<K, V> persistenceDirectories(File... persistenceDirectories) {
+        checkState(this.persistenceDirectories == null);
+        checkArgument(persistenceDirectories.length > 0);
+        List<File> directories = ImmutableList.copyOf(persistenceDirectories);
+        checkArgument(ImmutableSet.copyOf(directories).size() == directories.size(), "Persistence directories must be distinct");
+        this.persistenceDirectories = directories;
+        return this;
+    }
+
+    /**
+     * Distributes persisted entries over the persistence directories in proportion to the space that is usable in
+     * each directory when the cache is created. As this distribution differs between processes, this setting cannot
+     * be combined with {@link #warmRestart()}.
+     *
+     * @return This builder.
+     */
+    public FileSystemCacheBuilder<K, V> weightByUsableSpace() {
+        this.weightByUsableSpace = true;
+        return this;
+    }
+
+    /**
+     * Sets a serializer for the keys of persisted entries. The serialized key is stored alongside each persisted
+     * value. By default, {@link Serializers#typed()} is used.
+     *
+     * @param serializer The serializer for keys.
+     * @return This builder.
+     */
+    public <K1 extends K, V1 extends V> FileSystemCacheBuilder<K1, V1> keySerializer(Serializer<K1> serializer) {
+        checkState(this.keySerializer == null);
+        this.keySerializer = checkNotNull(serializer);
+        @SuppressWarnings("unchecked")
+        FileSystemCacheBuilder<K1, V1> castThis = (FileSystemCacheBuilder<K1, V1>) this;
+        return castThis;
+    }
+
+    /**
+     * Sets a serializer for the values of persisted entries. By default, {@link Serializers#typed()} is used.
+     *
+     * @param serializer The serializer for values.
+     * @return This builder.
+     */
+    public <K1 extends K, V1 extends V> FileSystemCacheBuilder<K1, V1> valueSerializer(Serializer<V1> serializer) {
+        checkState(this.valueSerializer == null);
+        this.valueSerializer = checkNotNull(serializer);
+        @SuppressWarnings("unchecked")
+        FileSystemCacheBuilder<K1, V1> castThis = (FileSystemCacheBuilder<K1, V1>) this;
+        return castThis;
+    }
+
+    /**
+     * Compresses persisted values. Values are compressed after being serialized. Values that are smaller than the
+     * given threshold or that do not shrink by compression are persisted uncompressed. Statistics about the
+     * compression are available from {@link FileSystemPersistingCache#compressionStats()}.
+     *
+     * @param compressor The compressor to use, for example {@link Compressors#deflate()}.
+     * @param threshold  The minimal size of a serialized value in bytes for it to be compressed.
+     * @return This builder.
+     */
+    public FileSystemCacheBuilder<K, V> compression(Compressor compressor, int threshold) {
+        checkState(this.compressor == null);
+        checkArgument(threshold >= 0);
+        this.compressor = checkNotNull(compressor);
+        this.compressionThreshold = threshold;
+        return this;
+    }
+
+    /**
+     * Persists cache entries by appending them to pre-allocated segment files instead of creating a file for each
+     * key. Segments that mostly contain removed entries are compacted in the background. A cache that is built with
+     * this option should be closed when it is not longer in use.
+     *
+     * @param segmentSize The size of a segment file in bytes.
+     * @return This builder.
+     */
+    public FileSystemCacheBuilder<K, V> segmentedPersistence(long segmentSize) {
+        checkState(this.segmentSize == 0L);
+        checkArgument(segmentSize > 0L);
+        this.segmentSize = segmentSize;
+        return this;
+    }
+
+    /**
+     * Replaces the exact in-memory index of persisted keys by a bloom filter. Misses for keys that were never
+     * persisted are still answered without accessing the file system while the index does not longer hold every
+     * persisted key in memory. Keys of removed entries cannot be discarded from a bloom filter such that the filter
+     * is rebuilt from the headers of the persisted files once more keys were persisted than were expected.
+     *
+     * @param expectedInsertions       The number of keys that are expected to be persisted.
+     * @param falsePositiveProbability The desired probability of a key being falsely assumed to be persisted.
+     * @return This builder.
+     */
+    public FileSystemCacheBuilder<K, V> persistedKeyBloomFilter(int expectedInsertions, double falsePositiveProbability) {
+        checkState(this.bloomFilterExpectedInsertions == 0);
+        checkArgument(expectedInsertions > 0);
+        checkArgument(falsePositiveProbability > 0d && falsePositiveProbability < 1d);
+        this.bloomFilterExpectedInsertions = expectedInsertions;
+        this.bloomFilterFalsePositiveProbability = falsePositiveProbability;
+        return this;
+    }
+
+    /**
+     * Persists entries that are evicted from memory asynchronously. Evicted entries are queued and written to disk
+     * in batches by dedicated writer threads such that a thread that triggers an eviction does not need to wait for
+     * the entry to be serialized. If the queue is full, the evicting thread is blocked until an entry is dequeued.
+     * Queued entries are still visible to the cache. A cache that is built with this option should be closed when
+     * it is not longer in use in order to write all queued entries.
+     *
+     * @param queueSize     The maximum number of entries that are queued for being persisted.
+     * @param writerThreads The number of threads that persist queued entries.
+     * @return This builder.
+     */
+    public FileSystemCacheBuilder<K, V> writeBehind(int queueSize, int writerThreads) {
+        checkState(this.writeBehindQueueSize == 0);
+        checkArgument(queueSize > 0);
+        checkArgument(writerThreads > 0);
+        this.writeBehindQueueSize = queueSize;
+        this.writeBehindThreads = writerThreads;
+        return this;
+    }
+
+    /**
+     * Reads persisted entries from memory mapped files instead of streaming them from disk. Large files are mapped
+     * into memory while small files are read into a direct buffer that is reused by the reading thread. When using
+     * segmented persistence, each segment file is mapped only once.
+     *
+     * @return This builder.
+     */
+    public FileSystemCacheBuilder<K, V> memoryMappedReads() {
+        this.memoryMappedReads = true;
+        return this;
+    }
+
+    /**
+     * Locks persisted files by locks of the operating system while they are read or written such that several
+     * processes can share a persistence directory. Within a single process, access to persisted files is always
+     * synchronized by locks that are striped by key. Operating system locks add a system call to every access and
+     * serialize concurrent reads of the same key. This setting does not apply to segmented persistence.
+     *
+     * @return This builder.
+     */
+    public FileSystemCacheBuilder<K, V> fileLocking() {
+        this.fileLocking = true;
+        return this;
+    }
+
+    /**
+     * Reports spills, disk reads, promotions, deletions and invalidations together with their duration to the
+     * given listener, for example to emit them as events of a profiler. Without a listener, these operations are
+     * not timed.
+     *
+     * @param persistenceListener The listener to report to.
+     * @return This builder.
+     */
+    public FileSystemCacheBuilder<K, V> persistenceListener(PersistenceListener persistenceListener) {
+        checkState(this.persistenceListener == null);
+        this.persistenceListener = checkNotNull(persistenceListener);
+        return this;
+    }
+
+    /**
+     * Limits the number of entries that are persisted on disk. When the limit is exceeded, persisted entries are
+     * evicted by a CLOCK policy that favors entries that were recently read from disk. The removal listener is
+     * notified about any such eviction with {@link RemovalCause#SIZE}. Unlike {@link #maximumSize(long)}, this limit
+     * only applies to entries that overflowed to disk.
+     *
+     * @param maximumDiskEntries The maximum number of entries on disk.
+     * @return This builder.
+     */
+    public FileSystemCacheBuilder<K, V> maximumDiskEntries(long maximumDiskEntries) {
+        checkState(this.maximumDiskEntries == -1L);
+        checkArgument(maximumDiskEntries >= 0L);
+        this.maximumDiskEntries = maximumDiskEntries;
+        return this;
+    }
+
+    /**
+     * Limits the number of bytes of entries that are persisted on disk. An entry's size is the size of its
+     * serialized and possibly compressed form. Entries are evicted as by {@link #maximumDiskEntries(long)}.
+     *
+     * @param maximumDiskBytes The maximum number of bytes on disk.
+     * @return This builder.
+     */
+    public FileSystemCacheBuilder<K, V> maximumDiskBytes(long maximumDiskBytes) {
+        checkState(this.maximumDiskBytes == -1L);
+        checkArgument(maximumDiskBytes >= 0L);
+        this.maximumDiskBytes = maximumDiskBytes;
+        return this;
+    }
+
+    /**
+     * Adds a tier of direct memory outside of the heap between the in-memory cache and the disk. Entries that are
+     * evicted from memory are serialized into this tier first and are only written to disk when they are in turn
+     * evicted from the off-heap tier. The off-heap memory is allocated in slabs that are evicted in the order they
+     * were filled. Entries that are larger than a single slab, about a sixteenth of the given budget, are written
+     * to disk directly.
+     *
+     * @param maximumBytes The maximum number of bytes of direct memory that the off-heap tier allocates.
+     * @return This builder.
+     */
+    public FileSystemCacheBuilder<K, V> offHeapTier(long maximumBytes) {
+        checkState(this.offHeapBytes == 0L);
+        checkArgument(maximumBytes > 0L);
+        this.offHeapBytes = maximumBytes;
+        return this;
+    }
+
+    /**
+     * Only persists entries that are evicted from memory if they were accessed at least the given number of times
+     * recently. Access frequencies are estimated by a sketch that is sized by the maximum size of the cache and of its
+     * disk tier and that decays over time. Any entry that is rejected is discarded and reported to the removal
+     * listener as evicted. This way, entries that are read only once, for example by a scan, do not displace
+     * persisted entries that are read repeatedly.
+     *
+     * @param minimumFrequency The minimum number of recent accesses, at most 15.
+     * @return This builder.
+     */
+    public FileSystemCacheBuilder<K, V> spillAdmission(int minimumFrequency) {
+        checkState(this.spillAdmissionFrequency == 0);
+        checkArgument(minimumFrequency > 0 && minimumFrequency <= 15);
+        this.spillAdmissionFrequency = minimumFrequency;
+        return this;
+    }
+
+    /**
+     * Serves persisted values without moving them back into memory unless they were accessed at least the given
+     * number of times recently. This way, reading many persisted entries once, for example by a scan, does not
+     * evict the entries that are currently held in memory. Access frequencies are estimated as for
+     * {@link #spillAdmission(int)}. A value that is served without being promoted is not considered accessed such that
+     * gated promotion cannot be combined with {@link #expireAfterAccess(long, TimeUnit)}.
+     *
+     * @param minimumFrequency The minimum number of recent accesses, at most 15.
+     * @return This builder.
+     */
+    public FileSystemCacheBuilder<K, V> gatedPromotion(int minimumFrequency) {
+        checkState(this.promotionFrequency == 0);
+        checkArgument(minimumFrequency > 0 && minimumFrequency <= 15);
+        this.promotionFrequency = minimumFrequency;
+        return this;
+    }
+
+    /**
+     * Reopens the entries that a previous cache persisted to the persistence directory. Persisted files are written
+     * aside and renamed once they are complete and every persisted entry is verified by a checksum when it is read
+     * such that entries that were damaged by a crash are discarded. Segmented persistence writes a manifest of all
+     * persisted entries when the cache is closed. If no valid manifest is found, the segments are discarded as it
+     * cannot be determined which entries were removed. Entries held off-heap are written to disk when the cache is
+     * closed. The persistence directory must be set explicitly.
+     *
+     * @return This builder.
+     */
+    public FileSystemCacheBuilder<K, V> warmRestart() {
+        this.warmRestart = true;
+        return this;
+    }
+
+    /**
+     * Persists all entries that are held in memory when the cache is closed. Combined with {@link #warmRestart()},
+     * a reopened cache contains all entries of its predecessor.
+     *
+     * @return This builder.
+     */
+    public FileSystemCacheBuilder<K, V> persistOnClose() {
+        this.persistOnClose = true;
         return this;
     }
 
@@ -180,21 +565,171 @@ public final class FileSystemCacheBuilder<K, V> {
      * {@link com.google.common.cache.CacheBuilder#build()}
      */
     public <K1 extends K, V1 extends V> Cache<K1, V1> build() {
-        if (persistenceDirectory == null) {
-            return new FileSystemPersistingCache<K1, V1>(underlyingCacheBuilder, FileSystemCacheBuilder.<K1, V1>castRemovalListener(removalListener));
+        checkState(!warmRestart || persistenceDirectories != null, "A warm restart requires a persistence directory");
+        checkState(!warmRestart || !weightByUsableSpace, "A warm restart requires a stable distribution of entries");
+        checkState(promotionFrequency == 0 || expireAfterAccessNanos < 0L, "Gated promotion does not update the access time of persisted entries");
+        FileSystemPersistingCache<K1, V1> cache;
+        if (segmentSize > 0L) {
+            cache = new SegmentedPersistingCache<K1, V1>(this);
         } else {
-            return new FileSystemPersistingCache<K1, V1>(underlyingCacheBuilder, persistenceDirectory, FileSystemCacheBuilder.<K1, V1>castRemovalListener(removalListener));
+            cache = new FileSystemPersistingCache<K1, V1>(this);
+        }
+        if (warmRestart) {
+            cache.recover();
         }
+        return cache;
+    }
+
+    /**
+     * Builds a cache for {@code long} keys that locates persisted entries by an off-heap index instead of by a file
+     * per key. Keys are serialized by {@link Serializers#longs()}. The cache does not support a warm restart or
+     * segmented persistence.
+     *
+     * @return A cache for {@code long} keys.
+     */
+    public <V1 extends V> LongKeyedPersistingCache<V1> buildLongKeyed() {
+        checkState(!warmRestart, "A warm restart is not supported for long keys");
+        checkState(segmentSize == 0L, "Segmented persistence is not supported for long keys");
+        checkState(keySerializer == null || keySerializer == Serializers.longs(), "Long keys are always serialized as longs");
+        checkState(promotionFrequency == 0 || expireAfterAccessNanos < 0L, "Gated promotion does not update the access time of persisted entries");
+        @SuppressWarnings("unchecked")
+        FileSystemCacheBuilder<Long, V> castThis = (FileSystemCacheBuilder<Long, V>) (FileSystemCacheBuilder<?, V>) this;
+        return new LongKeyedPersistingCache<V1>(castThis);
     }
 
     /**
      * {@link CacheBuilder#build(com.google.common.cache.CacheLoader)}
      */
     public <K1 extends K, V1 extends V> LoadingCache<K1, V1> build(CacheLoader<? super K1, V1> loader) {
-        if (persistenceDirectory == null) {
-            return new FileSystemLoadingPersistingCache<K1, V1>(underlyingCacheBuilder, loader, FileSystemCacheBuilder.<K1, V1>castRemovalListener(removalListener));
+        checkState(!warmRestart || persistenceDirectories != null, "A warm restart requires a persistence directory");
+        checkState(!warmRestart || !weightByUsableSpace, "A warm restart requires a stable distribution of entries");
+        checkState(promotionFrequency == 0 || expireAfterAccessNanos < 0L, "Gated promotion does not update the access time of persisted entries");
+        if (segmentSize > 0L) {
+            SegmentedLoadingPersistingCache<K1, V1> cache = new SegmentedLoadingPersistingCache<K1, V1>(this, loader);
+            if (warmRestart) {
+                cache.recover();
+            }
+            return cache;
+        } else {
+            FileSystemLoadingPersistingCache<K1, V1> cache = new FileSystemLoadingPersistingCache<K1, V1>(this, loader);
+            if (warmRestart) {
+                cache.recover();
+            }
+            return cache;
+        }
+    }
+
+    CacheBuilder<Object, Object> getUnderlyingCacheBuilder() {
+        return underlyingCacheBuilder;
+    }
+
+    <K1 extends K, V1 extends V> RemovalListener<K1, V1> getRemovalListener() {
+        return FileSystemCacheBuilder.<K1, V1>castRemovalListener(removalListener);
+    }
+
+    @SuppressWarnings("unchecked")
+    <K1 extends K> Serializer<K1> getKeySerializer() {
+        return keySerializer == null ? Serializers.<K1>typed() : (Serializer<K1>) keySerializer;
+    }
+
+    @SuppressWarnings("unchecked")
+    <V1 extends V> Serializer<V1> getValueSerializer() {
+        return valueSerializer == null ? Serializers.<V1>typed() : (Serializer<V1>) valueSerializer;
+    }
+
+    List<File> getPersistenceDirectories() {
+        return persistenceDirectories == null ? ImmutableList.of(Files.createTempDir()) : persistenceDirectories;
+    }
+
+    boolean isWeightByUsableSpace() {
+        return weightByUsableSpace;
+    }
+
+    int getWriteBehindQueueSize() {
+        return writeBehindQueueSize;
+    }
+
+    int getWriteBehindThreads() {
+        return writeBehindThreads;
+    }
+
+    boolean isMemoryMappedReads() {
+        return memoryMappedReads;
+    }
+
+    boolean isFileLocking() {
+        return fileLocking;
+    }
+
+    PersistenceListener getPersistenceListener() {
+        return persistenceListener;
+    }
+
+    long getExpireAfterWriteNanos() {
+        return expireAfterWriteNanos;
+    }
+
+    long getExpireAfterAccessNanos() {
+        return expireAfterAccessNanos;
+    }
+
+    long getRefreshAfterWriteNanos() {
+        return refreshAfterWriteNanos;
+    }
+
+    Ticker getTicker() {
+        return ticker == null ? WALL_CLOCK_TICKER : ticker;
+    }
+
+    boolean isWarmRestart() {
+        return warmRestart;
+    }
+
+    boolean isPersistOnClose() {
+        return persistOnClose;
+    }
+
+    long getOffHeapBytes() {
+        return offHeapBytes;
+    }
+
+    long getSegmentSize() {
+        return segmentSize;
+    }
+
+    <K1 extends K> DiskEvictionPolicy<K1> makeDiskEvictionPolicy() {
+        if (maximumDiskEntries == -1L && maximumDiskBytes == -1L) {
+            return null;
+        }
+        return new DiskEvictionPolicy<K1>(maximumDiskEntries == -1L ? Long.MAX_VALUE : maximumDiskEntries,
+                maximumDiskBytes == -1L ? Long.MAX_VALUE : maximumDiskBytes);
+    }
+
+    FrequencySketch makeFrequencySketch() {
+        if (spillAdmissionFrequency == 0 && promotionFrequency == 0) {
+            return null;
+        }
+        long expectedEntries = Math.max(maximumSize, maximumDiskEntries);
+        return new FrequencySketch(expectedEntries > 0L ? expectedEntries : DEFAULT_SKETCH_ENTRIES);
+    }
+
+    int getSpillAdmissionFrequency() {
+        return spillAdmissionFrequency;
+    }
+
+    int getPromotionFrequency() {
+        return promotionFrequency;
+    }
+
+    CompressionStage makeCompressionStage() {
+        return new CompressionStage(compressor, compressionThreshold);
+    }
+
+    <K1 extends K> PersistedKeyIndex<K1> makePersistedKeyIndex() {
+        if (bloomFilterExpectedInsertions > 0) {
+            return PersistedKeyIndex.approximate(bloomFilterExpectedInsertions, bloomFilterFalsePositiveProbability);
         } else {
-            return new FileSystemLoadingPersistingCache<K1, V1>(underlyingCacheBuilder, loader, persistenceDirectory, FileSystemCacheBuilder.<K1, V1>castRemovalListener(removalListener));
+            return PersistedKeyIndex.exact();
         }
     }
 
@@ -211,7 +746,31 @@ public final class FileSystemCacheBuilder<K, V> {
     public String toString() {
         return "FileSystemCacheBuilder{" +
                 "underlyingCacheBuilder=" + underlyingCacheBuilder +
-                ", persistenceDirectory=" + persistenceDirectory +
+                ", persistenceDirectories=" + persistenceDirectories +
+                ", weightByUsableSpace=" + weightByUsableSpace +
+                ", keySerializer=" + keySerializer +
+                ", valueSerializer=" + valueSerializer +
+                ", compressor=" + compressor +
+                ", compressionThreshold=" + compressionThreshold +
+                ", segmentSize=" + segmentSize +
+                ", bloomFilterExpectedInsertions=" + bloomFilterExpectedInsertions +
+                ", bloomFilterFalsePositiveProbability=" + bloomFilterFalsePositiveProbability +
+                ", writeBehindQueueSize=" + writeBehindQueueSize +
+                ", writeBehindThreads=" + writeBehindThreads +
+                ", memoryMappedReads=" + memoryMappedReads +
+                ", fileLocking=" + fileLocking +
+                ", persistenceListener=" + persistenceListener +
+                ", offHeapBytes=" + offHeapBytes +
+                ", maximumSize=" + maximumSize +
+                ", maximumDiskEntries=" + maximumDiskEntries +
+                ", maximumDiskBytes=" + maximumDiskBytes +
+                ", expireAfterWriteNanos=" + expireAfterWriteNanos +
+                ", expireAfterAccessNanos=" + expireAfterAccessNanos +
+                ", refreshAfterWriteNanos=" + refreshAfterWriteNanos +
+                ", spillAdmissionFrequency=" + spillAdmissionFrequency +
+                ", promotionFrequency=" + promotionFrequency +
+                ", warmRestart=" + warmRestart +
+                ", persistOnClose=" + persistOnClose +
                 '}';
     }
 }
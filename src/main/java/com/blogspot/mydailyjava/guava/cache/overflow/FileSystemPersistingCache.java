@@ -1,21 +1,84 @@
 package com.blogspot.mydailyjava.guava.cache.overflow;
 
+import com.google.common.base.Ticker;
 import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.RemovalCause;
 import com.google.common.cache.RemovalListener;
+import com.google.common.base.Predicate;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
 import com.google.common.io.Files;
+import com.google.common.util.concurrent.Striped;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
-import java.util.Arrays;
-import java.util.List;
+import java.nio.channels.WritableByteChannel;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.zip.CRC32;
 
 public class FileSystemPersistingCache<K, V> extends AbstractPersistingCache<K, V> {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(FileSystemPersistingCache.class);
 
-    private final File persistenceRootDirectory;
+    private static final int MAPPING_THRESHOLD = 64 * 1024;
+
+    private static final int LOCK_STRIPES_PER_PROCESSOR = 4;
+
+    private static final int ROOT_SLOTS = 256;
+
+    // Note: Two levels of 256 directories keep the number of files per directory small for millions of entries
+    private static final int FAN_OUT_LEVELS = 2;
+
+    // Note: A frame starts with a checksum, the write and access time and the length of the serialized key
+    private static final int FRAME_HEADER_SIZE = 24;
+
+    private static final String TEMPORARY_FILE_PREFIX = "write-", TEMPORARY_FILE_SUFFIX = ".tmp";
+
+    // Note: A snapshot is a sequence of frames that are each prefixed by their tier and their length
+    private static final int SNAPSHOT_MAGIC = 0x47434f53, SNAPSHOT_VERSION = 1;
+    private static final byte SNAPSHOT_PERSISTED = 0, SNAPSHOT_MEMORY = 1, SNAPSHOT_END = -1;
+    private static final int SNAPSHOT_BUFFER_SIZE = 1 << 16, SNAPSHOT_BATCH_SIZE = 256;
+
+    private final List<File> persistenceRootDirectories;
+    private final int[] rootSlots;
+    private final ExecutorService[] rootWriters;
+    private final PersistedKeyIndex<K> persistedKeys;
+    private final Serializer<K> keySerializer;
+    private final Serializer<V> valueSerializer;
+    private final CompressionStage compressionStage;
+    private final boolean memoryMappedReads;
+    private final boolean fileLocking;
+    private final Striped<ReadWriteLock> fileLocks;
+    private final OffHeapStore<K> offHeapStore;
+    private final ConcurrentMap<K, ByteBuffer> spilling;
+    private final DiskEvictionPolicy<K> diskEvictionPolicy;
+    private final Ticker ticker;
+    private final long expireAfterWriteNanos, expireAfterAccessNanos;
+    private final ExpirationWheel<K> expirationWheel;
+    private final long refreshAfterWriteNanos;
+    private final boolean refreshAfterWrite;
+    private final ConcurrentMap<K, Long> promotedWriteTimes;
+    private final ThreadLocal<long[]> readWriteTime;
+    private final boolean warmRestart;
+    private final ThreadLocal<ByteBuffer> readBuffer;
+    private final ThreadLocal<int[]> readLength;
 
     protected FileSystemPersistingCache(CacheBuilder<Object, Object> cacheBuilder) {
         this(cacheBuilder, Files.createTempDir());
@@ -30,28 +93,231 @@ public class FileSystemPersistingCache<K, V> extends AbstractPersistingCache<K,
     }
 
     protected FileSystemPersistingCache(CacheBuilder<Object, Object> cacheBuilder, File persistenceDirectory, RemovalListener<K, V> removalListener) {
-        super(cacheBuilder, removalListener);
-        this.persistenceRootDirectory = validateDirectory(persistenceDirectory);
-        LOGGER.info("Persisting to {}", persistenceDirectory.getAbsolutePath());
+        this(FileSystemCacheBuilder.of(cacheBuilder, persistenceDirectory, removalListener));
+    }
+
+    FileSystemPersistingCache(FileSystemCacheBuilder<? super K, ? super V> builder) {
+        this(builder, null);
+    }
+
+    FileSystemPersistingCache(FileSystemCacheBuilder<? super K, ? super V> builder, CacheLoader<? super K, V> cacheLoader) {
+        this(builder, cacheLoader, builder.<K>getKeySerializer());
+    }
+
+    FileSystemPersistingCache(FileSystemCacheBuilder<? super K, ? super V> builder, CacheLoader<? super K, V> cacheLoader,
+                              Serializer<K> keySerializer) {
+        super(builder, cacheLoader);
+        this.persistenceRootDirectories = validateDirectories(builder.getPersistenceDirectories());
+        this.rootSlots = makeRootSlots(persistenceRootDirectories, builder.isWeightByUsableSpace());
+        if (persistenceRootDirectories.size() > 1) {
+            this.rootWriters = new ExecutorService[persistenceRootDirectories.size()];
+            for (int index = 0; index < rootWriters.length; index++) {
+                rootWriters[index] = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                        .setNameFormat("disk-writer-" + index + "-%d").setDaemon(true).build());
+            }
+        } else {
+            this.rootWriters = null;
+        }
+        this.persistedKeys = builder.makePersistedKeyIndex();
+        this.keySerializer = keySerializer;
+        this.valueSerializer = builder.getValueSerializer();
+        this.compressionStage = builder.makeCompressionStage();
+        this.memoryMappedReads = builder.isMemoryMappedReads();
+        this.fileLocking = builder.isFileLocking();
+        this.fileLocks = Striped.readWriteLock(Runtime.getRuntime().availableProcessors() * LOCK_STRIPES_PER_PROCESSOR);
+        if (builder.getOffHeapBytes() > 0L) {
+            this.offHeapStore = new OffHeapStore<K>(builder.getOffHeapBytes());
+            this.spilling = new ConcurrentHashMap<K, ByteBuffer>();
+        } else {
+            this.offHeapStore = null;
+            this.spilling = null;
+        }
+        this.diskEvictionPolicy = builder.makeDiskEvictionPolicy();
+        this.ticker = builder.getTicker();
+        this.expireAfterWriteNanos = builder.getExpireAfterWriteNanos();
+        this.expireAfterAccessNanos = builder.getExpireAfterAccessNanos();
+        if (expireAfterWriteNanos >= 0L || expireAfterAccessNanos >= 0L) {
+            this.expirationWheel = new PersistedEntryExpirationWheel(ticker, expirationNanos());
+        } else {
+            this.expirationWheel = null;
+        }
+        this.refreshAfterWriteNanos = builder.getRefreshAfterWriteNanos();
+        this.refreshAfterWrite = refreshAfterWriteNanos >= 0L && isRefreshing();
+        if (expireAfterWriteNanos >= 0L || refreshAfterWrite) {
+            // Note: A promoted value keeps the write time of its persisted frame once it is persisted again
+            this.promotedWriteTimes = new ConcurrentHashMap<K, Long>();
+            this.readWriteTime = new ThreadLocal<long[]>() {
+                @Override
+                protected long[] initialValue() {
+                    return new long[1];
+                }
+            };
+        } else {
+            this.promotedWriteTimes = null;
+            this.readWriteTime = null;
+        }
+        this.warmRestart = builder.isWarmRestart();
+        this.readBuffer = new ThreadLocal<ByteBuffer>();
+        if (isTraced()) {
+            this.readLength = new ThreadLocal<int[]>() {
+                @Override
+                protected int[] initialValue() {
+                    return new int[1];
+                }
+            };
+        } else {
+            this.readLength = null;
+        }
+        LOGGER.info("Persisting to {}", persistenceRootDirectories);
+    }
+
+    private class PersistedEntryExpirationWheel extends ExpirationWheel<K> {
+
+        private PersistedEntryExpirationWheel(Ticker ticker, long minimumDurationNanos) {
+            super(ticker, minimumDurationNanos);
+        }
+
+        @Override
+        protected void expire(List<K> keys) {
+            for (K key : keys) {
+                V value = hasRemovalListener() ? findExpired(key) : null;
+                deletePersistedIfExistent(key);
+                // Note: The retained copy of a promoted value is deleted without removing the value from memory
+                if (releaseRetained(key)) continue;
+                if (value != null) {
+                    notifyRemoval(key, value, RemovalCause.EXPIRED);
+                }
+            }
+        }
+    }
+
+    private long expirationNanos() {
+        if (expireAfterWriteNanos < 0L) return expireAfterAccessNanos;
+        if (expireAfterAccessNanos < 0L) return expireAfterWriteNanos;
+        return Math.min(expireAfterWriteNanos, expireAfterAccessNanos);
+    }
+
+    private boolean isExpired(long writeTime, long accessTime, long now) {
+        return (expireAfterWriteNanos >= 0L && now - writeTime >= expireAfterWriteNanos)
+                || (expireAfterAccessNanos >= 0L && now - accessTime >= expireAfterAccessNanos);
+    }
+
+    private long deadlineOf(long writeTime, long accessTime) {
+        if (expireAfterWriteNanos < 0L) return accessTime + expireAfterAccessNanos;
+        if (expireAfterAccessNanos < 0L) return writeTime + expireAfterWriteNanos;
+        return Math.min(writeTime + expireAfterWriteNanos, accessTime + expireAfterAccessNanos);
+    }
+
+    private void scheduleExpiration(Map<K, ByteBuffer> serialized) {
+        if (expirationWheel == null) return;
+        long now = ticker.read();
+        for (Map.Entry<K, ByteBuffer> entry : serialized.entrySet()) {
+            ByteBuffer frame = entry.getValue();
+            long deadline = deadlineOf(frame.getLong(frame.position() + 4), frame.getLong(frame.position() + 12));
+            // Note: A deadline that already passed is scheduled for the current tick of the wheel
+            expirationWheel.schedule(entry.getKey(), Math.max(deadline, now));
+        }
+    }
+
+    @Override
+    void onPromotion(K key) {
+        if (promotedWriteTimes != null) {
+            promotedWriteTimes.put(key, readWriteTime.get()[0]);
+        }
+    }
+
+    @Override
+    void onRelease(K key) {
+        if (promotedWriteTimes != null) {
+            promotedWriteTimes.remove(key);
+        }
     }
 
-    private File validateDirectory(File directory) {
-        directory.mkdirs();
-        if (!directory.exists() || !directory.isDirectory() || !directory.canRead() || !directory.canWrite()) {
-            throw new IllegalArgumentException(String.format("Directory %s cannot be used as a persistence directory",
-                    directory.getAbsolutePath()));
+    /**
+     * Reads a persisted value without checking if it expired such that an expired value can be reported.
+     */
+    private V findExpired(K key) {
+        try {
+            ByteBuffer frame = null;
+            if (offHeapStore != null) {
+                frame = offHeapStore.get(key);
+                if (frame == null) frame = spilling.get(key);
+                if (frame != null) frame = frame.duplicate();
+            }
+            if (frame == null && mightBeOnDisk(key)) {
+                frame = findFrameOnDisk(key);
+            }
+            return frame == null ? null : deserializeFrame(key, frame, false);
+        } catch (IOException e) {
+            LOGGER.warn(String.format("Could not read expired value to key %s", key), e);
+            return null;
+        }
+    }
+
+    @Override
+    boolean isRefreshDue(K key) {
+        if (!refreshAfterWrite) return false;
+        // Note: A frame carries the time its value was written such that its age is at least this long
+        return ticker.read() - readWriteTime.get()[0] >= refreshAfterWriteNanos;
+    }
+
+    private List<File> validateDirectories(List<File> directories) {
+        for (File directory : directories) {
+            directory.mkdirs();
+            if (!directory.exists() || !directory.isDirectory() || !directory.canRead() || !directory.canWrite()) {
+                throw new IllegalArgumentException(String.format("Directory %s cannot be used as a persistence directory",
+                        directory.getAbsolutePath()));
+            }
         }
-        return directory;
+        return ImmutableList.copyOf(directories);
+    }
+
+    /**
+     * Assigns each of a fixed number of hash slots to a persistence directory, in proportion to the directory's
+     * usable space if requested or evenly otherwise.
+     */
+    private static int[] makeRootSlots(List<File> directories, boolean weightByUsableSpace) {
+        double[] weights = new double[directories.size()];
+        double totalWeight = 0d;
+        for (int index = 0; index < weights.length; index++) {
+            weights[index] = weightByUsableSpace ? Math.max(directories.get(index).getUsableSpace(), 1L) : 1d;
+            totalWeight += weights[index];
+        }
+        int[] rootSlots = new int[ROOT_SLOTS];
+        int index = 0;
+        double bound = weights[0] / totalWeight;
+        for (int slot = 0; slot < ROOT_SLOTS; slot++) {
+            while ((slot + 0.5d) / ROOT_SLOTS > bound && index < weights.length - 1) {
+                bound += weights[++index] / totalWeight;
+            }
+            rootSlots[slot] = index;
+        }
+        return rootSlots;
+    }
+
+    int rootIndexFor(K key) {
+        return persistenceRootDirectories.size() == 1 ? 0 : rootIndexOf(directoryFor(key));
+    }
+
+    private int rootIndexOf(List<String> pathSegments) {
+        if (persistenceRootDirectories.size() == 1) return 0;
+        // Note: The path is hashed rather than the key as a key's hash code might differ between processes
+        return rootIndexOfHash(Hashing.murmur3_32().hashInt(pathSegments.hashCode()).asInt());
+    }
+
+    int rootIndexOfHash(int hash) {
+        return rootSlots[hash & (ROOT_SLOTS - 1)];
     }
 
-    private File pathToFileFor(K key) {
+    File pathToFileFor(K key) {
         List<String> pathSegments = directoryFor(key);
+        File persistenceRootDirectory = persistenceRootDirectories.get(rootIndexOf(pathSegments));
         File persistenceFile = persistenceRootDirectory;
         for (String pathSegment : pathSegments) {
             persistenceFile = new File(persistenceFile, pathSegment);
         }
-        if (persistenceRootDirectory.equals(persistenceFile) || persistenceFile.isDirectory()) {
-            throw new IllegalArgumentException();
+        if (persistenceRootDirectory.equals(persistenceFile)) {
+            throw new IllegalArgumentException(String.format("Key %s does not map to a file", key));
         }
         return persistenceFile;
     }
@@ -59,47 +325,674 @@ public class FileSystemPersistingCache<K, V> extends AbstractPersistingCache<K,
     @Override
     protected V findPersisted(K key) throws IOException {
         if (!isPersist(key)) return null;
+        if (offHeapStore != null) {
+            ByteBuffer buffer = offHeapStore.get(key);
+            if (buffer == null) buffer = spilling.get(key);
+            if (buffer != null) {
+                V value = readPersisted(key, buffer.duplicate());
+                if (value != null) {
+                    getStatsCounter().recordOffHeapHit();
+                }
+                return value;
+            }
+        }
+        if (!mightBeOnDisk(key)) return null;
+        long start = System.nanoTime();
+        V value = findOnDisk(key);
+        getStatsCounter().recordDiskRead(value != null, System.nanoTime() - start);
+        if (isTraced()) {
+            trace(PersistenceEvent.DISK_READ, key, value == null ? -1L : readLength.get()[0], start);
+        }
+        if (value != null && diskEvictionPolicy != null) {
+            diskEvictionPolicy.recordAccess(key);
+        }
+        return value;
+    }
+
+    V findOnDisk(K key) throws IOException {
+        if (!persistedKeys.mightContain(key)) return null;
         File persistenceFile = pathToFileFor(key);
-        if (!persistenceFile.exists()) return null;
-        FileInputStream fileInputStream = new FileInputStream(persistenceFile);
+        Lock lock = readLockFor(key);
+        if (lock != null) {
+            lock.lock();
+        }
         try {
-            FileLock fileLock = fileInputStream.getChannel().lock(0, Long.MAX_VALUE, true);
+            FileInputStream fileInputStream;
             try {
-                return readPersisted(key, fileInputStream);
+                fileInputStream = new FileInputStream(persistenceFile);
+            } catch (FileNotFoundException e) {
+                return null;
+            }
+            try {
+                FileLock fileLock = fileLocking ? fileInputStream.getChannel().lock(0, Long.MAX_VALUE, true) : null;
+                try {
+                    if (memoryMappedReads) {
+                        return readPersisted(key, readFully(fileInputStream.getChannel()));
+                    } else {
+                        return readPersisted(key, fileInputStream);
+                    }
+                } finally {
+                    if (fileLock != null) {
+                        fileLock.release();
+                    }
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+                throw new RuntimeException(e);
             } finally {
-                fileLock.release();
+                fileInputStream.close();
             }
-        } catch (Exception e) {
-            e.printStackTrace();
-            throw new RuntimeException(e);
         } finally {
-            fileInputStream.close();
+            if (lock != null) {
+                lock.unlock();
+            }
         }
     }
 
+    /**
+     * Reads the persisted form of an entry from disk without deserializing it.
+     */
+    ByteBuffer findFrameOnDisk(K key) throws IOException {
+        if (!persistedKeys.mightContain(key)) return null;
+        File persistenceFile = pathToFileFor(key);
+        Lock lock = readLockFor(key);
+        if (lock != null) {
+            lock.lock();
+        }
+        try {
+            FileInputStream fileInputStream;
+            try {
+                fileInputStream = new FileInputStream(persistenceFile);
+            } catch (FileNotFoundException e) {
+                return null;
+            }
+            try {
+                FileLock fileLock = fileLocking ? fileInputStream.getChannel().lock(0, Long.MAX_VALUE, true) : null;
+                try {
+                    return ByteBuffer.wrap(ByteStreams.toByteArray(fileInputStream));
+                } finally {
+                    if (fileLock != null) {
+                        fileLock.release();
+                    }
+                }
+            } finally {
+                fileInputStream.close();
+            }
+        } finally {
+            if (lock != null) {
+                lock.unlock();
+            }
+        }
+    }
+
+    private Lock readLockFor(K key) {
+        // Note: A file that is renamed into place is never observed partially such that it can be read without a lock
+        if (warmRestart && !fileLocking) return null;
+        // Note: A JVM does not allow two threads to hold overlapping operating system locks, even if they are shared
+        return fileLocking ? fileLocks.get(key).writeLock() : fileLocks.get(key).readLock();
+    }
+
+    private ByteBuffer readFully(FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size >= MAPPING_THRESHOLD) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0L, size);
+        }
+        // Note: Small files are cheaper to read into a buffer that is reused by the reading thread than to map
+        ByteBuffer buffer = readBuffer.get();
+        if (buffer == null || buffer.capacity() < size) {
+            buffer = ByteBuffer.allocateDirect(Math.max(Integer.highestOneBit((int) size) << 1, 4096));
+            readBuffer.set(buffer);
+        }
+        buffer.clear();
+        buffer.limit((int) size);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) break;
+        }
+        buffer.flip();
+        return buffer;
+    }
+
     @Override
     protected void persistValue(K key, V value) throws IOException {
-        if (!isPersist(key)) return;
+        if (!isPersist(key)) {
+            onRelease(key);
+            return;
+        }
+        long start = isTraced() ? System.nanoTime() : 0L;
+        ByteBuffer serialized = serialize(key, value);
+        onRelease(key);
+        int byteSize = serialized.remaining();
+        if (offHeapStore == null) {
+            writeToDisk(Collections.singletonMap(key, serialized));
+        } else {
+            // Note: A stale copy on disk would otherwise be counted twice
+            deleteFromDisk(key);
+            spill(offHeapStore.put(key, serialized));
+        }
+        scheduleExpiration(Collections.singletonMap(key, serialized));
+        if (isTraced()) {
+            trace(PersistenceEvent.SPILL, key, byteSize, start);
+        }
+    }
+
+    @Override
+    protected void persistValues(Map<K, V> values) throws IOException {
+        long start = isTraced() ? System.nanoTime() : 0L;
+        Map<K, ByteBuffer> serialized = new LinkedHashMap<K, ByteBuffer>();
+        for (Map.Entry<K, V> entry : values.entrySet()) {
+            if (isPersist(entry.getKey())) {
+                serialized.put(entry.getKey(), serialize(entry.getKey(), entry.getValue()));
+            }
+            onRelease(entry.getKey());
+        }
+        if (offHeapStore == null) {
+            writeToDisk(serialized);
+        } else {
+            for (K key : serialized.keySet()) {
+                deleteFromDisk(key);
+            }
+            spill(offHeapStore.putAll(serialized));
+        }
+        scheduleExpiration(serialized);
+        if (isTraced()) {
+            // Note: Values that are persisted together report the duration of the entire batch
+            for (Map.Entry<K, ByteBuffer> entry : serialized.entrySet()) {
+                trace(PersistenceEvent.SPILL, entry.getKey(), entry.getValue().remaining(), start);
+            }
+        }
+    }
+
+    private void spill(Map<K, ByteBuffer> evicted) throws IOException {
+        if (evicted.isEmpty()) return;
+        // Note: Spilled entries remain readable until they are written to disk
+        spilling.putAll(evicted);
+        try {
+            writeToDisk(evicted);
+        } finally {
+            for (Map.Entry<K, ByteBuffer> entry : evicted.entrySet()) {
+                if (!spilling.remove(entry.getKey(), entry.getValue())) {
+                    // Note: The entry was deleted or replaced while being spilled
+                    deleteFromDisk(entry.getKey());
+                }
+            }
+        }
+    }
+
+    private void writeToDisk(Map<K, ByteBuffer> serialized) throws IOException {
+        if (serialized.isEmpty()) return;
+        long start = System.nanoTime();
+        writeAllOnDisk(serialized);
+        getStatsCounter().recordDiskWrite(System.nanoTime() - start);
+        if (diskEvictionPolicy == null) return;
+        for (Map.Entry<K, ByteBuffer> entry : serialized.entrySet()) {
+            diskEvictionPolicy.recordWrite(entry.getKey(), entry.getValue().remaining());
+        }
+        evictFromDisk();
+    }
+
+    void evictFromDisk() {
+        if (diskEvictionPolicy == null) return;
+        for (K key : diskEvictionPolicy.evict()) {
+            V value = null;
+            if (hasRemovalListener()) {
+                try {
+                    value = findOnDisk(key);
+                } catch (IOException e) {
+                    LOGGER.warn(String.format("Could not read value to key %s that is evicted from disk", key), e);
+                }
+            }
+            deleteOnDisk(key);
+            // Note: The retained copy of a promoted value is deleted without removing the value from memory
+            if (releaseRetained(key)) continue;
+            if (value != null) {
+                notifyRemoval(key, value, RemovalCause.SIZE);
+            }
+        }
+    }
+
+    private void deleteFromDisk(K key) {
+        deleteOnDisk(key);
+        if (diskEvictionPolicy != null) {
+            diskEvictionPolicy.recordRemoval(key);
+        }
+    }
+
+    void writeOnDisk(K key, ByteBuffer serialized) throws IOException {
         File persistenceFile = pathToFileFor(key);
+        if (persistenceFile.isDirectory()) {
+            throw new IllegalArgumentException(String.format("Key %s maps to directory %s", key, persistenceFile));
+        }
+        Lock lock = fileLocks.get(key).writeLock();
+        lock.lock();
+        try {
+            writeFile(key, serialized, persistenceFile);
+        } finally {
+            lock.unlock();
+        }
+        if (persistedKeys.isSaturated()) {
+            persistedKeys.rebuild(keysOnDisk());
+        }
+    }
+
+    /**
+     * Reads the keys of all persisted files from their headers. Files that do not contain an entry for the key they
+     * are named after, such as files that are still written aside, are skipped.
+     */
+    private Iterable<K> keysOnDisk() {
+        return new Iterable<K>() {
+            @Override
+            public Iterator<K> iterator() {
+                final List<File> files = new ArrayList<File>();
+                for (File persistenceRootDirectory : persistenceRootDirectories) {
+                    collectFiles(persistenceRootDirectory, files);
+                }
+                return new AbstractIterator<K>() {
+
+                    private final Iterator<File> iterator = files.iterator();
+
+                    @Override
+                    protected K computeNext() {
+                        while (iterator.hasNext()) {
+                            K key = keyOf(iterator.next());
+                            if (key != null) return key;
+                        }
+                        return endOfData();
+                    }
+                };
+            }
+        };
+    }
+
+    private K keyOf(File file) {
+        try {
+            RecoveredFrame frame;
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+            try {
+                frame = readFrameHeader(randomAccessFile.getChannel(), 0L, randomAccessFile.length());
+            } finally {
+                randomAccessFile.close();
+            }
+            return frame == null || !pathToFileFor(frame.key).equals(file) ? null : frame.key;
+        } catch (Exception e) {
+            // Note: A file might be deleted or be incomplete while it is read
+            return null;
+        }
+    }
+
+    private void writeFile(K key, ByteBuffer serialized, File persistenceFile) throws IOException {
+        boolean replaced = persistedKeys.mightContain(key) && (persistedKeys.isPrecise() || persistenceFile.exists());
         persistenceFile.getParentFile().mkdirs();
-        FileOutputStream fileOutputStream = new FileOutputStream(persistenceFile);
+        // Note: For a warm restart, files are written aside and renamed such that a crash never leaves a partial file
+        File targetFile = warmRestart
+                ? File.createTempFile(TEMPORARY_FILE_PREFIX, TEMPORARY_FILE_SUFFIX, persistenceFile.getParentFile())
+                : persistenceFile;
+        FileOutputStream fileOutputStream = new FileOutputStream(targetFile);
         try {
-            FileLock fileLock = fileOutputStream.getChannel().lock();
+            FileChannel channel = fileOutputStream.getChannel();
+            FileLock fileLock = fileLocking ? channel.lock() : null;
             try {
-                persist(key, value, fileOutputStream);
+                ByteBuffer buffer = serialized.duplicate();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
             } finally {
-                fileLock.release();
+                if (fileLock != null) {
+                    fileLock.release();
+                }
             }
         } finally {
             fileOutputStream.close();
         }
+        if (targetFile != persistenceFile && !targetFile.renameTo(persistenceFile)
+                && !(persistenceFile.delete() && targetFile.renameTo(persistenceFile))) {
+            targetFile.delete();
+            throw new IOException(String.format("Could not rename %s to %s", targetFile, persistenceFile));
+        }
+        persistedKeys.add(key, serialized.remaining(), replaced);
     }
 
+    void writeAllOnDisk(Map<K, ByteBuffer> serialized) throws IOException {
+        if (rootWriters == null) {
+            writeAllOnRoot(0, serialized);
+            return;
+        }
+        List<Map<K, ByteBuffer>> partitions = new ArrayList<Map<K, ByteBuffer>>(rootWriters.length);
+        for (int index = 0; index < rootWriters.length; index++) {
+            partitions.add(new LinkedHashMap<K, ByteBuffer>());
+        }
+        int written = 0;
+        for (Map.Entry<K, ByteBuffer> entry : serialized.entrySet()) {
+            Map<K, ByteBuffer> partition = partitions.get(rootIndexFor(entry.getKey()));
+            if (partition.isEmpty()) written++;
+            partition.put(entry.getKey(), entry.getValue());
+        }
+        List<Future<?>> futures = new ArrayList<Future<?>>(written);
+        for (int index = 0; index < rootWriters.length; index++) {
+            final int rootIndex = index;
+            final Map<K, ByteBuffer> partition = partitions.get(index);
+            if (partition.isEmpty()) continue;
+            if (written == 1) {
+                // Note: Entries of a single directory are written without handing them to another thread
+                writeAllOnRoot(rootIndex, partition);
+                return;
+            }
+            futures.add(rootWriters[rootIndex].submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    writeAllOnRoot(rootIndex, partition);
+                    return null;
+                }
+            }));
+        }
+        awaitWrites(futures);
+    }
+
+    private static void awaitWrites(List<Future<?>> futures) throws IOException {
+        IOException exception = null;
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    exception = (IOException) e.getCause();
+                } else {
+                    exception = new IOException(e.getCause());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while writing to persistence directories");
+            }
+        }
+        if (exception != null) {
+            throw exception;
+        }
+    }
+
+    /**
+     * Writes entries that all belong to the persistence directory of the given index.
+     */
+    void writeAllOnRoot(int rootIndex, Map<K, ByteBuffer> serialized) throws IOException {
+        for (Map.Entry<K, ByteBuffer> entry : serialized.entrySet()) {
+            writeOnDisk(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Writes the form of an entry that {@link #serialize(Object, Object)} creates. Entries are no longer persisted by
+     * this method such that the persisted form can only be changed by overriding {@link #serialize(Object, Object)}
+     * and {@link #deserialize(Object, ByteBuffer)}.
+     */
+    @Deprecated
     @Override
-    protected void persist(K key, V value, OutputStream outputStream) throws IOException {
-        ObjectOutputStream objectOutputStream = new ObjectOutputStream(outputStream);
-        objectOutputStream.writeObject(value);
-        objectOutputStream.flush();
+    protected final void persist(K key, V value, OutputStream outputStream) throws IOException {
+        ByteBuffer buffer = serialize(key, value);
+        outputStream.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+    }
+
+    /**
+     * Serializes an entry by the configured key and value serializers. The serialized key is stored alongside the
+     * value such that an entry can be verified to belong to the key it was read for. If a compressor is configured,
+     * the serialized value is compressed if it exceeds the compression threshold. The entry is prefixed by a checksum
+     * and by the time it was written and last accessed such that it can expire while being persisted. An entry is
+     * considered accessed when it is persisted. It is also considered written unless it was promoted from a frame
+     * without being modified, in which case the frame's write time is retained.
+     *
+     * @param key   The entry's key.
+     * @param value The entry's value.
+     * @return A buffer that is backed by an array and contains the serialized entry.
+     * @throws IOException If the entry cannot be serialized.
+     */
+    protected ByteBuffer serialize(K key, V value) throws IOException {
+        long start = System.nanoTime();
+        ByteBuffer buffer = serializeFrame(key, value);
+        getStatsCounter().recordSerialization(buffer.remaining(), System.nanoTime() - start);
+        return buffer;
+    }
+
+    private ByteBuffer serializeFrame(K key, V value) throws IOException {
+        ByteBuffer serializedKey = keySerializer.serialize(key), serializedValue = valueSerializer.serialize(value);
+        ByteBuffer compressedValue = compressionStage.compress(serializedValue);
+        ByteBuffer buffer;
+        long now = ticker.read();
+        Long promotedWriteTime = promotedWriteTimes == null ? null : promotedWriteTimes.get(key);
+        long writeTime = promotedWriteTime == null ? now : promotedWriteTime;
+        if (compressedValue == null) {
+            buffer = ByteBuffer.allocate(FRAME_HEADER_SIZE + 1 + serializedKey.remaining() + serializedValue.remaining());
+            buffer.putInt(0).putLong(writeTime).putLong(now).putInt(serializedKey.remaining()).put(serializedKey)
+                    .put(CompressionStage.UNCOMPRESSED).put(serializedValue);
+        } else {
+            buffer = ByteBuffer.allocate(FRAME_HEADER_SIZE + 5 + serializedKey.remaining() + compressedValue.remaining());
+            buffer.putInt(0).putLong(writeTime).putLong(now).putInt(serializedKey.remaining()).put(serializedKey)
+                    .put(CompressionStage.COMPRESSED).putInt(serializedValue.remaining()).put(compressedValue);
+        }
+        buffer.flip();
+        buffer.putInt(0, checksumOf(buffer, 4));
+        return buffer;
+    }
+
+    /**
+     * Deserializes an entry that was serialized by {@link #serialize(Object, Object)}.
+     *
+     * @param key    The key that the entry is expected to belong to.
+     * @param buffer A buffer containing the serialized entry.
+     * @return The entry's value or {@code null} if the entry belongs to another key or if it expired.
+     * @throws IOException If the entry cannot be deserialized.
+     */
+    protected V deserialize(K key, ByteBuffer buffer) throws IOException {
+        long start = System.nanoTime();
+        int length = buffer.remaining();
+        try {
+            return deserializeFrame(key, buffer, true);
+        } finally {
+            getStatsCounter().recordDeserialization(length, System.nanoTime() - start);
+            if (readLength != null) {
+                readLength.get()[0] = length;
+            }
+        }
+    }
+
+    private V deserializeFrame(K key, ByteBuffer buffer, boolean checkExpiration) throws IOException {
+        int checksum = buffer.getInt();
+        // Note: Only entries that might have been written by a previous process are verified
+        if (warmRestart && checksum != checksumOf(buffer, buffer.position())) {
+            LOGGER.warn("Ignoring persisted entry to key {} with invalid checksum", key);
+            return null;
+        }
+        long writeTime = buffer.getLong(), accessTime = buffer.getLong();
+        if (checkExpiration && expirationWheel != null && isExpired(writeTime, accessTime, ticker.read())) return null;
+        if (readWriteTime != null) {
+            readWriteTime.get()[0] = writeTime;
+        }
+        int keyLength = buffer.getInt();
+        if (!isKeyOf(key, buffer, keyLength)) return null;
+        buffer.position(buffer.position() + keyLength);
+        byte compression = buffer.get();
+        switch (compression) {
+            case CompressionStage.UNCOMPRESSED:
+                return valueSerializer.deserialize(buffer);
+            case CompressionStage.COMPRESSED:
+                int length = buffer.getInt();
+                return valueSerializer.deserialize(compressionStage.decompress(buffer, length));
+            default:
+                throw new IOException(String.format("Unknown compression marker %d for key %s", compression, key));
+        }
+    }
+
+    /**
+     * Checks if a serialized key that starts at the buffer's position represents the given key.
+     */
+    boolean isKeyOf(K key, ByteBuffer buffer, int keyLength) throws IOException {
+        ByteBuffer serializedKey = buffer.slice();
+        serializedKey.limit(keyLength);
+        return key.equals(keySerializer.deserialize(serializedKey));
+    }
+
+    private static int checksumOf(ByteBuffer buffer, int from) {
+        CRC32 crc = new CRC32();
+        if (buffer.hasArray()) {
+            crc.update(buffer.array(), buffer.arrayOffset() + from, buffer.limit() - from);
+        } else {
+            ByteBuffer source = buffer.duplicate();
+            source.position(from);
+            byte[] chunk = new byte[Math.min(source.remaining(), 8192)];
+            while (source.hasRemaining()) {
+                int length = Math.min(chunk.length, source.remaining());
+                source.get(chunk, 0, length);
+                crc.update(chunk, 0, length);
+            }
+        }
+        return (int) crc.getValue();
+    }
+
+    private class RecoveredFrame {
+
+        private final K key;
+        private final long writeTime, accessTime;
+
+        private RecoveredFrame(K key, long writeTime, long accessTime) {
+            this.key = key;
+            this.writeTime = writeTime;
+            this.accessTime = accessTime;
+        }
+    }
+
+    /**
+     * Reads the key and the time stamps of a frame without reading the frame's value. The frame's checksum is only
+     * verified when the entry is read.
+     */
+    private RecoveredFrame readFrameHeader(FileChannel channel, long position, long length) throws IOException {
+        if (length < FRAME_HEADER_SIZE) return null;
+        ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+        readFully(channel, header, position);
+        header.getInt();
+        long writeTime = header.getLong(), accessTime = header.getLong();
+        int keyLength = header.getInt();
+        if (keyLength < 0 || keyLength > length - FRAME_HEADER_SIZE) return null;
+        ByteBuffer serializedKey = ByteBuffer.allocate(keyLength);
+        readFully(channel, serializedKey, position + FRAME_HEADER_SIZE);
+        try {
+            return new RecoveredFrame(keySerializer.deserialize(serializedKey), writeTime, accessTime);
+        } catch (Exception e) {
+            LOGGER.debug("Could not read key of persisted entry", e);
+            return null;
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) throw new EOFException();
+            position += read;
+        }
+        buffer.flip();
+    }
+
+    private boolean registerRecovered(RecoveredFrame frame, long size) {
+        if (expirationWheel != null) {
+            if (isExpired(frame.writeTime, frame.accessTime, ticker.read())) return false;
+            expirationWheel.schedule(frame.key, deadlineOf(frame.writeTime, frame.accessTime));
+        }
+        if (diskEvictionPolicy != null) {
+            diskEvictionPolicy.recordWrite(frame.key, size);
+        }
+        return true;
+    }
+
+    /**
+     * Recovers the entries that were persisted by a previous process. Files are read in parallel where only the
+     * header of each file is read. Files that do not contain a valid entry for the key they are named after, for
+     * example files that were left behind by a crash while being written, are deleted.
+     */
+    void recover() {
+        List<File> files = new ArrayList<File>();
+        for (File persistenceRootDirectory : persistenceRootDirectories) {
+            collectFiles(persistenceRootDirectory, files);
+        }
+        int threads = Runtime.getRuntime().availableProcessors();
+        ExecutorService executorService = Executors.newFixedThreadPool(threads);
+        final AtomicInteger recovered = new AtomicInteger();
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (final List<File> partition : Lists.partition(files, Math.max(files.size() / (threads * 4), 1))) {
+                futures.add(executorService.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (File file : partition) {
+                            if (recoverFile(file)) {
+                                recovered.incrementAndGet();
+                            } else if (!file.delete()) {
+                                LOGGER.warn("Could not delete unrecoverable file {}", file);
+                            }
+                        }
+                    }
+                }));
+            }
+            awaitRecovery(futures);
+        } finally {
+            executorService.shutdown();
+        }
+        evictFromDisk();
+        LOGGER.info("Recovered {} persisted entries from {}", recovered.get(), persistenceRootDirectories);
+    }
+
+    private static void collectFiles(File directory, List<File> files) {
+        File[] children = directory.listFiles();
+        if (children == null) return;
+        for (File child : children) {
+            if (child.isDirectory()) {
+                collectFiles(child, files);
+            } else {
+                files.add(child);
+            }
+        }
+    }
+
+    private boolean recoverFile(File file) {
+        try {
+            RecoveredFrame frame;
+            long length;
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+            try {
+                length = randomAccessFile.length();
+                frame = readFrameHeader(randomAccessFile.getChannel(), 0L, length);
+            } finally {
+                randomAccessFile.close();
+            }
+            if (frame == null || !isPersist(frame.key) || !pathToFileFor(frame.key).equals(file)) return false;
+            if (!registerRecovered(frame, length)) return false;
+            persistedKeys.add(frame.key, length, false);
+            return true;
+        } catch (Exception e) {
+            LOGGER.debug(String.format("Could not recover %s", file), e);
+            return false;
+        }
+    }
+
+    private void awaitRecovery(List<Future<?>> futures) {
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                LOGGER.warn("Could not recover persisted entries", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Creates a reader that recovers the keys of the records of a segment store.
+     */
+    SegmentStore.RecordReader<K> recoveringRecordReader() {
+        return new SegmentStore.RecordReader<K>() {
+            @Override
+            public K readKey(FileChannel channel, long position, int length) throws IOException {
+                RecoveredFrame frame = readFrameHeader(channel, position, length);
+                if (frame == null || !isPersist(frame.key) || !registerRecovered(frame, length)) return null;
+                return frame.key;
+            }
+        };
     }
 
     @Override
@@ -107,52 +1000,457 @@ public class FileSystemPersistingCache<K, V> extends AbstractPersistingCache<K,
         return true;
     }
 
+    /**
+     * Determines the path of the file that a key's entry is persisted to by a 128 bit hash of the serialized key.
+     * The first bytes of the hash name the directories of a fan-out tree and the remaining bytes name the file. The
+     * serialized key is stored within the file such that an entry is never read for another key.
+     *
+     * @param key The key of the entry.
+     * @return The path of the file relative to the persistence directory.
+     */
     @Override
     protected List<String> directoryFor(K key) {
-        return Arrays.asList(key.toString());
+        ByteBuffer serializedKey;
+        try {
+            serializedKey = keySerializer.serialize(key);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(String.format("Could not serialize key %s", key), e);
+        }
+        String hash;
+        if (serializedKey.hasArray()) {
+            hash = Hashing.murmur3_128().hashBytes(serializedKey.array(),
+                    serializedKey.arrayOffset() + serializedKey.position(), serializedKey.remaining()).toString();
+        } else {
+            byte[] bytes = new byte[serializedKey.remaining()];
+            serializedKey.duplicate().get(bytes);
+            hash = Hashing.murmur3_128().hashBytes(bytes).toString();
+        }
+        String[] pathSegments = new String[FAN_OUT_LEVELS + 1];
+        for (int level = 0; level < FAN_OUT_LEVELS; level++) {
+            pathSegments[level] = hash.substring(level * 2, level * 2 + 2);
+        }
+        pathSegments[FAN_OUT_LEVELS] = hash.substring(FAN_OUT_LEVELS * 2);
+        return Arrays.asList(pathSegments);
     }
 
+    /**
+     * Reads the form of an entry that {@link #serialize(Object, Object)} creates. The persisted form can only be
+     * changed by overriding {@link #serialize(Object, Object)} and {@link #deserialize(Object, ByteBuffer)}.
+     */
+    @Deprecated
     @Override
-    @SuppressWarnings("unchecked")
-    protected V readPersisted(K key, InputStream inputStream) throws IOException {
-        try {
-            return (V) new ObjectInputStream(inputStream).readObject();
-        } catch (ClassNotFoundException e) {
-            throw new RuntimeException(String.format("Serialized version assigned by %s was invalid", key), e);
-        }
+    protected final V readPersisted(K key, InputStream inputStream) throws IOException {
+        return readPersisted(key, ByteBuffer.wrap(ByteStreams.toByteArray(inputStream)));
+    }
+
+    /**
+     * Reads a persisted value from a buffer that contains the value's persisted form as written by
+     * {@link #serialize(Object, Object)}. The buffer might not be backed by an array and must not be used after this
+     * method returns.
+     *
+     * @param key    The key of the persisted value.
+     * @param buffer A buffer containing the persisted value.
+     * @return The persisted value.
+     * @throws IOException If the value cannot be read.
+     */
+    protected final V readPersisted(K key, ByteBuffer buffer) throws IOException {
+        return deserialize(key, buffer);
     }
 
     @Override
     protected void deletePersistedIfExistent(K key) {
+        long start = isTraced() ? System.nanoTime() : 0L;
+        if (expirationWheel != null) {
+            expirationWheel.cancel(key);
+        }
+        if (offHeapStore != null) {
+            offHeapStore.remove(key);
+            spilling.remove(key);
+        }
+        deleteFromDisk(key);
+        if (isTraced()) {
+            trace(PersistenceEvent.DELETION, key, -1L, start);
+        }
+    }
+
+    @Override
+    boolean hasPersistedCopy(K key) {
+        if (offHeapStore != null && (offHeapStore.contains(key) || spilling.containsKey(key))) return true;
+        return containsOnDisk(key);
+    }
+
+    @Override
+    boolean containsPersisted(K key) {
+        return hasPersistedCopy(key);
+    }
+
+    @Override
+    protected Iterator<K> persistedKeyIterator() {
+        Iterator<K> onDisk = diskKeyIterator();
+        if (offHeapStore == null) return onDisk;
+        Iterator<K> spilled = Iterators.filter(spilling.keySet().iterator(), new Predicate<K>() {
+            @Override
+            public boolean apply(K key) {
+                return !offHeapStore.contains(key);
+            }
+        });
+        // Note: An entry that is spilled remains off-heap until it is written to disk
+        onDisk = Iterators.filter(onDisk, new Predicate<K>() {
+            @Override
+            public boolean apply(K key) {
+                return !offHeapStore.contains(key) && !spilling.containsKey(key);
+            }
+        });
+        return Iterators.concat(offHeapStore.keys(), spilled, onDisk);
+    }
+
+    Iterator<K> diskKeyIterator() {
+        Iterator<K> keys = persistedKeys.keys();
+        return keys == null ? new PersistedFileKeyIterator() : keys;
+    }
+
+    /**
+     * Iterates over the keys of persisted files by reading the header of each file without reading its value. The
+     * directory tree is traversed lazily such that only the names of a single directory are held at a time.
+     */
+    private class PersistedFileKeyIterator extends AbstractIterator<K> {
+
+        private final Deque<File> files = new ArrayDeque<File>(persistenceRootDirectories);
+
+        @Override
+        protected K computeNext() {
+            while (!files.isEmpty()) {
+                File file = files.pop();
+                if (file.isDirectory()) {
+                    File[] children = file.listFiles();
+                    if (children != null) {
+                        files.addAll(Arrays.asList(children));
+                    }
+                    continue;
+                }
+                K key = readKey(file);
+                if (key != null) return key;
+            }
+            return endOfData();
+        }
+
+        private K readKey(File file) {
+            try {
+                RecoveredFrame frame;
+                RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+                try {
+                    frame = readFrameHeader(randomAccessFile.getChannel(), 0L, randomAccessFile.length());
+                } finally {
+                    randomAccessFile.close();
+                }
+                return frame != null && isPersist(frame.key) && pathToFileFor(frame.key).equals(file) ? frame.key : null;
+            } catch (IOException e) {
+                // Note: A file might be deleted or be incomplete while it is read
+                return null;
+            }
+        }
+    }
+
+    boolean mightBeOnDisk(K key) {
+        return persistedKeys.mightContain(key);
+    }
+
+    boolean containsOnDisk(K key) {
+        return persistedKeys.mightContain(key) && (persistedKeys.isPrecise() || pathToFileFor(key).exists());
+    }
+
+    void deleteOnDisk(K key) {
+        if (!persistedKeys.mightContain(key)) return;
         File file = pathToFileFor(key);
-        file.delete();
+        Lock lock = fileLocks.get(key).writeLock();
+        lock.lock();
+        try {
+            persistedKeys.remove(key, file.delete());
+        } finally {
+            lock.unlock();
+        }
     }
 
     @Override
     protected void deleteAllPersisted() {
-        for (File file : persistenceRootDirectory.listFiles()) {
-            file.delete();
+        if (expirationWheel != null) {
+            expirationWheel.clear();
+        }
+        if (promotedWriteTimes != null) {
+            promotedWriteTimes.clear();
+        }
+        if (offHeapStore != null) {
+            offHeapStore.clear();
+            spilling.clear();
+        }
+        if (diskEvictionPolicy != null) {
+            diskEvictionPolicy.clear();
+        }
+        deleteAllOnDisk();
+    }
+
+    void deleteAllOnDisk() {
+        persistedKeys.clear();
+        for (File persistenceRootDirectory : persistenceRootDirectories) {
+            deleteContents(persistenceRootDirectory);
+        }
+    }
+
+    private static void deleteContents(File directory) {
+        File[] children = directory.listFiles();
+        if (children == null) return;
+        for (File child : children) {
+            if (child.isDirectory()) {
+                deleteContents(child);
+            }
+            child.delete();
         }
     }
 
     @Override
     protected int sizeOfPersisted() {
-        return countFilesInFolders(persistenceRootDirectory);
+        return offHeapStore == null ? sizeOnDisk() : offHeapStore.size() + spilling.size() + sizeOnDisk();
     }
 
-    private int countFilesInFolders(File directory) {
-        int size = 0;
-        for (File file : directory.listFiles()) {
-            if (file.isDirectory()) {
-                size += countFilesInFolders(file);
-            } else if (!file.getName().startsWith(".")) {
-                size++;
+    int sizeOnDisk() {
+        return persistedKeys.size();
+    }
+
+    /**
+     * Writes all entries of this cache to a snapshot file that can be imported by
+     * {@link #importSnapshot(java.io.File, boolean)}, for example to warm up the cache of another process. The file
+     * is written sequentially. Entries that are held in memory are written first and are marked as such. Persisted
+     * entries are copied in their persisted form without being deserialized. Entries that are added or removed while
+     * the snapshot is written might or might not be included.
+     *
+     * @param snapshot The file to write the snapshot to.
+     * @return The number of entries that were written.
+     * @throws IOException If the snapshot cannot be written.
+     */
+    public long exportSnapshot(File snapshot) throws IOException {
+        ConcurrentMap<K, V> heap = getUnderlyingCache().asMap();
+        DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(snapshot), SNAPSHOT_BUFFER_SIZE));
+        long exported = 0L;
+        try {
+            outputStream.writeInt(SNAPSHOT_MAGIC);
+            outputStream.writeInt(SNAPSHOT_VERSION);
+            WritableByteChannel channel = Channels.newChannel(outputStream);
+            Iterator<K> keys = keyIterator();
+            while (keys.hasNext()) {
+                K key = keys.next();
+                if (!isPersist(key)) continue;
+                byte tier = SNAPSHOT_MEMORY;
+                V value = heap.get(key);
+                if (value == null) {
+                    tier = SNAPSHOT_PERSISTED;
+                    value = peekQueued(key);
+                }
+                ByteBuffer frame = value == null ? findFrame(key) : serializeFrame(key, value);
+                if (frame == null) continue;
+                outputStream.writeByte(tier);
+                outputStream.writeInt(frame.remaining());
+                while (frame.hasRemaining()) {
+                    channel.write(frame);
+                }
+                exported++;
             }
+            outputStream.writeByte(SNAPSHOT_END);
+        } finally {
+            outputStream.close();
+        }
+        LOGGER.info("Exported {} entries to snapshot {}", exported, snapshot);
+        return exported;
+    }
+
+    private ByteBuffer findFrame(K key) throws IOException {
+        if (offHeapStore != null) {
+            ByteBuffer buffer = offHeapStore.get(key);
+            if (buffer == null) buffer = spilling.get(key);
+            if (buffer != null) return buffer.duplicate();
         }
-        return size;
+        return mightBeOnDisk(key) ? findFrameOnDisk(key) : null;
+    }
+
+    /**
+     * Imports a snapshot that was written by {@link #exportSnapshot(java.io.File)}. The snapshot is read
+     * sequentially while its entries are written to disk in batches by parallel threads without being deserialized
+     * and without passing the in-memory cache. The snapshot must have been written by a cache that uses the same
+     * serializers and compressor as this cache. Entries of keys that this cache already contains, entries that are
+     * expired and entries that are damaged are skipped.
+     *
+     * @param snapshot      The snapshot file to read.
+     * @param restoreMemory {@code true} if entries that were held in memory by the exporting cache should be put
+     *                      into memory instead of being written to disk.
+     * @return The number of entries that were imported.
+     * @throws IOException If the snapshot cannot be read or if an entry cannot be written.
+     */
+    public long importSnapshot(File snapshot, boolean restoreMemory) throws IOException {
+        DataInputStream inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshot), SNAPSHOT_BUFFER_SIZE));
+        int threads = Runtime.getRuntime().availableProcessors();
+        // Note: The reading thread writes a batch itself if all importing threads are busy
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(threads * 2),
+                new ThreadFactoryBuilder().setNameFormat("snapshot-import-%d").setDaemon(true).build(),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        AtomicLong imported = new AtomicLong();
+        AtomicReference<IOException> failure = new AtomicReference<IOException>();
+        try {
+            if (inputStream.readInt() != SNAPSHOT_MAGIC || inputStream.readInt() != SNAPSHOT_VERSION) {
+                throw new IOException(String.format("%s is not a snapshot of a supported version", snapshot));
+            }
+            List<ByteBuffer> frames = new ArrayList<ByteBuffer>(SNAPSHOT_BATCH_SIZE);
+            List<Boolean> tiers = new ArrayList<Boolean>(SNAPSHOT_BATCH_SIZE);
+            byte tier;
+            while ((tier = inputStream.readByte()) != SNAPSHOT_END) {
+                byte[] frame = new byte[inputStream.readInt()];
+                inputStream.readFully(frame);
+                frames.add(ByteBuffer.wrap(frame));
+                tiers.add(restoreMemory && tier == SNAPSHOT_MEMORY);
+                if (frames.size() == SNAPSHOT_BATCH_SIZE) {
+                    executor.execute(new SnapshotImport(frames, tiers, imported, failure));
+                    frames = new ArrayList<ByteBuffer>(SNAPSHOT_BATCH_SIZE);
+                    tiers = new ArrayList<Boolean>(SNAPSHOT_BATCH_SIZE);
+                }
+            }
+            executor.execute(new SnapshotImport(frames, tiers, imported, failure));
+        } finally {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            inputStream.close();
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        evictFromDisk();
+        LOGGER.info("Imported {} entries from snapshot {}", imported.get(), snapshot);
+        return imported.get();
+    }
+
+    private class SnapshotImport implements Runnable {
+
+        private final List<ByteBuffer> frames;
+        private final List<Boolean> tiers;
+        private final AtomicLong imported;
+        private final AtomicReference<IOException> failure;
+
+        private SnapshotImport(List<ByteBuffer> frames, List<Boolean> tiers, AtomicLong imported, AtomicReference<IOException> failure) {
+            this.frames = frames;
+            this.tiers = tiers;
+            this.imported = imported;
+            this.failure = failure;
+        }
+
+        @Override
+        public void run() {
+            Map<K, ByteBuffer> serialized = new LinkedHashMap<K, ByteBuffer>();
+            Map<K, RecoveredFrame> headers = new HashMap<K, RecoveredFrame>();
+            try {
+                for (int index = 0; index < frames.size(); index++) {
+                    ByteBuffer frame = frames.get(index);
+                    RecoveredFrame header = readFrameHeader(frame);
+                    if (header == null || !isPersist(header.key) || isContained(header.key)) continue;
+                    if (expirationWheel != null && isExpired(header.writeTime, header.accessTime, ticker.read())) continue;
+                    if (tiers.get(index)) {
+                        V value = deserialize(header.key, frame.duplicate());
+                        if (value == null) continue;
+                        onPromotion(header.key);
+                        if (getUnderlyingCache().asMap().putIfAbsent(header.key, value) == null) {
+                            imported.incrementAndGet();
+                        } else {
+                            onRelease(header.key);
+                        }
+                    } else {
+                        serialized.put(header.key, frame);
+                        headers.put(header.key, header);
+                    }
+                }
+                writeAllOnDisk(serialized);
+                for (Map.Entry<K, ByteBuffer> entry : serialized.entrySet()) {
+                    registerRecovered(headers.get(entry.getKey()), entry.getValue().remaining());
+                }
+                imported.addAndGet(serialized.size());
+            } catch (IOException e) {
+                failure.compareAndSet(null, e);
+            } catch (RuntimeException e) {
+                failure.compareAndSet(null, new IOException(e));
+            }
+        }
+
+        private boolean isContained(K key) {
+            return getUnderlyingCache().asMap().containsKey(key) || peekQueued(key) != null || hasPersistedCopy(key);
+        }
+    }
+
+    /**
+     * Reads the key and the time stamps of a frame that is held in memory and verifies the frame's checksum.
+     */
+    private RecoveredFrame readFrameHeader(ByteBuffer frame) {
+        if (frame.remaining() < FRAME_HEADER_SIZE || frame.getInt(frame.position()) != checksumOf(frame, frame.position() + 4)) {
+            LOGGER.warn("Ignoring damaged entry of snapshot");
+            return null;
+        }
+        ByteBuffer header = frame.duplicate();
+        header.getInt();
+        long writeTime = header.getLong(), accessTime = header.getLong();
+        int keyLength = header.getInt();
+        if (keyLength < 0 || keyLength > header.remaining()) return null;
+        ByteBuffer serializedKey = header.slice();
+        serializedKey.limit(keyLength);
+        try {
+            return new RecoveredFrame(keySerializer.deserialize(serializedKey), writeTime, accessTime);
+        } catch (Exception e) {
+            LOGGER.debug("Could not read key of snapshot entry", e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns statistics about the compression of persisted values. If no compressor is configured, all values are
+     * counted as uncompressed.
+     *
+     * @return A snapshot of this cache's compression statistics.
+     */
+    public CompressionStats compressionStats() {
+        return compressionStage.stats();
+    }
+
+    protected boolean isMemoryMappedReads() {
+        return memoryMappedReads;
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        if (expirationWheel != null) {
+            expirationWheel.close();
+        }
+        if (offHeapStore != null && warmRestart) {
+            try {
+                writeToDisk(offHeapStore.drain());
+            } catch (IOException e) {
+                LOGGER.warn("Could not write off-heap entries to disk", e);
+            }
+        }
+        if (rootWriters != null) {
+            for (ExecutorService rootWriter : rootWriters) {
+                rootWriter.shutdown();
+            }
+        }
+    }
+
+    boolean isWarmRestart() {
+        return warmRestart;
     }
 
     public File getPersistenceRootDirectory() {
-        return persistenceRootDirectory;
+        return persistenceRootDirectories.get(0);
+    }
+
+    public List<File> getPersistenceRootDirectories() {
+        return persistenceRootDirectories;
     }
 }
@@ -0,0 +1,88 @@
+package com.blogspot.mydailyjava.guava.cache.overflow;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Estimates how often a key was accessed recently by a count-min sketch of four bit counters. Each key is counted
+ * by four counters that are located in a single long. Once the number of recorded accesses reaches ten times the
+ * number of longs, all counters are halved such that the sketch ages and follows a changing working set. Concurrent
+ * increments might occasionally be lost which does only affect the accuracy of the estimate.
+ */
+class FrequencySketch {
+
+    private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final int MAXIMUM_FREQUENCY = 15, MINIMUM_CAPACITY = 64, MAXIMUM_CAPACITY = 1 << 30, SAMPLE_FACTOR = 10;
+
+    private final AtomicLongArray table;
+    private final int tableMask;
+    private final int sampleSize;
+    private final AtomicInteger additions;
+
+    FrequencySketch(long expectedEntries) {
+        int capacity = MINIMUM_CAPACITY;
+        while (capacity < expectedEntries && capacity < MAXIMUM_CAPACITY) {
+            capacity <<= 1;
+        }
+        this.table = new AtomicLongArray(capacity);
+        this.tableMask = capacity - 1;
+        this.sampleSize = capacity > MAXIMUM_CAPACITY / SAMPLE_FACTOR ? Integer.MAX_VALUE : capacity * SAMPLE_FACTOR;
+        this.additions = new AtomicInteger();
+    }
+
+    int frequency(Object key) {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        int frequency = MAXIMUM_FREQUENCY;
+        for (int i = 0; i < 4; i++) {
+            long word = table.get(indexOf(hash, i));
+            frequency = Math.min(frequency, (int) ((word >>> ((start + i) << 2)) & 0xFL));
+        }
+        return frequency;
+    }
+
+    void increment(Object key) {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            added |= incrementAt(indexOf(hash, i), start + i);
+        }
+        if (added && additions.incrementAndGet() == sampleSize) {
+            reset();
+        }
+    }
+
+    private boolean incrementAt(int index, int counter) {
+        int offset = counter << 2;
+        long mask = 0xFL << offset;
+        while (true) {
+            long word = table.get(index);
+            if ((word & mask) == mask) return false;
+            if (table.compareAndSet(index, word, word + (1L << offset))) return true;
+        }
+    }
+
+    private void reset() {
+        for (int index = 0; index < table.length(); index++) {
+            while (true) {
+                long word = table.get(index);
+                if (table.compareAndSet(index, word, (word >>> 1) & RESET_MASK)) break;
+            }
+        }
+        additions.set(sampleSize / 2);
+    }
+
+    private int indexOf(int hash, int i) {
+        long index = (hash + SEEDS[i]) * SEEDS[i];
+        index += index >>> 32;
+        return ((int) index) & tableMask;
+    }
+
+    private static int spread(int hash) {
+        hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+        hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+        return (hash >>> 16) ^ hash;
+    }
+}
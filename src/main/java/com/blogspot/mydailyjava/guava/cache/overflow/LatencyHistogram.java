@@ -0,0 +1,47 @@
+package com.blogspot.mydailyjava.guava.cache.overflow;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records durations in buckets of powers of two nanoseconds. A percentile is estimated by the upper bound of the
+ * bucket that contains it such that an estimate is never less than the actual value and at most twice as large.
+ */
+class LatencyHistogram {
+
+    private static final int BUCKETS = 64;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+    void record(long nanos) {
+        buckets.incrementAndGet(nanos <= 0L ? 0 : BUCKETS - 1 - Long.numberOfLeadingZeros(nanos));
+    }
+
+    long[] snapshot() {
+        long[] snapshot = new long[BUCKETS];
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            snapshot[bucket] = buckets.get(bucket);
+        }
+        return snapshot;
+    }
+
+    static long count(long[] snapshot) {
+        long count = 0L;
+        for (long bucket : snapshot) {
+            count += bucket;
+        }
+        return count;
+    }
+
+    static long percentile(long[] snapshot, double percentile) {
+        long count = count(snapshot);
+        if (count == 0L) return 0L;
+        long rank = (long) Math.ceil(count * percentile), seen = 0L;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += snapshot[bucket];
+            if (seen >= Math.max(rank, 1L)) {
+                return bucket == BUCKETS - 1 ? Long.MAX_VALUE : (1L << (bucket + 1)) - 1L;
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+}
@@ -0,0 +1,64 @@
+package com.blogspot.mydailyjava.guava.cache.overflow;
+
+import com.google.common.cache.CacheLoader;
+import com.google.common.collect.ImmutableMap;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Implements the methods of {@link com.google.common.cache.LoadingCache} for a persisting cache such that the
+ * loading variants of the different persistence layouts only need to delegate to an instance of this class.
+ */
+class LoadingDelegate<K, V> {
+
+    private final AbstractPersistingCache<K, V> cache;
+    private final CacheLoader<? super K, V> cacheLoader;
+
+    LoadingDelegate(AbstractPersistingCache<K, V> cache, CacheLoader<? super K, V> cacheLoader) {
+        this.cache = cache;
+        this.cacheLoader = cacheLoader;
+    }
+
+    private class ValueLoaderFromCacheLoader implements Callable<V> {
+
+        private final K key;
+
+        private ValueLoaderFromCacheLoader(K key) {
+            this.key = key;
+        }
+
+        @Override
+        public V call() throws Exception {
+            return cacheLoader.load(key);
+        }
+    }
+
+    V get(K key) throws ExecutionException {
+        return cache.get(key, new ValueLoaderFromCacheLoader(key));
+    }
+
+    V getUnchecked(K key) {
+        try {
+            return get(key);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    ImmutableMap<K, V> getAll(Iterable<? extends K> keys) throws ExecutionException {
+        return cache.getAll(keys, cacheLoader);
+    }
+
+    V apply(K key) {
+        try {
+            return cacheLoader.load(key);
+        } catch (Exception e) {
+            throw new RuntimeException(String.format("Could not apply cache on key %s", key), e);
+        }
+    }
+
+    void refresh(K key) {
+        cache.refreshAsynchronously(key);
+    }
+}
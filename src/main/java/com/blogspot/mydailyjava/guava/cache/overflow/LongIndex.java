@@ -0,0 +1,169 @@
+package com.blogspot.mydailyjava.guava.cache.overflow;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An open-addressing hash table that maps {@code long} keys to the offset and the length of a record. The table is
+ * held in a single direct buffer where each slot consists of the key, the offset, the length and the slot's state
+ * such that neither keys nor locations are allocated on the heap. Collisions are resolved by linear probing and
+ * removed slots are marked until the table is rehashed. This class is not thread-safe.
+ */
+class LongIndex {
+
+    private static final int KEY = 0, OFFSET = 8, LENGTH = 16, STATE = 20, SLOT_SIZE = 24;
+    private static final int FREE = 0, USED = 1, REMOVED = 2;
+    private static final int MINIMUM_CAPACITY = 64, MAXIMUM_CAPACITY = 1 << 26;
+    private static final double MAXIMUM_LOAD = 0.75d;
+
+    private ByteBuffer table;
+    private int capacity, size, removed;
+
+    LongIndex() {
+        allocate(MINIMUM_CAPACITY);
+    }
+
+    private void allocate(int capacity) {
+        this.table = ByteBuffer.allocateDirect(capacity * SLOT_SIZE);
+        this.capacity = capacity;
+        this.size = 0;
+        this.removed = 0;
+    }
+
+    static int hash(long key) {
+        return (int) mix(key);
+    }
+
+    /**
+     * Returns a hash of a key that is independent of the bits that select the key's slot such that keys that are
+     * distributed over several tables by this hash still spread evenly within each table.
+     */
+    static int spread(long key) {
+        return (int) (mix(key) >>> 32);
+    }
+
+    private static long mix(long key) {
+        key = (key ^ (key >>> 33)) * 0xff51afd7ed558ccdL;
+        key = (key ^ (key >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return key ^ (key >>> 33);
+    }
+
+    /**
+     * @return The slot of the key or {@code -1} if the key is not contained.
+     */
+    int find(long key) {
+        int mask = capacity - 1;
+        for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+            int state = table.getInt(slot * SLOT_SIZE + STATE);
+            if (state == FREE) return -1;
+            if (state == USED && table.getLong(slot * SLOT_SIZE + KEY) == key) return slot;
+        }
+    }
+
+    long offsetAt(int slot) {
+        return table.getLong(slot * SLOT_SIZE + OFFSET);
+    }
+
+    int lengthAt(int slot) {
+        return table.getInt(slot * SLOT_SIZE + LENGTH);
+    }
+
+    /**
+     * @return The length of the replaced record or {@code -1} if the key was not contained.
+     */
+    int put(long key, long offset, int length) {
+        int slot = find(key);
+        if (slot >= 0) {
+            int previous = lengthAt(slot);
+            write(slot, key, offset, length);
+            return previous;
+        }
+        if (size + removed + 1 > capacity * MAXIMUM_LOAD) {
+            rehash(size + 1 > capacity * MAXIMUM_LOAD / 2 ? capacity << 1 : capacity);
+        }
+        int mask = capacity - 1;
+        for (slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+            int state = table.getInt(slot * SLOT_SIZE + STATE);
+            if (state != USED) {
+                if (state == REMOVED) removed--;
+                write(slot, key, offset, length);
+                size++;
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Moves the record of a key if it is still located at the given offset.
+     *
+     * @return {@code true} if the record was moved.
+     */
+    boolean relocate(long key, long offset, long relocation) {
+        int slot = find(key);
+        if (slot < 0 || offsetAt(slot) != offset) return false;
+        table.putLong(slot * SLOT_SIZE + OFFSET, relocation);
+        return true;
+    }
+
+    /**
+     * @return The length of the removed record or {@code -1} if the key was not contained.
+     */
+    int remove(long key) {
+        int slot = find(key);
+        if (slot < 0) return -1;
+        table.putInt(slot * SLOT_SIZE + STATE, REMOVED);
+        size--;
+        removed++;
+        return lengthAt(slot);
+    }
+
+    /**
+     * Copies the keys, offsets and lengths of all records in the order of their slots.
+     */
+    void copyTo(long[] keys, long[] offsets, int[] lengths) {
+        int index = 0;
+        for (int slot = 0; slot < capacity; slot++) {
+            if (table.getInt(slot * SLOT_SIZE + STATE) != USED) continue;
+            keys[index] = table.getLong(slot * SLOT_SIZE + KEY);
+            if (offsets != null) {
+                offsets[index] = offsetAt(slot);
+                lengths[index] = lengthAt(slot);
+            }
+            index++;
+        }
+    }
+
+    void clear() {
+        allocate(MINIMUM_CAPACITY);
+    }
+
+    int size() {
+        return size;
+    }
+
+    private void write(int slot, long key, long offset, int length) {
+        table.putLong(slot * SLOT_SIZE + KEY, key);
+        table.putLong(slot * SLOT_SIZE + OFFSET, offset);
+        table.putInt(slot * SLOT_SIZE + LENGTH, length);
+        table.putInt(slot * SLOT_SIZE + STATE, USED);
+    }
+
+    private void rehash(int capacity) {
+        if (capacity > MAXIMUM_CAPACITY) {
+            throw new IllegalStateException(String.format("Cannot index more than %d keys", (int) (MAXIMUM_CAPACITY * MAXIMUM_LOAD)));
+        }
+        ByteBuffer previous = table;
+        int previousCapacity = this.capacity;
+        allocate(capacity);
+        int mask = capacity - 1;
+        for (int from = 0; from < previousCapacity; from++) {
+            if (previous.getInt(from * SLOT_SIZE + STATE) != USED) continue;
+            long key = previous.getLong(from * SLOT_SIZE + KEY);
+            int slot = hash(key) & mask;
+            while (table.getInt(slot * SLOT_SIZE + STATE) == USED) {
+                slot = (slot + 1) & mask;
+            }
+            write(slot, key, previous.getLong(from * SLOT_SIZE + OFFSET), previous.getInt(from * SLOT_SIZE + LENGTH));
+            size++;
+        }
+    }
+}
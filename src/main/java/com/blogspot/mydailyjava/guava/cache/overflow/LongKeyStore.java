@@ -0,0 +1,365 @@
+package com.blogspot.mydailyjava.guava.cache.overflow;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stores records of {@code long} keys by appending them to a single log file. The location of each record is held
+ * by an off-heap {@link LongIndex} such that a lookup neither allocates a key nor a location. Reads are positional
+ * and never block on writes. Once most of the log consists of replaced or removed records, the live records are
+ * copied to a new log in the background while writes are blocked.
+ */
+class LongKeyStore {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LongKeyStore.class);
+
+    private static final String LOG_PREFIX = "long-keys-", LOG_SUFFIX = ".log";
+
+    private static final long MINIMUM_COMPACTION_SIZE = 1024L * 1024L;
+
+    private static final double COMPACTION_THRESHOLD = 0.5d;
+
+    private static final int MAXIMUM_READ_BUFFER_SIZE = 1024 * 1024;
+
+    private final File directory;
+    private final LongIndex index;
+    private final AtomicLong liveBytes;
+    private final AtomicBoolean compacting;
+    private final ExecutorService compactionExecutor;
+    private final ThreadLocal<ByteBuffer> readBuffers;
+
+    private volatile File file;
+    private volatile FileChannel channel;
+    private volatile boolean closed;
+    private volatile long writePosition;
+
+    private int generation;
+
+    LongKeyStore(File directory) throws IOException {
+        this.directory = directory;
+        this.index = new LongIndex();
+        this.liveBytes = new AtomicLong();
+        this.compacting = new AtomicBoolean();
+        this.compactionExecutor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("long-key-compaction-" + directory.getName() + "-%d")
+                .setDaemon(true)
+                .build());
+        this.readBuffers = new ThreadLocal<ByteBuffer>();
+        File[] candidates = directory.listFiles();
+        for (File candidate : candidates == null ? new File[0] : candidates) {
+            if (candidate.getName().startsWith(LOG_PREFIX) && candidate.getName().endsWith(LOG_SUFFIX)) {
+                LOGGER.debug("Deleting log {} of a previous process", candidate);
+                candidate.delete();
+            }
+        }
+        this.file = nextFile();
+        this.channel = new RandomAccessFile(file, "rw").getChannel();
+    }
+
+    private File nextFile() {
+        return new File(directory, String.format("%s%08d%s", LOG_PREFIX, generation++, LOG_SUFFIX));
+    }
+
+    /**
+     * Reads a record into a buffer that is reused by the current thread. The buffer must not be used after the
+     * next read of the same thread.
+     *
+     * @return The record or {@code null} if the key is not contained.
+     */
+    ByteBuffer read(long key) throws IOException {
+        while (true) {
+            long offset;
+            int length;
+            FileChannel channel;
+            synchronized (index) {
+                int slot = index.find(key);
+                if (slot < 0) return null;
+                offset = index.offsetAt(slot);
+                length = index.lengthAt(slot);
+                channel = this.channel;
+            }
+            ByteBuffer buffer = readBuffer(length);
+            try {
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, offset + buffer.position()) < 0) {
+                        throw new EOFException(String.format("Unexpected end of log %s", file));
+                    }
+                }
+            } catch (ClosedByInterruptException e) {
+                reopen(channel);
+                throw e;
+            } catch (ClosedChannelException e) {
+                // The log was compacted concurrently, the index points to the relocated record
+                if (reopen(channel) == channel) throw e;
+                continue;
+            } catch (EOFException e) {
+                // The log was cleared concurrently
+                if (isLocatedAt(key, offset)) throw e;
+                continue;
+            }
+            buffer.flip();
+            return buffer;
+        }
+    }
+
+    private boolean isLocatedAt(long key, long offset) {
+        synchronized (index) {
+            int slot = index.find(key);
+            return slot >= 0 && index.offsetAt(slot) == offset;
+        }
+    }
+
+    private ByteBuffer readBuffer(int length) {
+        if (length > MAXIMUM_READ_BUFFER_SIZE) {
+            return ByteBuffer.allocate(length);
+        }
+        ByteBuffer buffer = readBuffers.get();
+        if (buffer == null || buffer.capacity() < length) {
+            buffer = ByteBuffer.allocateDirect(Math.min(Math.max(Integer.highestOneBit(length) << 1, 1024), MAXIMUM_READ_BUFFER_SIZE));
+            readBuffers.set(buffer);
+        }
+        buffer.clear();
+        buffer.limit(length);
+        return buffer;
+    }
+
+    void put(long key, ByteBuffer record) throws IOException {
+        synchronized (this) {
+            long offset = append(record.duplicate());
+            index(key, offset, record.remaining());
+        }
+        scheduleCompactionIfRequired();
+    }
+
+    void putAll(Map<Long, ByteBuffer> records) throws IOException {
+        int size = 0;
+        for (ByteBuffer record : records.values()) {
+            size += record.remaining();
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (ByteBuffer record : records.values()) {
+            buffer.put(record.duplicate());
+        }
+        buffer.flip();
+        synchronized (this) {
+            // Records are written at once and are indexed afterwards
+            long offset = append(buffer);
+            for (Map.Entry<Long, ByteBuffer> record : records.entrySet()) {
+                index(record.getKey(), offset, record.getValue().remaining());
+                offset += record.getValue().remaining();
+            }
+        }
+        scheduleCompactionIfRequired();
+    }
+
+    private long append(ByteBuffer buffer) throws IOException {
+        long offset = writePosition, position = offset;
+        FileChannel channel = this.channel;
+        try {
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        } catch (ClosedChannelException e) {
+            reopen(channel);
+            throw e;
+        }
+        writePosition = position;
+        return offset;
+    }
+
+    private void index(long key, long offset, int length) {
+        int previous;
+        synchronized (index) {
+            previous = index.put(key, offset, length);
+        }
+        liveBytes.addAndGet(previous < 0 ? length : length - previous);
+    }
+
+    boolean contains(long key) {
+        synchronized (index) {
+            return index.find(key) >= 0;
+        }
+    }
+
+    Iterator<Long> keys() {
+        final long[] keys;
+        synchronized (index) {
+            keys = new long[index.size()];
+            index.copyTo(keys, null, null);
+        }
+        return new Iterator<Long>() {
+
+            private int index;
+
+            @Override
+            public boolean hasNext() {
+                return index < keys.length;
+            }
+
+            @Override
+            public Long next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                return keys[index++];
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    boolean remove(long key) {
+        int previous;
+        synchronized (index) {
+            previous = index.remove(key);
+        }
+        if (previous < 0) return false;
+        liveBytes.addAndGet(-previous);
+        scheduleCompactionIfRequired();
+        return true;
+    }
+
+    synchronized void clear() {
+        synchronized (index) {
+            index.clear();
+        }
+        liveBytes.set(0L);
+        writePosition = 0L;
+        try {
+            channel.truncate(0L);
+        } catch (IOException e) {
+            LOGGER.warn(String.format("Could not truncate log %s", file), e);
+        }
+    }
+
+    int size() {
+        synchronized (index) {
+            return index.size();
+        }
+    }
+
+    void close() {
+        compactionExecutor.shutdown();
+        try {
+            compactionExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            closed = true;
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOGGER.warn(String.format("Could not close log %s", file), e);
+            }
+        }
+    }
+
+    private FileChannel reopen(FileChannel closedChannel) throws IOException {
+        // Note: A thread that is interrupted during I/O closes the shared channel for all other threads
+        synchronized (index) {
+            if (channel == closedChannel && !closed) {
+                channel = new RandomAccessFile(file, "rw").getChannel();
+            }
+            return channel;
+        }
+    }
+
+    private void scheduleCompactionIfRequired() {
+        if (!compacting.get() && isCompactable() && compacting.compareAndSet(false, true)) {
+            try {
+                compactionExecutor.execute(new Compaction());
+            } catch (RejectedExecutionException e) {
+                compacting.set(false);
+            }
+        }
+    }
+
+    private boolean isCompactable() {
+        long size = writePosition;
+        return size > MINIMUM_COMPACTION_SIZE && liveBytes.get() < size * COMPACTION_THRESHOLD;
+    }
+
+    private class Compaction implements Runnable {
+
+        @Override
+        public void run() {
+            try {
+                synchronized (LongKeyStore.this) {
+                    if (!closed) {
+                        compact();
+                    }
+                }
+            } catch (Exception e) {
+                LOGGER.warn(String.format("Could not compact log %s", file), e);
+            } finally {
+                compacting.set(false);
+            }
+        }
+
+        private void compact() throws IOException {
+            long[] keys, offsets;
+            int[] lengths;
+            synchronized (index) {
+                keys = new long[index.size()];
+                offsets = new long[keys.length];
+                lengths = new int[keys.length];
+                index.copyTo(keys, offsets, lengths);
+            }
+            File compactedFile = nextFile();
+            FileChannel compactedChannel = new RandomAccessFile(compactedFile, "rw").getChannel();
+            long[] relocations = new long[keys.length];
+            long position = 0L;
+            try {
+                for (int i = 0; i < keys.length; i++) {
+                    relocations[i] = position;
+                    long transferred = 0L;
+                    while (transferred < lengths[i]) {
+                        transferred += channel.transferTo(offsets[i] + transferred, lengths[i] - transferred, compactedChannel);
+                    }
+                    position += lengths[i];
+                }
+            } catch (IOException e) {
+                compactedChannel.close();
+                compactedFile.delete();
+                throw e;
+            }
+            FileChannel previousChannel = channel;
+            File previousFile = file;
+            synchronized (index) {
+                // Note: Records that were removed while being copied are not relocated and only occupy the new log
+                for (int i = 0; i < keys.length; i++) {
+                    index.relocate(keys[i], offsets[i], relocations[i]);
+                }
+                channel = compactedChannel;
+                file = compactedFile;
+            }
+            writePosition = position;
+            previousChannel.close();
+            if (!previousFile.delete()) {
+                LOGGER.warn("Could not delete log {}", previousFile);
+            }
+            LOGGER.debug("Compacted log {} to {} bytes", previousFile, position);
+        }
+    }
+}
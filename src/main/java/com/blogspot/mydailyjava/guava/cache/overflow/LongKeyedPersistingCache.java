@@ -0,0 +1,158 @@
+package com.blogspot.mydailyjava.guava.cache.overflow;
+
+import com.google.common.collect.Iterators;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A persisting cache for {@code long} keys. Persisted entries are appended to a log file per persistence directory
+ * and are located by an off-heap open-addressing index instead of by a file per key. A lookup on disk neither
+ * serializes the key nor resolves a file such that only the returned value is allocated. The key is still boxed to
+ * query the in-memory cache. A key that is not contained is reported as absent without attempting to load it. A cache
+ * of this type should be closed when it is not longer in use.
+ *
+ * @param <V> The type of the cached values.
+ */
+public class LongKeyedPersistingCache<V> extends FileSystemPersistingCache<Long, V> {
+
+    private final LongKeyStore[] longKeyStores;
+
+    LongKeyedPersistingCache(FileSystemCacheBuilder<? super Long, ? super V> builder) {
+        super(builder, null, Serializers.longs());
+        List<File> persistenceRootDirectories = getPersistenceRootDirectories();
+        this.longKeyStores = new LongKeyStore[persistenceRootDirectories.size()];
+        for (int index = 0; index < longKeyStores.length; index++) {
+            try {
+                longKeyStores[index] = new LongKeyStore(persistenceRootDirectories.get(index));
+            } catch (IOException e) {
+                for (int created = 0; created < index; created++) {
+                    longKeyStores[created].close();
+                }
+                throw new IllegalArgumentException(String.format("Cannot create log in %s", persistenceRootDirectories.get(index)), e);
+            }
+        }
+    }
+
+    /**
+     * {@link #getIfPresent(Object)} A key that is neither held in memory nor persisted is not counted as a miss by
+     * {@link #stats()} but only by {@link #persistingStats()}.
+     */
+    public V getIfPresent(long key) {
+        Long boxed = key;
+        if (!getUnderlyingCache().asMap().containsKey(boxed) && peekQueued(boxed) == null && !hasPersistedCopy(boxed)) {
+            recordLookup(boxed);
+            getStatsCounter().recordMiss();
+            return null;
+        }
+        return getIfPresent((Object) boxed);
+    }
+
+    /**
+     * {@link #put(Object, Object)}
+     */
+    public void put(long key, V value) {
+        put((Long) key, value);
+    }
+
+    /**
+     * {@link #invalidate(Object)}
+     */
+    public void invalidate(long key) {
+        invalidate((Object) key);
+    }
+
+    private LongKeyStore longKeyStoreFor(long key) {
+        return longKeyStores.length == 1 ? longKeyStores[0] : longKeyStores[rootIndexOfHash(LongIndex.spread(key))];
+    }
+
+    @Override
+    int rootIndexFor(Long key) {
+        return longKeyStores.length == 1 ? 0 : rootIndexOfHash(LongIndex.spread(key));
+    }
+
+    @Override
+    boolean isKeyOf(Long key, ByteBuffer buffer, int keyLength) {
+        return keyLength == 8 && buffer.getLong(buffer.position()) == key;
+    }
+
+    @Override
+    V findOnDisk(Long key) throws IOException {
+        ByteBuffer buffer = longKeyStoreFor(key).read(key);
+        if (buffer == null) return null;
+        return readPersisted(key, buffer);
+    }
+
+    @Override
+    ByteBuffer findFrameOnDisk(Long key) throws IOException {
+        ByteBuffer buffer = longKeyStoreFor(key).read(key);
+        if (buffer == null) return null;
+        // Note: The read buffer is reused by the current thread
+        ByteBuffer frame = ByteBuffer.allocate(buffer.remaining());
+        frame.put(buffer).flip();
+        return frame;
+    }
+
+    @Override
+    void writeOnDisk(Long key, ByteBuffer serialized) throws IOException {
+        longKeyStoreFor(key).put(key, serialized);
+    }
+
+    @Override
+    void writeAllOnRoot(int rootIndex, Map<Long, ByteBuffer> serialized) throws IOException {
+        longKeyStores[rootIndex].putAll(serialized);
+    }
+
+    @Override
+    boolean mightBeOnDisk(Long key) {
+        return longKeyStoreFor(key).contains(key);
+    }
+
+    @Override
+    boolean containsOnDisk(Long key) {
+        return longKeyStoreFor(key).contains(key);
+    }
+
+    @Override
+    Iterator<Long> diskKeyIterator() {
+        List<Iterator<Long>> keys = new ArrayList<Iterator<Long>>(longKeyStores.length);
+        for (LongKeyStore longKeyStore : longKeyStores) {
+            keys.add(longKeyStore.keys());
+        }
+        return Iterators.concat(keys.iterator());
+    }
+
+    @Override
+    void deleteOnDisk(Long key) {
+        longKeyStoreFor(key).remove(key);
+    }
+
+    @Override
+    void deleteAllOnDisk() {
+        for (LongKeyStore longKeyStore : longKeyStores) {
+            longKeyStore.clear();
+        }
+    }
+
+    @Override
+    int sizeOnDisk() {
+        int size = 0;
+        for (LongKeyStore longKeyStore : longKeyStores) {
+            size += longKeyStore.size();
+        }
+        return size;
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        for (LongKeyStore longKeyStore : longKeyStores) {
+            longKeyStore.close();
+        }
+    }
+}
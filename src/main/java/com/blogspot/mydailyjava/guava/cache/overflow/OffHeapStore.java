@@ -0,0 +1,196 @@
+package com.blogspot.mydailyjava.guava.cache.overflow;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Stores serialized entries in direct memory outside of the heap. The memory is divided into slabs of equal size that
+ * are filled one after another. When all slabs are filled, the oldest slab is evicted and its entries are handed back
+ * to the caller such that they can be written to disk.
+ */
+class OffHeapStore<K> {
+
+    private static final int MAXIMUM_SLAB_SIZE = 64 * 1024 * 1024, MINIMUM_SLAB_SIZE = 4 * 1024, SLAB_FRACTION = 16;
+
+    private final int slabSize;
+    private final ByteBuffer[] slabs;
+    private final List<List<K>> slabKeys;
+
+    private final ConcurrentMap<K, Location> index;
+    private final AtomicLong byteSize;
+    private final ReadWriteLock lock;
+
+    private int activeSlab;
+
+    OffHeapStore(long maximumBytes) {
+        this.slabSize = (int) Math.max(Math.min(maximumBytes / SLAB_FRACTION, MAXIMUM_SLAB_SIZE), MINIMUM_SLAB_SIZE);
+        int slabCount = (int) Math.max(maximumBytes / slabSize, 1L);
+        this.slabs = new ByteBuffer[slabCount];
+        this.slabKeys = new ArrayList<List<K>>(slabCount);
+        for (int i = 0; i < slabCount; i++) {
+            slabKeys.add(new ArrayList<K>());
+        }
+        this.index = new ConcurrentHashMap<K, Location>();
+        this.byteSize = new AtomicLong();
+        this.lock = new ReentrantReadWriteLock();
+    }
+
+    private static class Location {
+
+        private final int slab;
+        private final int offset;
+        private final int length;
+
+        private Location(int slab, int offset, int length) {
+            this.slab = slab;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    ByteBuffer get(K key) {
+        lock.readLock().lock();
+        try {
+            Location location = index.get(key);
+            if (location == null) return null;
+            return copy(location);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Stores a serialized entry and returns any entries that were evicted in order to make room for it. An entry
+     * that does not fit into a single slab is returned immediately.
+     */
+    Map<K, ByteBuffer> put(K key, ByteBuffer buffer) {
+        return putAll(Collections.singletonMap(key, buffer));
+    }
+
+    Map<K, ByteBuffer> putAll(Map<K, ByteBuffer> values) {
+        Map<K, ByteBuffer> evicted = new LinkedHashMap<K, ByteBuffer>();
+        lock.writeLock().lock();
+        try {
+            for (Map.Entry<K, ByteBuffer> entry : values.entrySet()) {
+                remove(entry.getKey());
+                int length = entry.getValue().remaining();
+                if (length > slabSize) {
+                    evicted.put(entry.getKey(), entry.getValue());
+                    continue;
+                }
+                ByteBuffer slab = slabs[activeSlab];
+                if (slab == null || slab.remaining() < length) {
+                    slab = nextSlab(evicted);
+                }
+                Location location = new Location(activeSlab, slab.position(), length);
+                slab.put(entry.getValue().duplicate());
+                slabKeys.get(activeSlab).add(entry.getKey());
+                index.put(entry.getKey(), location);
+                byteSize.addAndGet(length);
+                // Note: An entry that was evicted before being replaced by this put is not longer stale
+                evicted.remove(entry.getKey());
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return evicted;
+    }
+
+    private ByteBuffer nextSlab(Map<K, ByteBuffer> evicted) {
+        if (slabs[activeSlab] != null) {
+            activeSlab = (activeSlab + 1) % slabs.length;
+        }
+        ByteBuffer slab = slabs[activeSlab];
+        if (slab == null) {
+            slab = ByteBuffer.allocateDirect(slabSize);
+            slabs[activeSlab] = slab;
+        } else {
+            List<K> keys = slabKeys.get(activeSlab);
+            for (K key : keys) {
+                Location location = index.get(key);
+                if (location != null && location.slab == activeSlab && index.remove(key, location)) {
+                    byteSize.addAndGet(-location.length);
+                    evicted.put(key, copy(location));
+                }
+            }
+            keys.clear();
+            slab.clear();
+        }
+        return slab;
+    }
+
+    private ByteBuffer copy(Location location) {
+        ByteBuffer source = slabs[location.slab].duplicate();
+        source.limit(location.offset + location.length).position(location.offset);
+        ByteBuffer copy = ByteBuffer.allocate(location.length);
+        copy.put(source).flip();
+        return copy;
+    }
+
+    boolean contains(K key) {
+        return index.containsKey(key);
+    }
+
+    Iterator<K> keys() {
+        return Collections.unmodifiableSet(index.keySet()).iterator();
+    }
+
+    boolean remove(K key) {
+        Location location = index.remove(key);
+        if (location == null) return false;
+        byteSize.addAndGet(-location.length);
+        return true;
+    }
+
+    /**
+     * Removes all entries from this store.
+     *
+     * @return All entries that were removed.
+     */
+    Map<K, ByteBuffer> drain() {
+        Map<K, ByteBuffer> drained = new LinkedHashMap<K, ByteBuffer>();
+        lock.writeLock().lock();
+        try {
+            for (Map.Entry<K, Location> entry : index.entrySet()) {
+                drained.put(entry.getKey(), copy(entry.getValue()));
+            }
+            clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return drained;
+    }
+
+    void clear() {
+        lock.writeLock().lock();
+        try {
+            index.clear();
+            byteSize.set(0L);
+            for (int i = 0; i < slabs.length; i++) {
+                if (slabs[i] != null) slabs[i].clear();
+                slabKeys.get(i).clear();
+            }
+            activeSlab = 0;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    int size() {
+        return index.size();
+    }
+
+    long byteSize() {
+        return byteSize.get();
+    }
+}
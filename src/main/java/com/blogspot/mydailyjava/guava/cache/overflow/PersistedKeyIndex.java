@@ -0,0 +1,267 @@
+package com.blogspot.mydailyjava.guava.cache.overflow;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnel;
+import com.google.common.hash.PrimitiveSink;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+abstract class PersistedKeyIndex<K> {
+
+    static <K> PersistedKeyIndex<K> exact() {
+        return new Exact<K>();
+    }
+
+    static <K> PersistedKeyIndex<K> approximate(int expectedInsertions, double falsePositiveProbability) {
+        return new Approximate<K>(expectedInsertions, falsePositiveProbability);
+    }
+
+    /**
+     * @return {@code false} if the key is certainly not persisted.
+     */
+    abstract boolean mightContain(K key);
+
+    /**
+     * @return {@code true} if {@link #mightContain(Object)} is never a false positive.
+     */
+    abstract boolean isPrecise();
+
+    abstract void add(K key, long size, boolean replaced);
+
+    abstract void remove(K key, boolean deleted);
+
+    abstract void clear();
+
+    /**
+     * @return {@code true} if this index should be rebuilt from the persisted keys as it lost its precision.
+     */
+    abstract boolean isSaturated();
+
+    /**
+     * Rebuilds this index from the persisted keys. Keys that are added while the persisted keys are iterated are
+     * retained such that the given keys only need to contain the keys that were persisted before iterating.
+     *
+     * @param keys The persisted keys which are only iterated by this method.
+     */
+    abstract void rebuild(Iterable<K> keys);
+
+    /**
+     * @return An iterator over all persisted keys or {@code null} if this index does not retain the keys.
+     */
+    abstract Iterator<K> keys();
+
+    abstract int size();
+
+    abstract long byteSize();
+
+    private static class Exact<K> extends PersistedKeyIndex<K> {
+
+        private final ConcurrentMap<K, Long> sizes;
+        private final AtomicLong byteSize;
+
+        private Exact() {
+            this.sizes = new ConcurrentHashMap<K, Long>();
+            this.byteSize = new AtomicLong();
+        }
+
+        @Override
+        boolean mightContain(K key) {
+            return sizes.containsKey(key);
+        }
+
+        @Override
+        boolean isPrecise() {
+            return true;
+        }
+
+        @Override
+        void add(K key, long size, boolean replaced) {
+            Long previous = sizes.put(key, size);
+            byteSize.addAndGet(previous == null ? size : size - previous);
+        }
+
+        @Override
+        void remove(K key, boolean deleted) {
+            Long previous = sizes.remove(key);
+            if (previous != null) {
+                byteSize.addAndGet(-previous);
+            }
+        }
+
+        @Override
+        void clear() {
+            sizes.clear();
+            byteSize.set(0L);
+        }
+
+        @Override
+        boolean isSaturated() {
+            return false;
+        }
+
+        @Override
+        void rebuild(Iterable<K> keys) {
+            throw new UnsupportedOperationException("An exact index is never rebuilt");
+        }
+
+        @Override
+        Iterator<K> keys() {
+            return Collections.unmodifiableSet(sizes.keySet()).iterator();
+        }
+
+        @Override
+        int size() {
+            return sizes.size();
+        }
+
+        @Override
+        long byteSize() {
+            return byteSize.get();
+        }
+    }
+
+    private static class Approximate<K> extends PersistedKeyIndex<K> {
+
+        private final int expectedInsertions;
+        private final double falsePositiveProbability;
+
+        private final AtomicInteger size;
+        private final AtomicLong byteSize;
+
+        // Note: All filters are guarded by this instance such that no key is lost while a rebuilt filter is installed
+        private BloomFilter<K> bloomFilter, rebuilding;
+        private int insertions, capacity;
+
+        private Approximate(int expectedInsertions, double falsePositiveProbability) {
+            this.expectedInsertions = expectedInsertions;
+            this.falsePositiveProbability = falsePositiveProbability;
+            this.size = new AtomicInteger();
+            this.byteSize = new AtomicLong();
+            this.capacity = expectedInsertions;
+            this.bloomFilter = makeBloomFilter(capacity);
+        }
+
+        private BloomFilter<K> makeBloomFilter(int capacity) {
+            @SuppressWarnings("unchecked")
+            Funnel<K> funnel = (Funnel<K>) HashCodeFunnel.INSTANCE;
+            return BloomFilter.create(funnel, capacity, falsePositiveProbability);
+        }
+
+        @Override
+        synchronized boolean mightContain(K key) {
+            return bloomFilter.mightContain(key);
+        }
+
+        @Override
+        boolean isPrecise() {
+            return false;
+        }
+
+        @Override
+        void add(K key, long size, boolean replaced) {
+            synchronized (this) {
+                bloomFilter.put(key);
+                if (rebuilding != null) {
+                    rebuilding.put(key);
+                }
+                if (!replaced) {
+                    insertions++;
+                }
+            }
+            if (!replaced) {
+                this.size.incrementAndGet();
+            }
+            // Note: The size of a replaced entry is unknown such that the byte size can only be an estimate
+            byteSize.addAndGet(size);
+        }
+
+        @Override
+        void remove(K key, boolean deleted) {
+            // Note: A key cannot be removed from a bloom filter, it is only discarded when the index is rebuilt
+            if (deleted && size.decrementAndGet() == 0) {
+                byteSize.set(0L);
+            }
+        }
+
+        @Override
+        void clear() {
+            synchronized (this) {
+                capacity = expectedInsertions;
+                bloomFilter = makeBloomFilter(capacity);
+                rebuilding = null;
+                insertions = 0;
+            }
+            size.set(0);
+            byteSize.set(0L);
+        }
+
+        @Override
+        synchronized boolean isSaturated() {
+            return insertions > capacity && rebuilding == null;
+        }
+
+        @Override
+        void rebuild(Iterable<K> keys) {
+            BloomFilter<K> rebuilt;
+            int capacity;
+            synchronized (this) {
+                if (rebuilding != null) return;
+                // Note: Room for as many insertions as there are live keys avoids rebuilding a filter too often
+                capacity = (int) Math.min(Math.max(expectedInsertions, 2L * size.get()), Integer.MAX_VALUE);
+                rebuilt = makeBloomFilter(capacity);
+                rebuilding = rebuilt;
+            }
+            try {
+                int insertions = 0;
+                for (K key : keys) {
+                    synchronized (this) {
+                        rebuilt.put(key);
+                    }
+                    insertions++;
+                }
+                synchronized (this) {
+                    if (rebuilding != rebuilt) return;
+                    bloomFilter = rebuilt;
+                    this.capacity = capacity;
+                    this.insertions = Math.max(insertions, size.get());
+                }
+            } finally {
+                synchronized (this) {
+                    if (rebuilding == rebuilt) {
+                        rebuilding = null;
+                    }
+                }
+            }
+        }
+
+        @Override
+        Iterator<K> keys() {
+            return null;
+        }
+
+        @Override
+        int size() {
+            return size.get();
+        }
+
+        @Override
+        long byteSize() {
+            return byteSize.get();
+        }
+    }
+
+    private static enum HashCodeFunnel implements Funnel<Object> {
+
+        INSTANCE;
+
+        @Override
+        public void funnel(Object from, PrimitiveSink into) {
+            into.putInt(from.hashCode());
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.blogspot.mydailyjava.guava.cache.overflow;
+
+/**
+ * The kinds of operations on the overflow tiers of a persisting cache that are reported to a
+ * {@link PersistenceListener}.
+ */
+public enum PersistenceEvent {
+
+    /**
+     * A value was serialized and written to the off-heap tier or to disk, typically after being evicted from memory.
+     * The event's size is the size of the serialized and possibly compressed value.
+     */
+    SPILL,
+
+    /**
+     * A value was looked up on disk. The event's size is the size of the persisted value or {@code -1} if no value
+     * was found.
+     */
+    DISK_READ,
+
+    /**
+     * A persisted value was moved back into memory. The event's duration includes the time to read the value.
+     */
+    PROMOTION,
+
+    /**
+     * The persisted copy of a key was deleted, if it existed.
+     */
+    DELETION,
+
+    /**
+     * A key was invalidated in all tiers. If all keys are invalidated, the event's key hash is {@code 0}.
+     */
+    INVALIDATION
+}
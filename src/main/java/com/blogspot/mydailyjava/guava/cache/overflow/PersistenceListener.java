@@ -0,0 +1,20 @@
+package com.blogspot.mydailyjava.guava.cache.overflow;
+
+/**
+ * Observes operations on the overflow tiers of a persisting cache, for example to record them with a profiler or
+ * a tracer. A listener is invoked synchronously by the thread that performed the operation such that it must be
+ * thread-safe and should return quickly. Any exception that is thrown by a listener is logged and ignored. If no
+ * listener is registered, operations are not timed for being reported.
+ */
+public interface PersistenceListener {
+
+    /**
+     * Reports an operation after it completed.
+     *
+     * @param event         The kind of operation.
+     * @param keyHash       The hash code of the key the operation applied to.
+     * @param byteSize      The number of bytes that were read or written or {@code -1} if unknown.
+     * @param durationNanos The duration of the operation in nanoseconds.
+     */
+    void onPersistenceEvent(PersistenceEvent event, int keyHash, long byteSize, long durationNanos);
+}
@@ -0,0 +1,240 @@
+package com.blogspot.mydailyjava.guava.cache.overflow;
+
+import com.google.common.base.Objects;
+
+import java.util.Arrays;
+
+/**
+ * Statistics about the memory tier and the overflow tiers of a persisting cache. Unlike the statistics of
+ * {@link com.google.common.cache.Cache#stats()}, reading a persisted value is counted as a hit of the tier that held
+ * the value and not as a load. Instances of this class are immutable.
+ */
+public final class PersistingCacheStats {
+
+    private final long heapHitCount;
+    private final long persistedHitCount;
+    private final long missCount;
+    private final long offHeapHitCount;
+    private final long diskHitCount;
+    private final long promotionCount;
+    private final long spillCount;
+    private final long rejectedSpillCount;
+    private final long bytesRead;
+    private final long bytesWritten;
+    private final long totalSerializationTime;
+    private final long totalDeserializationTime;
+    private final long[] diskReadLatency;
+    private final long[] diskWriteLatency;
+
+    PersistingCacheStats(long heapHitCount,
+                         long persistedHitCount,
+                         long missCount,
+                         long offHeapHitCount,
+                         long diskHitCount,
+                         long promotionCount,
+                         long spillCount,
+                         long rejectedSpillCount,
+                         long bytesRead,
+                         long bytesWritten,
+                         long totalSerializationTime,
+                         long totalDeserializationTime,
+                         long[] diskReadLatency,
+                         long[] diskWriteLatency) {
+        this.heapHitCount = heapHitCount;
+        this.persistedHitCount = persistedHitCount;
+        this.missCount = missCount;
+        this.offHeapHitCount = offHeapHitCount;
+        this.diskHitCount = diskHitCount;
+        this.promotionCount = promotionCount;
+        this.spillCount = spillCount;
+        this.rejectedSpillCount = rejectedSpillCount;
+        this.bytesRead = bytesRead;
+        this.bytesWritten = bytesWritten;
+        this.totalSerializationTime = totalSerializationTime;
+        this.totalDeserializationTime = totalDeserializationTime;
+        this.diskReadLatency = diskReadLatency;
+        this.diskWriteLatency = diskWriteLatency;
+    }
+
+    /**
+     * @return The number of lookups that were answered from memory.
+     */
+    public long heapHitCount() {
+        return heapHitCount;
+    }
+
+    /**
+     * @return The number of lookups that were answered by a persisted value, including values that were still
+     * queued or in the process of being written.
+     */
+    public long persistedHitCount() {
+        return persistedHitCount;
+    }
+
+    /**
+     * @return The number of lookups of keys that were neither held in memory nor persisted.
+     */
+    public long missCount() {
+        return missCount;
+    }
+
+    /**
+     * @return The number of lookups of any kind.
+     */
+    public long requestCount() {
+        return heapHitCount + persistedHitCount + missCount;
+    }
+
+    /**
+     * @return The ratio of lookups that were answered by any tier or {@code 1.0} if there was no lookup.
+     */
+    public double hitRate() {
+        long requestCount = requestCount();
+        return requestCount == 0L ? 1.0d : (double) (heapHitCount + persistedHitCount) / requestCount;
+    }
+
+    /**
+     * @return The number of persisted values that were read from the off-heap tier.
+     */
+    public long offHeapHitCount() {
+        return offHeapHitCount;
+    }
+
+    /**
+     * @return The number of persisted values that were read from disk.
+     */
+    public long diskHitCount() {
+        return diskHitCount;
+    }
+
+    /**
+     * @return The number of persisted values that were moved back into memory.
+     */
+    public long promotionCount() {
+        return promotionCount;
+    }
+
+    /**
+     * @return The number of values that were persisted after being evicted from memory.
+     */
+    public long spillCount() {
+        return spillCount;
+    }
+
+    /**
+     * @return The number of values that were evicted from memory but that were rejected by the spill admission.
+     */
+    public long rejectedSpillCount() {
+        return rejectedSpillCount;
+    }
+
+    /**
+     * @return The number of bytes of persisted values that were read from the off-heap tier or from disk.
+     */
+    public long bytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * @return The number of bytes of values that were serialized for being persisted, after compression.
+     */
+    public long bytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * @return The total number of nanoseconds that were spent serializing values, including their compression.
+     */
+    public long totalSerializationTime() {
+        return totalSerializationTime;
+    }
+
+    /**
+     * @return The total number of nanoseconds that were spent deserializing values, including their decompression.
+     */
+    public long totalDeserializationTime() {
+        return totalDeserializationTime;
+    }
+
+    /**
+     * @return The number of lookups on disk, including lookups of keys that were not found.
+     */
+    public long diskReadCount() {
+        return LatencyHistogram.count(diskReadLatency);
+    }
+
+    /**
+     * @return The number of writes to disk. Values that are written together are counted as a single write.
+     */
+    public long diskWriteCount() {
+        return LatencyHistogram.count(diskWriteLatency);
+    }
+
+    /**
+     * Estimates a percentile of the latency of lookups on disk. The estimate is at most twice the actual latency.
+     *
+     * @param percentile The percentile between {@code 0.0} and {@code 1.0}, for example {@code 0.99}.
+     * @return The estimated latency in nanoseconds or {@code 0} if no value was read from disk.
+     */
+    public long diskReadLatency(double percentile) {
+        return LatencyHistogram.percentile(diskReadLatency, percentile);
+    }
+
+    /**
+     * Estimates a percentile of the latency of writes to disk. The estimate is at most twice the actual latency.
+     *
+     * @param percentile The percentile between {@code 0.0} and {@code 1.0}, for example {@code 0.99}.
+     * @return The estimated latency in nanoseconds or {@code 0} if no value was written to disk.
+     */
+    public long diskWriteLatency(double percentile) {
+        return LatencyHistogram.percentile(diskWriteLatency, percentile);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) return true;
+        if (other == null || getClass() != other.getClass()) return false;
+        PersistingCacheStats that = (PersistingCacheStats) other;
+        return heapHitCount == that.heapHitCount
+                && persistedHitCount == that.persistedHitCount
+                && missCount == that.missCount
+                && offHeapHitCount == that.offHeapHitCount
+                && diskHitCount == that.diskHitCount
+                && promotionCount == that.promotionCount
+                && spillCount == that.spillCount
+                && rejectedSpillCount == that.rejectedSpillCount
+                && bytesRead == that.bytesRead
+                && bytesWritten == that.bytesWritten
+                && totalSerializationTime == that.totalSerializationTime
+                && totalDeserializationTime == that.totalDeserializationTime
+                && Arrays.equals(diskReadLatency, that.diskReadLatency)
+                && Arrays.equals(diskWriteLatency, that.diskWriteLatency);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(heapHitCount, persistedHitCount, missCount, offHeapHitCount, diskHitCount,
+                promotionCount, spillCount, rejectedSpillCount, bytesRead, bytesWritten, totalSerializationTime,
+                totalDeserializationTime, Arrays.hashCode(diskReadLatency), Arrays.hashCode(diskWriteLatency));
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+                .add("heapHitCount", heapHitCount)
+                .add("persistedHitCount", persistedHitCount)
+                .add("missCount", missCount)
+                .add("offHeapHitCount", offHeapHitCount)
+                .add("diskHitCount", diskHitCount)
+                .add("promotionCount", promotionCount)
+                .add("spillCount", spillCount)
+                .add("rejectedSpillCount", rejectedSpillCount)
+                .add("bytesRead", bytesRead)
+                .add("bytesWritten", bytesWritten)
+                .add("totalSerializationTime", totalSerializationTime)
+                .add("totalDeserializationTime", totalDeserializationTime)
+                .add("diskReadLatency99", diskReadLatency(0.99d))
+                .add("diskWriteLatency99", diskWriteLatency(0.99d))
+                .toString();
+    }
+}
@@ -0,0 +1,94 @@
+package com.blogspot.mydailyjava.guava.cache.overflow;
+
+/**
+ * Accumulates the statistics of the tiers of a persisting cache.
+ */
+class PersistingStatsCounter {
+
+    private final StripedCounter lookupCount = new StripedCounter();
+    private final StripedCounter persistedHitCount = new StripedCounter();
+    private final StripedCounter missCount = new StripedCounter();
+    private final StripedCounter offHeapHitCount = new StripedCounter();
+    private final StripedCounter diskHitCount = new StripedCounter();
+    private final StripedCounter promotionCount = new StripedCounter();
+    private final StripedCounter spillCount = new StripedCounter();
+    private final StripedCounter rejectedSpillCount = new StripedCounter();
+    private final StripedCounter bytesRead = new StripedCounter();
+    private final StripedCounter bytesWritten = new StripedCounter();
+    private final StripedCounter totalSerializationTime = new StripedCounter();
+    private final StripedCounter totalDeserializationTime = new StripedCounter();
+    private final LatencyHistogram diskReadLatency = new LatencyHistogram();
+    private final LatencyHistogram diskWriteLatency = new LatencyHistogram();
+
+    void recordLookup() {
+        lookupCount.increment();
+    }
+
+    void recordPersistedHit() {
+        persistedHitCount.increment();
+    }
+
+    void recordMiss() {
+        missCount.increment();
+    }
+
+    void recordOffHeapHit() {
+        offHeapHitCount.increment();
+    }
+
+    void recordDiskRead(boolean hit, long nanos) {
+        if (hit) {
+            diskHitCount.increment();
+        }
+        diskReadLatency.record(nanos);
+    }
+
+    void recordDiskWrite(long nanos) {
+        diskWriteLatency.record(nanos);
+    }
+
+    void recordPromotion() {
+        promotionCount.increment();
+    }
+
+    void recordSpill() {
+        spillCount.increment();
+    }
+
+    void recordRejectedSpill() {
+        rejectedSpillCount.increment();
+    }
+
+    void recordSerialization(long bytes, long nanos) {
+        bytesWritten.add(bytes);
+        totalSerializationTime.add(nanos);
+    }
+
+    void recordDeserialization(long bytes, long nanos) {
+        bytesRead.add(bytes);
+        totalDeserializationTime.add(nanos);
+    }
+
+    long rejectedSpillCount() {
+        return rejectedSpillCount.sum();
+    }
+
+    PersistingCacheStats snapshot() {
+        // Note: Every hit or miss is recorded after its lookup such that reading lookups last cannot yield a negative count
+        long persistedHits = persistedHitCount.sum(), misses = missCount.sum();
+        return new PersistingCacheStats(lookupCount.sum() - persistedHits - misses,
+                persistedHits,
+                misses,
+                offHeapHitCount.sum(),
+                diskHitCount.sum(),
+                promotionCount.sum(),
+                spillCount.sum(),
+                rejectedSpillCount.sum(),
+                bytesRead.sum(),
+                bytesWritten.sum(),
+                totalSerializationTime.sum(),
+                totalDeserializationTime.sum(),
+                diskReadLatency.snapshot(),
+                diskWriteLatency.snapshot());
+    }
+}
@@ -23,7 +23,11 @@ class RemovalNotifications {
     }
 
     public static <K, V> RemovalNotification<K, V> make(K key, V value) {
-        return getInstance().makeInternal(key, value);
+        return make(key, value, RemovalCause.EXPLICIT);
+    }
+
+    public static <K, V> RemovalNotification<K, V> make(K key, V value, RemovalCause removalCause) {
+        return getInstance().makeInternal(key, value, removalCause);
     }
 
     private final Constructor<RemovalNotification> constructor;
@@ -41,10 +45,10 @@ class RemovalNotifications {
     }
 
     @SuppressWarnings("unchecked")
-    private <K, V> RemovalNotification<K, V> makeInternal(K key, V value) {
+    private <K, V> RemovalNotification<K, V> makeInternal(K key, V value, RemovalCause removalCause) {
         try {
             try {
-                return (RemovalNotification<K, V>) constructor.newInstance(key, value, RemovalCause.EXPLICIT);
+                return (RemovalNotification<K, V>) constructor.newInstance(key, value, removalCause);
             } catch (InvocationTargetException e) {
                 throw new IllegalStateException(String.format("Creating an instance of %s for key %s and value %s caused an exception to be thrown",
                         RemovalNotification.class.getCanonicalName(), key, value), e);
@@ -0,0 +1,628 @@
+package com.blogspot.mydailyjava.guava.cache.overflow;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+class SegmentStore<K> {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SegmentStore.class);
+
+    private static final String SEGMENT_PREFIX = "segment-", SEGMENT_SUFFIX = ".log";
+
+    private static final int RECORD_HEADER_SIZE = 4;
+
+    private static final double COMPACTION_THRESHOLD = 0.5d;
+
+    private static final String MANIFEST_FILE = "segments.manifest", MANIFEST_TEMPORARY_FILE = "segments.manifest.tmp";
+
+    private static final int MANIFEST_MAGIC = 0x5345474d, MANIFEST_VERSION = 1;
+
+    private final File directory;
+    private final long segmentSize;
+    private final boolean memoryMapped;
+    private final boolean durable;
+
+    private final ConcurrentMap<K, Location> index;
+    private final ConcurrentMap<Integer, Segment> segments;
+    private final ExecutorService compactionExecutor;
+    private final ReadWriteLock clearLock;
+
+    private Segment activeSegment;
+    private int nextSegmentId;
+
+    SegmentStore(File directory, long segmentSize, boolean memoryMapped) {
+        this(directory, segmentSize, memoryMapped, false);
+    }
+
+    /**
+     * @param durable If {@code true}, the store writes a manifest of its records on being closed such that it can
+     *                be recovered by {@link #recover(RecordReader)}.
+     */
+    SegmentStore(File directory, long segmentSize, boolean memoryMapped, boolean durable) {
+        if (segmentSize <= RECORD_HEADER_SIZE) {
+            throw new IllegalArgumentException(String.format("Segment size %d is too small", segmentSize));
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.memoryMapped = memoryMapped;
+        this.durable = durable;
+        this.index = new ConcurrentHashMap<K, Location>();
+        this.segments = new ConcurrentHashMap<Integer, Segment>();
+        this.clearLock = new ReentrantReadWriteLock();
+        this.compactionExecutor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("segment-compaction-" + directory.getName() + "-%d")
+                .setDaemon(true)
+                .build());
+    }
+
+    /**
+     * Reads the key of a record that is recovered from a previous process.
+     */
+    interface RecordReader<K> {
+
+        /**
+         * @return The record's key or {@code null} if the record should be discarded.
+         */
+        K readKey(FileChannel channel, long position, int length) throws IOException;
+    }
+
+    private static class Location {
+
+        private final Segment segment;
+        private final long offset;
+        private final int length;
+
+        private Location(Segment segment, long offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        private int recordSize() {
+            return RECORD_HEADER_SIZE + length;
+        }
+    }
+
+    private static class Segment {
+
+        private final int id;
+        private final File file;
+        private final long capacity;
+        private final AtomicLong liveBytes;
+        private final AtomicBoolean compacting;
+        private final Set<Object> keys;
+
+        private volatile FileChannel channel;
+        private volatile ByteBuffer mapping;
+        private volatile boolean sealed, deleted;
+
+        private long writePosition;
+
+        private Segment(int id, File file, long capacity) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.capacity = capacity;
+            this.liveBytes = new AtomicLong();
+            this.compacting = new AtomicBoolean();
+            this.keys = Collections.newSetFromMap(new ConcurrentHashMap<Object, Boolean>());
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+            randomAccessFile.setLength(capacity);
+            this.channel = randomAccessFile.getChannel();
+        }
+
+        private synchronized FileChannel reopen(FileChannel closedChannel) throws IOException {
+            // Note: A thread that is interrupted during I/O closes the shared channel for all other threads
+            if (deleted) throw new ClosedChannelException();
+            if (channel == closedChannel) {
+                channel = new RandomAccessFile(file, "rw").getChannel();
+            }
+            return channel;
+        }
+
+        private void write(ByteBuffer buffer, long position) throws IOException {
+            FileChannel channel = this.channel;
+            try {
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+            } catch (ClosedChannelException e) {
+                reopen(channel);
+                throw e;
+            }
+        }
+
+        private void read(ByteBuffer buffer, long position) throws IOException {
+            FileChannel channel = this.channel;
+            try {
+                while (buffer.hasRemaining()) {
+                    int read = channel.read(buffer, position);
+                    if (read < 0) {
+                        throw new IOException(String.format("Unexpected end of segment %s", file));
+                    }
+                    position += read;
+                }
+            } catch (ClosedChannelException e) {
+                reopen(channel);
+                throw e;
+            }
+        }
+
+        private ByteBuffer map() throws IOException {
+            ByteBuffer mapping = this.mapping;
+            if (mapping != null) return mapping;
+            synchronized (this) {
+                if (this.mapping == null) {
+                    if (deleted) throw new ClosedChannelException();
+                    // Note: A mapping remains valid after its channel was closed such that readers never block compaction
+                    this.mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0L, capacity);
+                }
+                return this.mapping;
+            }
+        }
+
+        private boolean isMappable() {
+            return capacity <= Integer.MAX_VALUE;
+        }
+
+        private boolean isCompactable() {
+            return sealed && liveBytes.get() < capacity * COMPACTION_THRESHOLD;
+        }
+
+        private synchronized void delete() {
+            if (deleted) return;
+            deleted = true;
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOGGER.warn(String.format("Could not close segment %s", file), e);
+            }
+            if (!file.delete()) {
+                LOGGER.warn("Could not delete segment {}", file);
+            }
+        }
+    }
+
+    private class Compaction implements Runnable {
+
+        private final Segment segment;
+
+        private Compaction(Segment segment) {
+            this.segment = segment;
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (Object candidate : segment.keys) {
+                    @SuppressWarnings("unchecked")
+                    K key = (K) candidate;
+                    Location location = index.get(key);
+                    if (location == null || location.segment != segment) continue;
+                    clearLock.readLock().lock();
+                    try {
+                        if (segment.deleted) return;
+                        Location relocation = append(ByteBuffer.wrap(read(location)));
+                        if (!index.replace(key, location, relocation)) {
+                            release(key, relocation);
+                        } else {
+                            relocation.segment.keys.add(key);
+                            segment.liveBytes.addAndGet(-location.recordSize());
+                        }
+                    } finally {
+                        clearLock.readLock().unlock();
+                    }
+                }
+                if (segment.liveBytes.get() == 0L) {
+                    segments.remove(segment.id);
+                    segment.delete();
+                    LOGGER.debug("Compacted segment {}", segment.file);
+                }
+            } catch (Exception e) {
+                if (!segment.deleted) {
+                    LOGGER.warn(String.format("Could not compact segment %s", segment.file), e);
+                }
+            } finally {
+                segment.compacting.set(false);
+            }
+        }
+    }
+
+    byte[] get(K key) throws IOException {
+        while (true) {
+            Location location = index.get(key);
+            if (location == null) return null;
+            try {
+                return read(location);
+            } catch (ClosedChannelException e) {
+                if (!location.segment.deleted) throw e;
+                if (!isRelocated(key, location)) return null;
+            }
+        }
+    }
+
+    /**
+     * Checks if a record that was located in a deleted segment was relocated by a concurrent compaction.
+     */
+    private boolean isRelocated(K key, Location location) {
+        if (index.get(key) != location) return true;
+        // Note: A location in a deleted segment that is still indexed is stale and must not be retried
+        index.remove(key, location);
+        return false;
+    }
+
+    ByteBuffer getBuffer(K key) throws IOException {
+        if (!memoryMapped) {
+            byte[] bytes = get(key);
+            return bytes == null ? null : ByteBuffer.wrap(bytes);
+        }
+        while (true) {
+            Location location = index.get(key);
+            if (location == null) return null;
+            ByteBuffer mapping;
+            try {
+                if (!location.segment.isMappable()) {
+                    return ByteBuffer.wrap(read(location));
+                }
+                mapping = location.segment.map().duplicate();
+            } catch (ClosedChannelException e) {
+                if (!location.segment.deleted) throw e;
+                if (!isRelocated(key, location)) return null;
+                continue;
+            }
+            mapping.position((int) location.offset + RECORD_HEADER_SIZE);
+            mapping.limit((int) location.offset + RECORD_HEADER_SIZE + location.length);
+            return mapping.slice();
+        }
+    }
+
+    void put(K key, ByteBuffer bytes) throws IOException {
+        // Note: A record must not be indexed after the store was cleared as its segment is already deleted
+        clearLock.readLock().lock();
+        try {
+            Location location = append(bytes);
+            Location previous = index.put(key, location);
+            location.segment.keys.add(key);
+            if (previous != null) {
+                release(key, previous);
+            }
+        } finally {
+            clearLock.readLock().unlock();
+        }
+    }
+
+    void putAll(Map<K, ByteBuffer> values) throws IOException {
+        List<ByteBuffer> records = new ArrayList<ByteBuffer>(values.values());
+        clearLock.readLock().lock();
+        try {
+            List<Location> locations = append(records);
+            int index = 0;
+            for (K key : values.keySet()) {
+                Location location = locations.get(index++);
+                Location previous = this.index.put(key, location);
+                location.segment.keys.add(key);
+                if (previous != null) {
+                    release(key, previous);
+                }
+            }
+        } finally {
+            clearLock.readLock().unlock();
+        }
+    }
+
+    boolean contains(K key) {
+        return index.containsKey(key);
+    }
+
+    Iterator<K> keys() {
+        return Collections.unmodifiableSet(index.keySet()).iterator();
+    }
+
+    boolean remove(K key) {
+        Location previous = index.remove(key);
+        if (previous == null) return false;
+        release(key, previous);
+        return true;
+    }
+
+    void clear() {
+        clearLock.writeLock().lock();
+        try {
+            synchronized (this) {
+                index.clear();
+                for (Segment segment : segments.values()) {
+                    segment.delete();
+                }
+                segments.clear();
+                activeSegment = null;
+            }
+        } finally {
+            clearLock.writeLock().unlock();
+        }
+    }
+
+    int size() {
+        return index.size();
+    }
+
+    void close() {
+        compactionExecutor.shutdown();
+        try {
+            compactionExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            if (durable) {
+                try {
+                    writeManifest();
+                } catch (IOException e) {
+                    LOGGER.warn(String.format("Could not write manifest of segments in %s", directory), e);
+                }
+            }
+            for (Segment segment : segments.values()) {
+                try {
+                    segment.channel.close();
+                } catch (IOException e) {
+                    LOGGER.warn(String.format("Could not close segment %s", segment.file), e);
+                }
+            }
+        }
+    }
+
+    private void writeManifest() throws IOException {
+        for (Segment segment : segments.values()) {
+            segment.channel.force(false);
+        }
+        File temporaryFile = new File(directory, MANIFEST_TEMPORARY_FILE);
+        FileOutputStream fileOutputStream = new FileOutputStream(temporaryFile);
+        try {
+            CheckedOutputStream checkedOutputStream = new CheckedOutputStream(new BufferedOutputStream(fileOutputStream), new CRC32());
+            DataOutputStream dataOutputStream = new DataOutputStream(checkedOutputStream);
+            List<Location> locations = new ArrayList<Location>(index.values());
+            dataOutputStream.writeInt(MANIFEST_MAGIC);
+            dataOutputStream.writeInt(MANIFEST_VERSION);
+            dataOutputStream.writeInt(locations.size());
+            for (Location location : locations) {
+                dataOutputStream.writeInt(location.segment.id);
+                dataOutputStream.writeLong(location.offset);
+                dataOutputStream.writeInt(location.length);
+            }
+            dataOutputStream.writeLong(checkedOutputStream.getChecksum().getValue());
+            dataOutputStream.flush();
+            fileOutputStream.getFD().sync();
+        } finally {
+            fileOutputStream.close();
+        }
+        File manifestFile = new File(directory, MANIFEST_FILE);
+        if (!temporaryFile.renameTo(manifestFile) && !(manifestFile.delete() && temporaryFile.renameTo(manifestFile))) {
+            throw new IOException(String.format("Could not rename %s to %s", temporaryFile, manifestFile));
+        }
+    }
+
+    private List<long[]> readManifest(File manifestFile) {
+        if (!manifestFile.exists()) return null;
+        try {
+            CheckedInputStream checkedInputStream = new CheckedInputStream(new BufferedInputStream(new FileInputStream(manifestFile)), new CRC32());
+            try {
+                DataInputStream dataInputStream = new DataInputStream(checkedInputStream);
+                if (dataInputStream.readInt() != MANIFEST_MAGIC || dataInputStream.readInt() != MANIFEST_VERSION) {
+                    LOGGER.warn("Ignoring manifest {} of unknown format", manifestFile);
+                    return null;
+                }
+                int count = dataInputStream.readInt();
+                List<long[]> entries = new ArrayList<long[]>(Math.max(Math.min(count, 1024 * 1024), 0));
+                for (int i = 0; i < count; i++) {
+                    entries.add(new long[]{dataInputStream.readInt(), dataInputStream.readLong(), dataInputStream.readInt()});
+                }
+                long checksum = checkedInputStream.getChecksum().getValue();
+                if (dataInputStream.readLong() != checksum) {
+                    LOGGER.warn("Ignoring manifest {} with invalid checksum", manifestFile);
+                    return null;
+                }
+                return entries;
+            } finally {
+                checkedInputStream.close();
+            }
+        } catch (IOException e) {
+            LOGGER.warn(String.format("Could not read manifest %s", manifestFile), e);
+            return null;
+        }
+    }
+
+    /**
+     * Recovers the records of a store that was closed by a previous process. Without a valid manifest, it cannot be
+     * determined which records were removed such that any existing segments are discarded. The keys of all records
+     * are read in parallel.
+     *
+     * @param reader A reader for the keys of recovered records.
+     * @return The keys of all recovered records.
+     * @throws IOException If the segments cannot be read.
+     */
+    List<K> recover(final RecordReader<K> reader) throws IOException {
+        File manifestFile = new File(directory, MANIFEST_FILE);
+        List<long[]> entries = readManifest(manifestFile);
+        // Note: The manifest is not longer valid once the segments are modified
+        manifestFile.delete();
+        Map<Integer, File> files = new HashMap<Integer, File>();
+        File[] candidates = directory.listFiles();
+        for (File file : candidates == null ? new File[0] : candidates) {
+            String name = file.getName();
+            if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                try {
+                    files.put(Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())), file);
+                } catch (NumberFormatException e) {
+                    LOGGER.debug("Ignoring file {}", file);
+                }
+            }
+        }
+        if (entries == null) {
+            if (!files.isEmpty()) {
+                LOGGER.warn("Discarding {} segments in {} which were not closed properly", files.size(), directory);
+            }
+            for (File file : files.values()) {
+                file.delete();
+            }
+            return Collections.emptyList();
+        }
+        Map<Integer, List<long[]>> entriesBySegment = new HashMap<Integer, List<long[]>>();
+        for (long[] entry : entries) {
+            List<long[]> segmentEntries = entriesBySegment.get((int) entry[0]);
+            if (segmentEntries == null) {
+                segmentEntries = new ArrayList<long[]>();
+                entriesBySegment.put((int) entry[0], segmentEntries);
+            }
+            segmentEntries.add(entry);
+        }
+        synchronized (this) {
+            for (Map.Entry<Integer, File> file : files.entrySet()) {
+                nextSegmentId = Math.max(nextSegmentId, file.getKey() + 1);
+                if (!entriesBySegment.containsKey(file.getKey())) {
+                    file.getValue().delete();
+                    continue;
+                }
+                Segment segment = new Segment(file.getKey(), file.getValue(), file.getValue().length());
+                segment.sealed = true;
+                segment.writePosition = segment.capacity;
+                segments.put(segment.id, segment);
+            }
+        }
+        final List<K> keys = Collections.synchronizedList(new ArrayList<K>(entries.size()));
+        ExecutorService executorService = Executors.newFixedThreadPool(Math.max(Math.min(Runtime.getRuntime().availableProcessors(), entriesBySegment.size()), 1));
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (final Map.Entry<Integer, List<long[]>> segmentEntries : entriesBySegment.entrySet()) {
+                final Segment segment = segments.get(segmentEntries.getKey());
+                if (segment == null) {
+                    LOGGER.warn("Segment {} of manifest is missing in {}", segmentEntries.getKey(), directory);
+                    continue;
+                }
+                futures.add(executorService.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        for (long[] entry : segmentEntries.getValue()) {
+                            Location location = new Location(segment, entry[1], (int) entry[2]);
+                            if (location.offset + location.recordSize() > segment.capacity) continue;
+                            K key = reader.readKey(segment.channel, location.offset + RECORD_HEADER_SIZE, location.length);
+                            if (key == null) continue;
+                            segment.liveBytes.addAndGet(location.recordSize());
+                            Location previous = index.put(key, location);
+                            segment.keys.add(key);
+                            if (previous != null) {
+                                release(key, previous);
+                            } else {
+                                keys.add(key);
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    throw new IOException("Could not recover segment", e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while recovering segments", e);
+                }
+            }
+        } finally {
+            executorService.shutdown();
+        }
+        for (Segment segment : segments.values()) {
+            scheduleCompactionIfRequired(segment);
+        }
+        return keys;
+    }
+
+    private byte[] read(Location location) throws IOException {
+        byte[] bytes = new byte[location.length];
+        location.segment.read(ByteBuffer.wrap(bytes), location.offset + RECORD_HEADER_SIZE);
+        return bytes;
+    }
+
+    private Location append(ByteBuffer bytes) throws IOException {
+        return append(Collections.singletonList(bytes)).get(0);
+    }
+
+    private List<Location> append(List<ByteBuffer> records) throws IOException {
+        List<Location> locations = new ArrayList<Location>(records.size());
+        synchronized (this) {
+            for (ByteBuffer bytes : records) {
+                int recordSize = RECORD_HEADER_SIZE + bytes.remaining();
+                if (activeSegment == null || activeSegment.writePosition + recordSize > activeSegment.capacity) {
+                    rollSegment(recordSize);
+                }
+                locations.add(new Location(activeSegment, activeSegment.writePosition, bytes.remaining()));
+                activeSegment.writePosition += recordSize;
+                activeSegment.liveBytes.addAndGet(recordSize);
+            }
+        }
+        // Records that are located consecutively within a segment are written at once
+        int from = 0;
+        while (from < records.size()) {
+            Location first = locations.get(from);
+            int to = from, size = 0;
+            while (to < records.size() && locations.get(to).segment == first.segment) {
+                size += locations.get(to++).recordSize();
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(size);
+            for (ByteBuffer bytes : records.subList(from, to)) {
+                buffer.putInt(bytes.remaining()).put(bytes.duplicate());
+            }
+            buffer.flip();
+            first.segment.write(buffer, first.offset);
+            from = to;
+        }
+        return locations;
+    }
+
+    private void rollSegment(int minimumCapacity) throws IOException {
+        Segment previous = activeSegment;
+        int id = nextSegmentId++;
+        File file = new File(directory, String.format("%s%08d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+        activeSegment = new Segment(id, file, Math.max(segmentSize, minimumCapacity));
+        segments.put(id, activeSegment);
+        if (previous != null) {
+            previous.sealed = true;
+            scheduleCompactionIfRequired(previous);
+        }
+    }
+
+    private void release(K key, Location location) {
+        // Note: A key is only removed from a segment's keys if it was not concurrently indexed into the same segment again
+        location.segment.keys.remove(key);
+        Location current = index.get(key);
+        if (current != null && current.segment == location.segment) {
+            location.segment.keys.add(key);
+        }
+        location.segment.liveBytes.addAndGet(-location.recordSize());
+        scheduleCompactionIfRequired(location.segment);
+    }
+
+    private void scheduleCompactionIfRequired(Segment segment) {
+        if (segment.isCompactable() && !segment.deleted && segment.compacting.compareAndSet(false, true)) {
+            try {
+                compactionExecutor.execute(new Compaction(segment));
+            } catch (RejectedExecutionException e) {
+                segment.compacting.set(false);
+            }
+        }
+    }
+}
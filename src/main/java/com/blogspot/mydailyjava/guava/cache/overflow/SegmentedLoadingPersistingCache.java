@@ -0,0 +1,65 @@
+package com.blogspot.mydailyjava.guava.cache.overflow;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.RemovalListener;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.util.concurrent.ExecutionException;
+
+public class SegmentedLoadingPersistingCache<K, V> extends SegmentedPersistingCache<K, V> implements LoadingCache<K, V> {
+
+    private final LoadingDelegate<K, V> loadingDelegate;
+
+    protected SegmentedLoadingPersistingCache(CacheBuilder<Object, Object> cacheBuilder, CacheLoader<? super K, V> cacheLoader, long segmentSize) {
+        this(cacheBuilder, cacheLoader, Files.createTempDir(), segmentSize);
+    }
+
+    protected SegmentedLoadingPersistingCache(CacheBuilder<Object, Object> cacheBuilder, CacheLoader<? super K, V> cacheLoader,
+                                              File persistenceDirectory, long segmentSize) {
+        this(cacheBuilder, cacheLoader, persistenceDirectory, segmentSize, null);
+    }
+
+    protected SegmentedLoadingPersistingCache(CacheBuilder<Object, Object> cacheBuilder, CacheLoader<? super K, V> cacheLoader,
+                                              long segmentSize, RemovalListener<K, V> removalListener) {
+        this(cacheBuilder, cacheLoader, Files.createTempDir(), segmentSize, removalListener);
+    }
+
+    protected SegmentedLoadingPersistingCache(CacheBuilder<Object, Object> cacheBuilder, CacheLoader<? super K, V> cacheLoader,
+                                              File persistenceDirectory, long segmentSize, RemovalListener<K, V> removalListener) {
+        this(FileSystemCacheBuilder.of(cacheBuilder, persistenceDirectory, removalListener).segmentedPersistence(segmentSize), cacheLoader);
+    }
+
+    SegmentedLoadingPersistingCache(FileSystemCacheBuilder<? super K, ? super V> builder, CacheLoader<? super K, V> cacheLoader) {
+        super(builder, cacheLoader);
+        this.loadingDelegate = new LoadingDelegate<K, V>(this, cacheLoader);
+    }
+
+    @Override
+    public V get(K key) throws ExecutionException {
+        return loadingDelegate.get(key);
+    }
+
+    @Override
+    public V getUnchecked(K key) {
+        return loadingDelegate.getUnchecked(key);
+    }
+
+    @Override
+    public ImmutableMap<K, V> getAll(Iterable<? extends K> keys) throws ExecutionException {
+        return loadingDelegate.getAll(keys);
+    }
+
+    @Override
+    public V apply(K key) {
+        return loadingDelegate.apply(key);
+    }
+
+    @Override
+    public void refresh(K key) {
+        loadingDelegate.refresh(key);
+    }
+}
@@ -0,0 +1,142 @@
+package com.blogspot.mydailyjava.guava.cache.overflow;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.RemovalListener;
+import com.google.common.collect.Iterators;
+import com.google.common.io.Files;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+public class SegmentedPersistingCache<K, V> extends FileSystemPersistingCache<K, V> {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SegmentedPersistingCache.class);
+
+    private final List<SegmentStore<K>> segmentStores;
+
+    protected SegmentedPersistingCache(CacheBuilder<Object, Object> cacheBuilder, long segmentSize) {
+        this(cacheBuilder, Files.createTempDir(), segmentSize);
+    }
+
+    protected SegmentedPersistingCache(CacheBuilder<Object, Object> cacheBuilder, File persistenceDirectory, long segmentSize) {
+        this(cacheBuilder, persistenceDirectory, segmentSize, null);
+    }
+
+    protected SegmentedPersistingCache(CacheBuilder<Object, Object> cacheBuilder, long segmentSize, RemovalListener<K, V> removalListener) {
+        this(cacheBuilder, Files.createTempDir(), segmentSize, removalListener);
+    }
+
+    protected SegmentedPersistingCache(CacheBuilder<Object, Object> cacheBuilder, File persistenceDirectory, long segmentSize,
+                                       RemovalListener<K, V> removalListener) {
+        this(FileSystemCacheBuilder.of(cacheBuilder, persistenceDirectory, removalListener).segmentedPersistence(segmentSize));
+    }
+
+    SegmentedPersistingCache(FileSystemCacheBuilder<? super K, ? super V> builder) {
+        this(builder, null);
+    }
+
+    SegmentedPersistingCache(FileSystemCacheBuilder<? super K, ? super V> builder, CacheLoader<? super K, V> cacheLoader) {
+        super(builder, cacheLoader);
+        this.segmentStores = new ArrayList<SegmentStore<K>>();
+        for (File persistenceRootDirectory : getPersistenceRootDirectories()) {
+            segmentStores.add(new SegmentStore<K>(persistenceRootDirectory, builder.getSegmentSize(), builder.isMemoryMappedReads(),
+                    builder.isWarmRestart()));
+        }
+    }
+
+    private SegmentStore<K> segmentStoreFor(K key) {
+        return segmentStores.get(rootIndexFor(key));
+    }
+
+    @Override
+    void recover() {
+        for (int index = 0; index < segmentStores.size(); index++) {
+            File persistenceRootDirectory = getPersistenceRootDirectories().get(index);
+            try {
+                List<K> keys = segmentStores.get(index).recover(recoveringRecordReader());
+                LOGGER.info("Recovered {} persisted entries from {}", keys.size(), persistenceRootDirectory);
+            } catch (IOException e) {
+                LOGGER.warn(String.format("Could not recover segments in %s", persistenceRootDirectory), e);
+            }
+        }
+        evictFromDisk();
+    }
+
+    @Override
+    V findOnDisk(K key) throws IOException {
+        ByteBuffer buffer = segmentStoreFor(key).getBuffer(key);
+        if (buffer == null) return null;
+        return readPersisted(key, buffer);
+    }
+
+    @Override
+    ByteBuffer findFrameOnDisk(K key) throws IOException {
+        return segmentStoreFor(key).getBuffer(key);
+    }
+
+    @Override
+    void writeOnDisk(K key, ByteBuffer serialized) throws IOException {
+        segmentStoreFor(key).put(key, serialized);
+    }
+
+    @Override
+    void writeAllOnRoot(int rootIndex, Map<K, ByteBuffer> serialized) throws IOException {
+        segmentStores.get(rootIndex).putAll(serialized);
+    }
+
+    @Override
+    boolean mightBeOnDisk(K key) {
+        return segmentStoreFor(key).contains(key);
+    }
+
+    @Override
+    boolean containsOnDisk(K key) {
+        return segmentStoreFor(key).contains(key);
+    }
+
+    @Override
+    Iterator<K> diskKeyIterator() {
+        List<Iterator<K>> keys = new ArrayList<Iterator<K>>(segmentStores.size());
+        for (SegmentStore<K> segmentStore : segmentStores) {
+            keys.add(segmentStore.keys());
+        }
+        return Iterators.concat(keys.iterator());
+    }
+
+    @Override
+    void deleteOnDisk(K key) {
+        segmentStoreFor(key).remove(key);
+    }
+
+    @Override
+    void deleteAllOnDisk() {
+        for (SegmentStore<K> segmentStore : segmentStores) {
+            segmentStore.clear();
+        }
+    }
+
+    @Override
+    int sizeOnDisk() {
+        int size = 0;
+        for (SegmentStore<K> segmentStore : segmentStores) {
+            size += segmentStore.size();
+        }
+        return size;
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        for (SegmentStore<K> segmentStore : segmentStores) {
+            segmentStore.close();
+        }
+    }
+}
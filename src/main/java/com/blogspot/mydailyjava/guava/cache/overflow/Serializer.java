@@ -0,0 +1,33 @@
+package com.blogspot.mydailyjava.guava.cache.overflow;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Translates keys or values of a cache into a binary form that can be persisted. Implementations must be thread-safe.
+ * Several implementations are provided by {@link Serializers}.
+ *
+ * @param <T> The type of the serialized objects.
+ */
+public interface Serializer<T> {
+
+    /**
+     * Serializes an object. The returned buffer is only read by the cache and might therefore be shared with the
+     * object, for example by wrapping an array.
+     *
+     * @param object The object to serialize.
+     * @return A buffer containing the serialized object between its position and its limit.
+     * @throws IOException If the object cannot be serialized.
+     */
+    ByteBuffer serialize(T object) throws IOException;
+
+    /**
+     * Deserializes an object. The buffer might not be backed by an array and must not be retained after this
+     * method returns.
+     *
+     * @param buffer A buffer containing the serialized object between its position and its limit.
+     * @return The deserialized object.
+     * @throws IOException If the object cannot be deserialized.
+     */
+    T deserialize(ByteBuffer buffer) throws IOException;
+}
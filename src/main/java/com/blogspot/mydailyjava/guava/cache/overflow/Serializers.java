@@ -0,0 +1,262 @@
+package com.blogspot.mydailyjava.guava.cache.overflow;
+
+import com.google.common.base.Charsets;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * Provides {@link Serializer} implementations for common types.
+ */
+public final class Serializers {
+
+    private Serializers() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * @return A serializer for byte arrays that does not copy an array when serializing it.
+     */
+    public static Serializer<byte[]> byteArrays() {
+        return ByteArraySerializer.INSTANCE;
+    }
+
+    /**
+     * @return A serializer that persists strings in UTF-8 encoding.
+     */
+    public static Serializer<String> strings() {
+        return StringSerializer.INSTANCE;
+    }
+
+    /**
+     * @return A serializer for {@link Long} values.
+     */
+    public static Serializer<Long> longs() {
+        return LongSerializer.INSTANCE;
+    }
+
+    /**
+     * @return A serializer for {@link Integer} values.
+     */
+    public static Serializer<Integer> integers() {
+        return IntegerSerializer.INSTANCE;
+    }
+
+    /**
+     * @return A serializer for {@link Double} values.
+     */
+    public static Serializer<Double> doubles() {
+        return DoubleSerializer.INSTANCE;
+    }
+
+    /**
+     * @return A serializer that relies on Java serialization. Any serialized object must be {@link Serializable}.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> Serializer<T> javaSerialization() {
+        return (Serializer<T>) JavaSerializer.INSTANCE;
+    }
+
+    /**
+     * Returns a serializer that prefixes an object's binary form with a marker of its type. Byte arrays, strings and
+     * boxed primitives are serialized by a specialized serializer, any other object is serialized using Java
+     * serialization. This is the default serializer of a cache that overflows to disk.
+     *
+     * @return A serializer for objects of any type.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> Serializer<T> typed() {
+        return (Serializer<T>) TypedSerializer.INSTANCE;
+    }
+
+    private static ByteBuffer javaSerialize(ByteArrayOutputStream outputStream, Object object) throws IOException {
+        ObjectOutputStream objectOutputStream = new ObjectOutputStream(outputStream);
+        objectOutputStream.writeObject(object);
+        objectOutputStream.flush();
+        return ByteBuffer.wrap(outputStream.toByteArray());
+    }
+
+    private static byte[] toByteArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static enum ByteArraySerializer implements Serializer<byte[]> {
+
+        INSTANCE;
+
+        @Override
+        public ByteBuffer serialize(byte[] object) {
+            return ByteBuffer.wrap(object);
+        }
+
+        @Override
+        public byte[] deserialize(ByteBuffer buffer) {
+            return toByteArray(buffer);
+        }
+    }
+
+    private static enum StringSerializer implements Serializer<String> {
+
+        INSTANCE;
+
+        @Override
+        public ByteBuffer serialize(String object) {
+            return ByteBuffer.wrap(object.getBytes(Charsets.UTF_8));
+        }
+
+        @Override
+        public String deserialize(ByteBuffer buffer) {
+            if (buffer.hasArray()) {
+                String string = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining(), Charsets.UTF_8);
+                buffer.position(buffer.limit());
+                return string;
+            } else {
+                return new String(toByteArray(buffer), Charsets.UTF_8);
+            }
+        }
+    }
+
+    private static enum LongSerializer implements Serializer<Long> {
+
+        INSTANCE;
+
+        @Override
+        public ByteBuffer serialize(Long object) {
+            ByteBuffer buffer = ByteBuffer.allocate(8);
+            buffer.putLong(0, object);
+            return buffer;
+        }
+
+        @Override
+        public Long deserialize(ByteBuffer buffer) {
+            return buffer.getLong();
+        }
+    }
+
+    private static enum IntegerSerializer implements Serializer<Integer> {
+
+        INSTANCE;
+
+        @Override
+        public ByteBuffer serialize(Integer object) {
+            ByteBuffer buffer = ByteBuffer.allocate(4);
+            buffer.putInt(0, object);
+            return buffer;
+        }
+
+        @Override
+        public Integer deserialize(ByteBuffer buffer) {
+            return buffer.getInt();
+        }
+    }
+
+    private static enum DoubleSerializer implements Serializer<Double> {
+
+        INSTANCE;
+
+        @Override
+        public ByteBuffer serialize(Double object) {
+            ByteBuffer buffer = ByteBuffer.allocate(8);
+            buffer.putDouble(0, object);
+            return buffer;
+        }
+
+        @Override
+        public Double deserialize(ByteBuffer buffer) {
+            return buffer.getDouble();
+        }
+    }
+
+    private static enum JavaSerializer implements Serializer<Object> {
+
+        INSTANCE;
+
+        @Override
+        public ByteBuffer serialize(Object object) throws IOException {
+            return javaSerialize(new ByteArrayOutputStream(), object);
+        }
+
+        @Override
+        public Object deserialize(ByteBuffer buffer) throws IOException {
+            try {
+                return new ObjectInputStream(new ByteBufferInputStream(buffer)).readObject();
+            } catch (ClassNotFoundException e) {
+                throw new IOException("Could not find class of serialized object", e);
+            }
+        }
+    }
+
+    private static enum TypedSerializer implements Serializer<Object> {
+
+        INSTANCE;
+
+        private static final byte BYTE_ARRAY = 1, STRING = 2, LONG = 3, INTEGER = 4, DOUBLE = 5,
+                FLOAT = 6, SHORT = 7, BYTE = 8, BOOLEAN = 9, CHARACTER = 10, SERIALIZABLE = 127;
+
+        @Override
+        public ByteBuffer serialize(Object object) throws IOException {
+            if (object instanceof byte[]) {
+                return tagged(BYTE_ARRAY, (byte[]) object);
+            } else if (object instanceof String) {
+                return tagged(STRING, ((String) object).getBytes(Charsets.UTF_8));
+            } else if (object instanceof Long) {
+                return (ByteBuffer) ByteBuffer.allocate(9).put(LONG).putLong((Long) object).flip();
+            } else if (object instanceof Integer) {
+                return (ByteBuffer) ByteBuffer.allocate(5).put(INTEGER).putInt((Integer) object).flip();
+            } else if (object instanceof Double) {
+                return (ByteBuffer) ByteBuffer.allocate(9).put(DOUBLE).putDouble((Double) object).flip();
+            } else if (object instanceof Float) {
+                return (ByteBuffer) ByteBuffer.allocate(5).put(FLOAT).putFloat((Float) object).flip();
+            } else if (object instanceof Short) {
+                return (ByteBuffer) ByteBuffer.allocate(3).put(SHORT).putShort((Short) object).flip();
+            } else if (object instanceof Byte) {
+                return (ByteBuffer) ByteBuffer.allocate(2).put(BYTE).put((Byte) object).flip();
+            } else if (object instanceof Boolean) {
+                return (ByteBuffer) ByteBuffer.allocate(2).put(BOOLEAN).put((byte) ((Boolean) object ? 1 : 0)).flip();
+            } else if (object instanceof Character) {
+                return (ByteBuffer) ByteBuffer.allocate(3).put(CHARACTER).putChar((Character) object).flip();
+            } else {
+                ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+                outputStream.write(SERIALIZABLE);
+                return javaSerialize(outputStream, object);
+            }
+        }
+
+        private static ByteBuffer tagged(byte tag, byte[] bytes) {
+            return (ByteBuffer) ByteBuffer.allocate(bytes.length + 1).put(tag).put(bytes).flip();
+        }
+
+        @Override
+        public Object deserialize(ByteBuffer buffer) throws IOException {
+            byte tag = buffer.get();
+            switch (tag) {
+                case BYTE_ARRAY:
+                    return ByteArraySerializer.INSTANCE.deserialize(buffer);
+                case STRING:
+                    return StringSerializer.INSTANCE.deserialize(buffer);
+                case LONG:
+                    return buffer.getLong();
+                case INTEGER:
+                    return buffer.getInt();
+                case DOUBLE:
+                    return buffer.getDouble();
+                case FLOAT:
+                    return buffer.getFloat();
+                case SHORT:
+                    return buffer.getShort();
+                case BYTE:
+                    return buffer.get();
+                case BOOLEAN:
+                    return buffer.get() != 0;
+                case CHARACTER:
+                    return buffer.getChar();
+                case SERIALIZABLE:
+                    return JavaSerializer.INSTANCE.deserialize(buffer);
+                default:
+                    throw new IOException(String.format("Unknown type marker %d", tag));
+            }
+        }
+    }
+}
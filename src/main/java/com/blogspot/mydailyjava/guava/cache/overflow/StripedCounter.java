@@ -0,0 +1,44 @@
+package com.blogspot.mydailyjava.guava.cache.overflow;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that spreads concurrent increments over several cells that are selected by the incrementing thread.
+ * Cells are padded to separate cache lines such that threads that update different cells do not contend.
+ */
+class StripedCounter {
+
+    private static final int PADDING = 8;
+    private static final int STRIPES;
+
+    static {
+        int stripes = 1;
+        while (stripes < Runtime.getRuntime().availableProcessors() * 2) {
+            stripes <<= 1;
+        }
+        STRIPES = stripes;
+    }
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+    void increment() {
+        add(1L);
+    }
+
+    void add(long value) {
+        cells.addAndGet(cellIndex(), value);
+    }
+
+    long sum() {
+        long sum = 0L;
+        for (int index = 0; index < cells.length(); index += PADDING) {
+            sum += cells.get(index);
+        }
+        return sum;
+    }
+
+    private static int cellIndex() {
+        long id = Thread.currentThread().getId() * 0x9e3779b97f4a7c15L;
+        return ((int) (id >>> 32) & (STRIPES - 1)) * PADDING;
+    }
+}
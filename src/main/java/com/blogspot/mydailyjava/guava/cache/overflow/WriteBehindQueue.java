@@ -0,0 +1,259 @@
+package com.blogspot.mydailyjava.guava.cache.overflow;
+
+import com.google.common.util.concurrent.Striped;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+abstract class WriteBehindQueue<K, V> {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(WriteBehindQueue.class);
+
+    private static final int MAXIMUM_BATCH_SIZE = 64;
+
+    private static final long POLL_INTERVAL_MILLIS = 100L;
+
+    private static final int MAXIMUM_ATTEMPTS = 3;
+
+    private final BlockingQueue<Entry<K, V>> queue;
+    private final ConcurrentMap<K, V> pending;
+    private final Set<K> writing;
+    private final Striped<Lock> locks;
+    private final ReadWriteLock clearLock;
+    private final ExecutorService writers;
+
+    private volatile boolean closed;
+
+    WriteBehindQueue(int capacity, int writerThreads) {
+        this.queue = new ArrayBlockingQueue<Entry<K, V>>(capacity);
+        this.pending = new ConcurrentHashMap<K, V>();
+        this.writing = Collections.newSetFromMap(new ConcurrentHashMap<K, Boolean>());
+        this.locks = Striped.lock(writerThreads * MAXIMUM_BATCH_SIZE);
+        this.clearLock = new ReentrantReadWriteLock();
+        this.writers = Executors.newFixedThreadPool(writerThreads, new ThreadFactoryBuilder()
+                .setNameFormat("write-behind-%d")
+                .setDaemon(true)
+                .build());
+        for (int i = 0; i < writerThreads; i++) {
+            writers.execute(new Writer());
+        }
+    }
+
+    private static class Entry<K, V> {
+
+        private final K key;
+        private final V value;
+        private final int attempt;
+
+        private Entry(K key, V value, int attempt) {
+            this.key = key;
+            this.value = value;
+            this.attempt = attempt;
+        }
+    }
+
+    private class Writer implements Runnable {
+        @Override
+        public void run() {
+            List<Entry<K, V>> batch = new ArrayList<Entry<K, V>>(MAXIMUM_BATCH_SIZE);
+            while (true) {
+                Entry<K, V> entry;
+                try {
+                    entry = queue.poll(POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (entry == null) {
+                    if (closed) return;
+                    continue;
+                }
+                batch.add(entry);
+                queue.drainTo(batch, MAXIMUM_BATCH_SIZE - 1);
+                boolean written = write(batch);
+                batch.clear();
+                if (!written) {
+                    // Note: A failing disk is not retried before the next poll interval
+                    try {
+                        Thread.sleep(POLL_INTERVAL_MILLIS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Persists a batch of entries that were evicted from memory.
+     *
+     * @param values The entries to persist.
+     * @throws Exception If the entries could not be persisted.
+     */
+    protected abstract void persist(Map<K, V> values) throws Exception;
+
+    /**
+     * Determines if an entry of a batch that is being persisted was already written.
+     *
+     * @param key The entry's key.
+     * @return {@code true} if the entry was written.
+     */
+    protected abstract boolean isPersisted(K key);
+
+    /**
+     * Is notified of entries that could not be persisted after several attempts and that are no longer queued.
+     *
+     * @param values The entries that were discarded.
+     */
+    protected abstract void discard(Map<K, V> values);
+
+    /**
+     * Queues an entry for being persisted. If the queue is full, the calling thread is blocked until an entry was
+     * taken from the queue.
+     *
+     * @param key   The entry's key.
+     * @param value The entry's value.
+     * @return {@code false} if the entry was not queued and must be persisted by the calling thread.
+     */
+    boolean enqueue(K key, V value) {
+        if (closed) return false;
+        pending.put(key, value);
+        try {
+            queue.put(new Entry<K, V>(key, value, 1));
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            pending.remove(key, value);
+            return false;
+        }
+    }
+
+    /**
+     * Removes a value that is not yet persisted from the queue.
+     *
+     * @param key The key of the value.
+     * @return The queued value or {@code null} if no value is queued for the key.
+     */
+    V claim(K key) {
+        Lock lock = locks.get(key);
+        lock.lock();
+        try {
+            return pending.remove(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns a value that is not yet persisted without removing it from the queue.
+     *
+     * @param key The key of the value.
+     * @return The queued value or {@code null} if no value is queued for the key.
+     */
+    V peek(K key) {
+        return pending.get(key);
+    }
+
+    Iterator<K> keys() {
+        return Collections.unmodifiableSet(pending.keySet()).iterator();
+    }
+
+    void clear() {
+        clearLock.writeLock().lock();
+        try {
+            queue.clear();
+            pending.clear();
+        } finally {
+            clearLock.writeLock().unlock();
+        }
+    }
+
+    int size() {
+        return pending.size();
+    }
+
+    /**
+     * Counts the queued entries that were not yet written. An entry of a batch that is being persisted remains queued
+     * until the entire batch is written such that it is only counted until it was written itself.
+     */
+    int sizeOfUnwritten() {
+        int size = pending.size();
+        for (K key : writing) {
+            if (isPersisted(key)) size--;
+        }
+        return Math.max(size, 0);
+    }
+
+    void close() {
+        closed = true;
+        writers.shutdown();
+        try {
+            writers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return {@code false} if the batch could not be persisted.
+     */
+    private boolean write(List<Entry<K, V>> batch) {
+        List<K> keys = new ArrayList<K>(batch.size());
+        for (Entry<K, V> entry : batch) {
+            keys.add(entry.key);
+        }
+        Map<K, V> discarded = new LinkedHashMap<K, V>();
+        clearLock.readLock().lock();
+        List<Lock> acquired = new ArrayList<Lock>(batch.size());
+        try {
+            for (Lock lock : locks.bulkGet(keys)) {
+                lock.lock();
+                acquired.add(lock);
+            }
+            Map<K, V> values = new LinkedHashMap<K, V>();
+            Map<K, Entry<K, V>> entries = new HashMap<K, Entry<K, V>>();
+            for (Entry<K, V> entry : batch) {
+                if (pending.get(entry.key) == entry.value) {
+                    values.put(entry.key, entry.value);
+                    entries.put(entry.key, entry);
+                }
+            }
+            if (values.isEmpty()) return true;
+            writing.addAll(values.keySet());
+            try {
+                persist(values);
+            } catch (Exception e) {
+                LOGGER.warn(String.format("Could not persist %d queued values", values.size()), e);
+                // Note: Entries remain pending and visible to readers while they are retried
+                for (Entry<K, V> entry : entries.values()) {
+                    if (closed || entry.attempt >= MAXIMUM_ATTEMPTS
+                            || !queue.offer(new Entry<K, V>(entry.key, entry.value, entry.attempt + 1))) {
+                        pending.remove(entry.key, entry.value);
+                        discarded.put(entry.key, entry.value);
+                    }
+                }
+                return false;
+            }
+            for (Map.Entry<K, V> entry : values.entrySet()) {
+                writing.remove(entry.getKey());
+                pending.remove(entry.getKey(), entry.getValue());
+            }
+            return true;
+        } finally {
+            writing.removeAll(keys);
+            for (Lock lock : acquired) {
+                lock.unlock();
+            }
+            clearLock.readLock().unlock();
+            if (!discarded.isEmpty()) {
+                LOGGER.error("Discarding {} queued values that could not be persisted", discarded.size());
+                discard(discarded);
+            }
+        }
+    }
+}
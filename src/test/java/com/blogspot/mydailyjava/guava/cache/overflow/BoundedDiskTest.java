@@ -0,0 +1,115 @@
+package com.blogspot.mydailyjava.guava.cache.overflow;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.Closeable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class BoundedDiskTest {
+
+    private static final int MAXIMUM_DISK_ENTRIES = 10;
+
+    @DataProvider
+    public Object[][] builders() {
+        return new Object[][]{
+                {FileSystemCacheBuilder.newBuilder().maximumSize(1L)},
+                {FileSystemCacheBuilder.newBuilder().maximumSize(1L).segmentedPersistence(1024L * 1024L)},
+                {FileSystemCacheBuilder.newBuilder().maximumSize(1L).offHeapTier(4096L)}
+        };
+    }
+
+    @Test(dataProvider = "builders")
+    public void testMaximumDiskEntries(FileSystemCacheBuilder<Object, Object> builder) throws Exception {
+        final Map<String, String> evicted = new ConcurrentHashMap<String, String>();
+        Cache<String, String> cache = builder
+                .maximumDiskEntries(MAXIMUM_DISK_ENTRIES)
+                .removalListener(new RemovalListener<String, String>() {
+                    @Override
+                    public void onRemoval(RemovalNotification<String, String> notification) {
+                        if (notification.getCause() == RemovalCause.SIZE) {
+                            evicted.put(notification.getKey(), notification.getValue());
+                        }
+                    }
+                })
+                .build();
+        try {
+            final int count = 100;
+            for (int i = 0; i < count; i++) {
+                cache.put(KeyValuePair.makeKey(i), KeyValuePair.makeValue(i));
+            }
+            assertTrue(((FileSystemPersistingCache<String, String>) cache).sizeOnDisk() <= MAXIMUM_DISK_ENTRIES);
+            assertEquals(evicted.size() + cache.size(), count);
+            for (Map.Entry<String, String> entry : evicted.entrySet()) {
+                assertEquals(entry.getValue(), KeyValuePair.makeValue(KeyValuePair.fromKey(entry.getKey())));
+                assertNull(cache.getIfPresent(entry.getKey()));
+            }
+            assertEquals(cache.getIfPresent(KeyValuePair.makeKey(count - 1)), KeyValuePair.makeValue(count - 1));
+        } finally {
+            cache.invalidateAll();
+            ((Closeable) cache).close();
+        }
+    }
+
+    @Test
+    public void testRetainedCopiesAreEvictedSilently() throws Exception {
+        final Map<String, String> evicted = new ConcurrentHashMap<String, String>();
+        Cache<String, String> cache = FileSystemCacheBuilder.newBuilder()
+                .maximumSize(2L)
+                .maximumDiskEntries(MAXIMUM_DISK_ENTRIES)
+                .removalListener(new RemovalListener<String, String>() {
+                    @Override
+                    public void onRemoval(RemovalNotification<String, String> notification) {
+                        if (notification.getCause() == RemovalCause.SIZE) {
+                            evicted.put(notification.getKey(), notification.getValue());
+                        }
+                    }
+                })
+                .build();
+        try {
+            final int count = 100;
+            String retained = KeyValuePair.makeKey(count);
+            cache.put(retained, KeyValuePair.makeValue(count));
+            cache.put(KeyValuePair.makeKey(count + 1), KeyValuePair.makeValue(count + 1));
+            cache.put(KeyValuePair.makeKey(count + 2), KeyValuePair.makeValue(count + 2));
+            for (int i = 0; i < count; i++) {
+                cache.put(KeyValuePair.makeKey(i), KeyValuePair.makeValue(i));
+                // Note: The entry is promoted once and is afterwards read from memory while its copy is evicted from disk
+                assertEquals(cache.getIfPresent(retained), KeyValuePair.makeValue(count));
+            }
+            assertFalse(evicted.containsKey(retained));
+            assertEquals(evicted.size() + cache.size(), count + 3);
+        } finally {
+            cache.invalidateAll();
+            ((Closeable) cache).close();
+        }
+    }
+
+    @Test
+    public void testMaximumDiskBytes() throws Exception {
+        Cache<Integer, byte[]> cache = FileSystemCacheBuilder.newBuilder()
+                .maximumSize(1L)
+                .maximumDiskBytes(10L * 1024L)
+                .build();
+        try {
+            for (int i = 0; i < 100; i++) {
+                cache.put(i, new byte[1000]);
+            }
+            long size = cache.size();
+            assertTrue(size > 1L && size <= 11L);
+        } finally {
+            cache.invalidateAll();
+            ((Closeable) cache).close();
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.blogspot.mydailyjava.guava.cache.overflow;
+
+import com.google.common.cache.Cache;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+public class CleanPromotionTest {
+
+    @DataProvider
+    public Object[][] caches() {
+        return new Object[][]{
+                {FileSystemCacheBuilder.newBuilder().maximumSize(1L).<String, String>build()},
+                {FileSystemCacheBuilder.newBuilder().maximumSize(1L).segmentedPersistence(1024L * 1024L).<String, String>build()},
+                {FileSystemCacheBuilder.newBuilder().maximumSize(1L).offHeapTier(1024L * 1024L).<String, String>build()}
+        };
+    }
+
+    @Test(dataProvider = "caches")
+    public void testUnmodifiedValueIsNotPersistedAgain(Cache<String, String> cache) throws Exception {
+        try {
+            cache.put("a", "a");
+            cache.put("b", "b");
+            for (int round = 0; round < 5; round++) {
+                assertEquals(cache.getIfPresent("a"), "a");
+                assertEquals(cache.getIfPresent("b"), "b");
+            }
+            assertEquals(persistedCount(cache), 2L);
+            assertEquals(cache.size(), 2L);
+        } finally {
+            cache.invalidateAll();
+            ((FileSystemPersistingCache<?, ?>) cache).close();
+        }
+    }
+
+    @Test(dataProvider = "caches")
+    public void testReplacedValueIsPersistedAgain(Cache<String, String> cache) throws Exception {
+        try {
+            cache.put("a", "a");
+            cache.put("b", "b");
+            assertEquals(cache.getIfPresent("a"), "a");
+            cache.put("a", "c");
+            assertEquals(cache.getIfPresent("b"), "b");
+            assertEquals(cache.getIfPresent("a"), "c");
+            assertEquals(cache.size(), 2L);
+        } finally {
+            cache.invalidateAll();
+            ((FileSystemPersistingCache<?, ?>) cache).close();
+        }
+    }
+
+    @Test(dataProvider = "caches")
+    public void testInvalidatedValueIsDeleted(Cache<String, String> cache) throws Exception {
+        try {
+            cache.put("a", "a");
+            cache.put("b", "b");
+            assertEquals(cache.getIfPresent("a"), "a");
+            cache.invalidate("a");
+            assertEquals(cache.getIfPresent("b"), "b");
+            assertNull(cache.getIfPresent("a"));
+            assertEquals(cache.size(), 1L);
+        } finally {
+            cache.invalidateAll();
+            ((FileSystemPersistingCache<?, ?>) cache).close();
+        }
+    }
+
+    private static long persistedCount(Cache<String, String> cache) {
+        CompressionStats stats = ((FileSystemPersistingCache<?, ?>) cache).compressionStats();
+        return stats.compressedCount() + stats.uncompressedCount();
+    }
+}
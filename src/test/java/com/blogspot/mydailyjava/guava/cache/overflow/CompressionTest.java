@@ -0,0 +1,71 @@
+package com.blogspot.mydailyjava.guava.cache.overflow;
+
+import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class CompressionTest {
+
+    private static final int THRESHOLD = 64;
+
+    @DataProvider
+    public Object[][] caches() {
+        return new Object[][]{
+                {FileSystemCacheBuilder.newBuilder().maximumSize(1L).compression(Compressors.deflate(), THRESHOLD).<Integer, String>build()},
+                {FileSystemCacheBuilder.newBuilder().maximumSize(1L).compression(Compressors.deflate(), THRESHOLD).memoryMappedReads().<Integer, String>build()},
+                {FileSystemCacheBuilder.newBuilder().maximumSize(1L).compression(Compressors.deflate(), THRESHOLD).segmentedPersistence(1024L * 1024L).<Integer, String>build()}
+        };
+    }
+
+    @Test(dataProvider = "caches")
+    public void testCompression(Cache<Integer, String> cache) throws Exception {
+        try {
+            final int count = 20;
+            for (int i = 0; i < count; i++) {
+                cache.put(i, makeValue(i));
+            }
+            for (int i = 0; i < count; i++) {
+                assertEquals(cache.getIfPresent(i), makeValue(i));
+            }
+            CompressionStats stats = ((FileSystemPersistingCache<Integer, String>) cache).compressionStats();
+            assertTrue(stats.compressedCount() > 0L);
+            assertTrue(stats.uncompressedCount() > 0L);
+            assertTrue(stats.decompressionCount() > 0L);
+            assertTrue(stats.compressionRatio() > 2d);
+        } finally {
+            cache.invalidateAll();
+            ((Closeable) cache).close();
+        }
+    }
+
+    @Test
+    public void testDeflateRoundTrip() throws Exception {
+        byte[] value = new byte[10000];
+        new Random(0L).nextBytes(value);
+        for (int i = 0; i < value.length; i += 2) {
+            value[i] = 0;
+        }
+        Compressor compressor = Compressors.deflate(9);
+        ByteBuffer compressed = compressor.compress(ByteBuffer.wrap(value));
+        assertTrue(compressed.remaining() < value.length);
+        ByteBuffer direct = ByteBuffer.allocateDirect(compressed.remaining());
+        direct.put(compressed).flip();
+        ByteBuffer decompressed = compressor.decompress(direct, value.length);
+        byte[] result = new byte[decompressed.remaining()];
+        decompressed.get(result);
+        assertEquals(result, value);
+    }
+
+    private static String makeValue(int index) {
+        // Note: Every other value is smaller than the threshold and stored uncompressed
+        return index % 2 == 0 ? String.valueOf(index) : Strings.repeat("{\"key\":" + index + "}", 100);
+    }
+}
@@ -0,0 +1,69 @@
+package com.blogspot.mydailyjava.guava.cache.overflow;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class ConcurrentAccessTest {
+
+    private static final int THREADS = 8, KEYS = 16, ROUNDS = 200;
+
+    @DataProvider
+    public Object[][] builders() {
+        return new Object[][]{
+                {FileSystemCacheBuilder.newBuilder()},
+                {FileSystemCacheBuilder.newBuilder().fileLocking()},
+                {FileSystemCacheBuilder.newBuilder().memoryMappedReads()},
+                {FileSystemCacheBuilder.newBuilder().memoryMappedReads().fileLocking()}
+        };
+    }
+
+    @Test(dataProvider = "builders")
+    @SuppressWarnings("unchecked")
+    public void testConcurrentReadsAndWrites(FileSystemCacheBuilder<Object, Object> builder) throws Exception {
+        final FileSystemPersistingCache<Integer, String> cache = (FileSystemPersistingCache<Integer, String>) builder
+                .maximumSize(1L)
+                .<Integer, String>build();
+        ExecutorService executorService = Executors.newFixedThreadPool(THREADS);
+        try {
+            for (int key = 0; key < KEYS; key++) {
+                cache.persistValue(key, "value" + key);
+            }
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int thread = 0; thread < THREADS; thread++) {
+                final boolean writer = thread % 2 == 0;
+                futures.add(executorService.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        for (int round = 0; round < ROUNDS; round++) {
+                            int key = round % KEYS;
+                            if (writer) {
+                                cache.persistValue(key, "value" + key);
+                            } else {
+                                String value = cache.findPersisted(key);
+                                assertTrue(value == null || value.equals("value" + key), value);
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(1L, TimeUnit.MINUTES);
+            }
+            for (int key = 0; key < KEYS; key++) {
+                assertEquals(cache.findPersisted(key), "value" + key);
+            }
+        } finally {
+            executorService.shutdownNow();
+            cache.invalidateAll();
+            cache.close();
+        }
+    }
+}
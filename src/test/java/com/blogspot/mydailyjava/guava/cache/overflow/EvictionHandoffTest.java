@@ -0,0 +1,150 @@
+package com.blogspot.mydailyjava.guava.cache.overflow;
+
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+public class EvictionHandoffTest {
+
+    private static class BlockingSerializer implements Serializer<String> {
+
+        private final CountDownLatch serializing = new CountDownLatch(1), release = new CountDownLatch(1);
+
+        @Override
+        public ByteBuffer serialize(String object) throws IOException {
+            if (object.equals("a")) {
+                serializing.countDown();
+                try {
+                    assertTrue(release.await(10L, TimeUnit.SECONDS));
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+            return Serializers.strings().serialize(object);
+        }
+
+        @Override
+        public String deserialize(ByteBuffer buffer) throws IOException {
+            return Serializers.strings().deserialize(buffer);
+        }
+    }
+
+    private static class RepeatedlyBlockingSerializer implements Serializer<String> {
+
+        private final AtomicInteger serializations = new AtomicInteger();
+
+        private final CountDownLatch[] serializing = {new CountDownLatch(1), new CountDownLatch(1)},
+                release = {new CountDownLatch(1), new CountDownLatch(1)};
+
+        @Override
+        public ByteBuffer serialize(String object) throws IOException {
+            if (object.equals("a")) {
+                int index = serializations.getAndIncrement();
+                if (index < serializing.length) {
+                    serializing[index].countDown();
+                    try {
+                        assertTrue(release[index].await(10L, TimeUnit.SECONDS));
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                }
+            }
+            return Serializers.strings().serialize(object);
+        }
+
+        @Override
+        public String deserialize(ByteBuffer buffer) throws IOException {
+            return Serializers.strings().deserialize(buffer);
+        }
+
+        private void releaseAll() {
+            for (CountDownLatch latch : release) {
+                latch.countDown();
+            }
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testValueIsHandedOverWhilePersisted() throws Exception {
+        BlockingSerializer serializer = new BlockingSerializer();
+        final FileSystemPersistingCache<String, String> cache = (FileSystemPersistingCache<String, String>) FileSystemCacheBuilder.newBuilder()
+                .maximumSize(1L)
+                .keySerializer(Serializers.strings())
+                .valueSerializer(serializer)
+                .<String, String>build();
+        try {
+            final String value = new String("a");
+            cache.put("a", value);
+            Thread evicting = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    cache.put("b", "b");
+                }
+            });
+            evicting.start();
+            assertTrue(serializer.serializing.await(10L, TimeUnit.SECONDS));
+            assertSame(cache.getIfPresent("a"), value);
+            serializer.release.countDown();
+            evicting.join(TimeUnit.SECONDS.toMillis(10L));
+            assertNull(cache.findPersisted("a"));
+            assertSame(cache.getIfPresent("a"), value);
+            assertEquals(cache.getIfPresent("b"), "b");
+        } finally {
+            serializer.release.countDown();
+            cache.invalidateAll();
+            cache.close();
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testClaimedValueThatIsPersistedAgainIsKept() throws Exception {
+        RepeatedlyBlockingSerializer serializer = new RepeatedlyBlockingSerializer();
+        final FileSystemPersistingCache<String, String> cache = (FileSystemPersistingCache<String, String>) FileSystemCacheBuilder.newBuilder()
+                .maximumSize(1L)
+                .keySerializer(Serializers.strings())
+                .valueSerializer(serializer)
+                .<String, String>build();
+        try {
+            cache.put("a", "a");
+            Thread first = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    cache.put("b", "b");
+                }
+            });
+            first.start();
+            assertTrue(serializer.serializing[0].await(10L, TimeUnit.SECONDS));
+            assertEquals(cache.getIfPresent("a"), "a");
+            Thread second = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    cache.put("c", "c");
+                }
+            });
+            second.start();
+            assertTrue(serializer.serializing[1].await(10L, TimeUnit.SECONDS));
+            // Note: The claimed value is persisted again before the first attempt of persisting it completes
+            serializer.release[1].countDown();
+            second.join(TimeUnit.SECONDS.toMillis(10L));
+            serializer.release[0].countDown();
+            first.join(TimeUnit.SECONDS.toMillis(10L));
+            assertEquals(cache.findPersisted("a"), "a");
+            assertEquals(cache.getIfPresent("a"), "a");
+        } finally {
+            serializer.releaseAll();
+            cache.invalidateAll();
+            cache.close();
+        }
+    }
+}
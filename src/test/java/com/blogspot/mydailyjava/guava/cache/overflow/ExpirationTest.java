@@ -0,0 +1,170 @@
+package com.blogspot.mydailyjava.guava.cache.overflow;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class ExpirationTest {
+
+    private static final int COUNT = 10;
+
+    @DataProvider
+    public Object[][] builders() {
+        return new Object[][]{
+                {FileSystemCacheBuilder.newBuilder().maximumSize(1L)},
+                {FileSystemCacheBuilder.newBuilder().maximumSize(1L).segmentedPersistence(1024L * 1024L)},
+                {FileSystemCacheBuilder.newBuilder().maximumSize(1L).offHeapTier(1024L * 1024L)}
+        };
+    }
+
+    @Test(dataProvider = "builders")
+    public void testPersistedEntriesExpire(FileSystemCacheBuilder<Object, Object> builder) throws Exception {
+        ManualTicker ticker = new ManualTicker();
+        final AtomicInteger expired = new AtomicInteger();
+        Cache<String, String> cache = builder
+                .ticker(ticker)
+                .expireAfterWrite(1L, TimeUnit.MINUTES)
+                .removalListener(new RemovalListener<String, String>() {
+                    @Override
+                    public void onRemoval(RemovalNotification<String, String> notification) {
+                        if (notification.getCause() == RemovalCause.EXPIRED) {
+                            expired.incrementAndGet();
+                        }
+                    }
+                })
+                .build();
+        try {
+            for (int i = 0; i < COUNT; i++) {
+                cache.put(KeyValuePair.makeKey(i), KeyValuePair.makeValue(i));
+            }
+            assertEquals(cache.size(), COUNT);
+            assertEquals(cache.getIfPresent(KeyValuePair.makeKey(0)), KeyValuePair.makeValue(0));
+            ticker.advance(2L, TimeUnit.MINUTES);
+            for (int i = 0; i < COUNT; i++) {
+                assertNull(cache.getIfPresent(KeyValuePair.makeKey(i)));
+            }
+            // Note: The expired entry that was loaded into memory is reported once the cache is maintained
+            cache.cleanUp();
+            assertTrue(expired.get() > 0);
+            long deadline = System.currentTimeMillis() + 5000L;
+            while (cache.size() > 0L && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10L);
+            }
+            assertEquals(cache.size(), 0L);
+        } finally {
+            cache.invalidateAll();
+            ((Closeable) cache).close();
+        }
+    }
+
+    @Test(dataProvider = "builders")
+    public void testPromotedEntriesKeepWriteTime(FileSystemCacheBuilder<Object, Object> builder) throws Exception {
+        ManualTicker ticker = new ManualTicker();
+        final Set<String> expired = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        Cache<String, String> cache = builder
+                .ticker(ticker)
+                .expireAfterWrite(1L, TimeUnit.MINUTES)
+                .removalListener(new RemovalListener<String, String>() {
+                    @Override
+                    public void onRemoval(RemovalNotification<String, String> notification) {
+                        if (notification.getCause() == RemovalCause.EXPIRED) {
+                            expired.add(notification.getKey());
+                        }
+                    }
+                })
+                .build();
+        try {
+            cache.put(KeyValuePair.makeKey(0), KeyValuePair.makeValue(0));
+            cache.put(KeyValuePair.makeKey(1), KeyValuePair.makeValue(1));
+            ticker.advance(40L, TimeUnit.SECONDS);
+            assertEquals(cache.getIfPresent(KeyValuePair.makeKey(0)), KeyValuePair.makeValue(0));
+            ticker.advance(30L, TimeUnit.SECONDS);
+            // Note: The retained copy of the promoted entry expires while the entry is held in memory
+            long deadline = System.currentTimeMillis() + 5000L;
+            while (((FileSystemPersistingCache<String, String>) cache).sizeOnDisk() > 1 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10L);
+            }
+            assertFalse(expired.contains(KeyValuePair.makeKey(0)));
+            // Note: Evicting the promoted entry persists it again with the write time of its previous copy
+            assertEquals(cache.getIfPresent(KeyValuePair.makeKey(1)), KeyValuePair.makeValue(1));
+            ticker.advance(5L, TimeUnit.SECONDS);
+            deadline = System.currentTimeMillis() + 5000L;
+            while (!expired.contains(KeyValuePair.makeKey(0)) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10L);
+            }
+            assertTrue(expired.contains(KeyValuePair.makeKey(0)));
+            assertNull(cache.getIfPresent(KeyValuePair.makeKey(0)));
+        } finally {
+            cache.invalidateAll();
+            ((Closeable) cache).close();
+        }
+    }
+
+    @Test
+    public void testSpecExpiresPersistedEntries() throws Exception {
+        ManualTicker ticker = new ManualTicker();
+        Cache<String, String> cache = FileSystemCacheBuilder.from("maximumSize=1, expireAfterWrite=1m").ticker(ticker).build();
+        try {
+            cache.put(KeyValuePair.makeKey(0), KeyValuePair.makeValue(0));
+            cache.put(KeyValuePair.makeKey(1), KeyValuePair.makeValue(1));
+            ticker.advance(2L, TimeUnit.MINUTES);
+            assertNull(cache.getIfPresent(KeyValuePair.makeKey(0)));
+            assertNull(cache.getIfPresent(KeyValuePair.makeKey(1)));
+        } finally {
+            cache.invalidateAll();
+            ((Closeable) cache).close();
+        }
+    }
+
+    @Test
+    public void testCacheBuilderExpiresPersistedEntries() throws Exception {
+        Cache<String, String> cache = new FileSystemPersistingCache<String, String>(CacheBuilder.newBuilder()
+                .maximumSize(1L)
+                .expireAfterWrite(1L, TimeUnit.SECONDS));
+        try {
+            cache.put(KeyValuePair.makeKey(0), KeyValuePair.makeValue(0));
+            cache.put(KeyValuePair.makeKey(1), KeyValuePair.makeValue(1));
+            Thread.sleep(1500L);
+            assertNull(cache.getIfPresent(KeyValuePair.makeKey(0)));
+        } finally {
+            cache.invalidateAll();
+            ((Closeable) cache).close();
+        }
+    }
+
+    @Test
+    public void testExpiredEntriesAreNotPersisted() throws Exception {
+        ManualTicker ticker = new ManualTicker();
+        Cache<String, String> cache = FileSystemCacheBuilder.newBuilder()
+                .maximumSize(1L)
+                .ticker(ticker)
+                .expireAfterAccess(1L, TimeUnit.MINUTES)
+                .build();
+        try {
+            cache.put(KeyValuePair.makeKey(0), KeyValuePair.makeValue(0));
+            ticker.advance(2L, TimeUnit.MINUTES);
+            cache.put(KeyValuePair.makeKey(1), KeyValuePair.makeValue(1));
+            assertEquals(((FileSystemPersistingCache<String, String>) cache).sizeOnDisk(), 0);
+            assertNull(cache.getIfPresent(KeyValuePair.makeKey(0)));
+        } finally {
+            cache.invalidateAll();
+            ((Closeable) cache).close();
+        }
+    }
+}
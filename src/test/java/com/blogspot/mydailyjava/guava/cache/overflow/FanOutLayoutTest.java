@@ -0,0 +1,72 @@
+package com.blogspot.mydailyjava.guava.cache.overflow;
+
+import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import org.testng.annotations.Test;
+
+import java.io.Closeable;
+import java.io.File;
+
+import static org.testng.Assert.*;
+
+public class FanOutLayoutTest {
+
+    @Test
+    public void testKeysThatAreNoValidFileNames() throws Exception {
+        Cache<String, String> cache = FileSystemCacheBuilder.newBuilder().maximumSize(1L).build();
+        try {
+            String[] keys = {"a/b", "../c", "", Strings.repeat("d", 1024), "e\u0000"};
+            for (String key : keys) {
+                cache.put(key, key + "-value");
+            }
+            cache.put("f", "g");
+            for (String key : keys) {
+                assertEquals(cache.getIfPresent(key), key + "-value");
+            }
+            assertEquals(cache.size(), keys.length + 1);
+        } finally {
+            cache.invalidateAll();
+            ((Closeable) cache).close();
+        }
+    }
+
+    @Test
+    public void testKeysWithEqualStringRepresentation() throws Exception {
+        Cache<Object, String> cache = FileSystemCacheBuilder.newBuilder().maximumSize(1L).build();
+        try {
+            cache.put(1, "integer");
+            cache.put("1", "string");
+            cache.put(1L, "long");
+            cache.put("x", "x");
+            assertEquals(cache.getIfPresent(1), "integer");
+            assertEquals(cache.getIfPresent("1"), "string");
+            assertEquals(cache.getIfPresent(1L), "long");
+            assertEquals(cache.size(), 4L);
+        } finally {
+            cache.invalidateAll();
+            ((Closeable) cache).close();
+        }
+    }
+
+    @Test
+    public void testEntriesAreSpreadOverDirectories() throws Exception {
+        Cache<String, String> cache = FileSystemCacheBuilder.newBuilder().maximumSize(1L).build();
+        File directory = ((FileSystemPersistingCache<?, ?>) cache).getPersistenceRootDirectory();
+        try {
+            for (int i = 0; i < 100; i++) {
+                cache.put(KeyValuePair.makeKey(i), KeyValuePair.makeValue(i));
+            }
+            File file = ((FileSystemPersistingCache<String, String>) cache).pathToFileFor(KeyValuePair.makeKey(0));
+            assertTrue(file.isFile());
+            assertEquals(file.getParentFile().getParentFile().getParentFile(), directory);
+            assertTrue(directory.listFiles().length > 1);
+            for (File child : directory.listFiles()) {
+                assertTrue(child.isDirectory());
+            }
+        } finally {
+            cache.invalidateAll();
+            ((Closeable) cache).close();
+        }
+        assertEquals(directory.listFiles().length, 0);
+    }
+}
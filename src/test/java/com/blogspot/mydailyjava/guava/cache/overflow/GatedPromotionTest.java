@@ -0,0 +1,90 @@
+package com.blogspot.mydailyjava.guava.cache.overflow;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableList;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class GatedPromotionTest {
+
+    private static final int COUNT = 10;
+
+    @DataProvider
+    public Object[][] caches() {
+        return new Object[][]{
+                {FileSystemCacheBuilder.newBuilder().maximumSize(1L).gatedPromotion(3).<Integer, String>build()},
+                {FileSystemCacheBuilder.newBuilder().maximumSize(1L).gatedPromotion(3).segmentedPersistence(1024L * 1024L).<Integer, String>build()},
+                {FileSystemCacheBuilder.newBuilder().maximumSize(1L).gatedPromotion(3).offHeapTier(1024L * 1024L).<Integer, String>build()}
+        };
+    }
+
+    @Test(dataProvider = "caches")
+    public void testColdEntriesAreNotPromoted(Cache<Integer, String> cache) throws Exception {
+        AbstractPersistingCache<Integer, String> persistingCache = (AbstractPersistingCache<Integer, String>) cache;
+        try {
+            for (int i = 0; i < COUNT; i++) {
+                cache.put(i, "value" + i);
+            }
+            for (int i = 0; i < COUNT - 3; i++) {
+                assertEquals(cache.getIfPresent(i), "value" + i);
+            }
+            assertEquals(cache.getAllPresent(ImmutableList.of(COUNT - 3, COUNT - 2)).size(), 2);
+            assertTrue(persistingCache.getUnderlyingCache().asMap().containsKey(COUNT - 1));
+            assertEquals(cache.size(), (long) COUNT);
+            assertEquals(cache.getIfPresent(2), "value2");
+            assertTrue(persistingCache.getUnderlyingCache().asMap().containsKey(2));
+            assertFalse(persistingCache.getUnderlyingCache().asMap().containsKey(COUNT - 1));
+            assertEquals(cache.getIfPresent(COUNT - 1), "value" + (COUNT - 1));
+            assertEquals(cache.size(), (long) COUNT);
+        } finally {
+            cache.invalidateAll();
+            persistingCache.close();
+        }
+    }
+
+    @Test
+    public void testUnpromotedValueIsRefreshed() throws Exception {
+        ManualTicker ticker = new ManualTicker();
+        final AtomicInteger version = new AtomicInteger();
+        LoadingCache<String, String> cache = FileSystemCacheBuilder.newBuilder()
+                .maximumSize(1L)
+                .gatedPromotion(15)
+                .ticker(ticker)
+                .refreshAfterWrite(1L, TimeUnit.MINUTES)
+                .build(new CacheLoader<String, String>() {
+                    @Override
+                    public String load(String key) throws Exception {
+                        return key + "-" + version.incrementAndGet();
+                    }
+                });
+        AbstractPersistingCache<String, String> persistingCache = (AbstractPersistingCache<String, String>) cache;
+        try {
+            assertEquals(cache.get("a"), "a-1");
+            assertEquals(cache.get("b"), "b-2");
+            ticker.advance(2L, TimeUnit.MINUTES);
+            assertEquals(cache.getIfPresent("a"), "a-1");
+            long deadline = System.currentTimeMillis() + 10000L;
+            while (!"a-3".equals(persistingCache.getUnderlyingCache().asMap().get("a")) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10L);
+            }
+            assertEquals(persistingCache.getUnderlyingCache().asMap().get("a"), "a-3");
+        } finally {
+            cache.invalidateAll();
+            persistingCache.close();
+        }
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testExpireAfterAccessIsRejected() throws Exception {
+        FileSystemCacheBuilder.newBuilder().gatedPromotion(3).expireAfterAccess(1L, TimeUnit.MINUTES).build();
+    }
+}
@@ -0,0 +1,94 @@
+package com.blogspot.mydailyjava.guava.cache.overflow;
+
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableMap;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+
+public class GetAllTest {
+
+    private static final int PRESENT = 20, MISSING = 10;
+
+    private static class CountingLoader extends CacheLoader<String, String> {
+
+        private final boolean bulk;
+        private final AtomicInteger loads = new AtomicInteger(), bulkLoads = new AtomicInteger(), bulkLoaded = new AtomicInteger();
+
+        private CountingLoader(boolean bulk) {
+            this.bulk = bulk;
+        }
+
+        @Override
+        public String load(String key) {
+            loads.incrementAndGet();
+            return KeyValuePair.makeValue(KeyValuePair.fromKey(key));
+        }
+
+        @Override
+        public Map<String, String> loadAll(Iterable<? extends String> keys) throws Exception {
+            if (!bulk) return super.loadAll(keys);
+            bulkLoads.incrementAndGet();
+            Map<String, String> values = new HashMap<String, String>();
+            for (String key : keys) {
+                bulkLoaded.incrementAndGet();
+                values.put(key, KeyValuePair.makeValue(KeyValuePair.fromKey(key)));
+            }
+            return values;
+        }
+    }
+
+    @DataProvider
+    public Object[][] configurations() {
+        return new Object[][]{{false, true}, {true, true}, {false, false}, {true, false}};
+    }
+
+    @Test(dataProvider = "configurations")
+    public void testGetAll(boolean segmented, boolean bulk) throws Exception {
+        CountingLoader loader = new CountingLoader(bulk);
+        FileSystemCacheBuilder<Object, Object> builder = FileSystemCacheBuilder.newBuilder().maximumSize(5L);
+        if (segmented) {
+            builder.segmentedPersistence(1024L * 1024L);
+        }
+        LoadingCache<String, String> cache = builder.build(loader);
+        try {
+            List<String> keys = new ArrayList<String>();
+            for (int i = 0; i < PRESENT + MISSING; i++) {
+                if (i < PRESENT) {
+                    cache.put(KeyValuePair.makeKey(i), KeyValuePair.makeValue(i));
+                }
+                keys.add(KeyValuePair.makeKey(i));
+            }
+            assertEquals(cache.getAllPresent(keys).size(), PRESENT);
+            ImmutableMap<String, String> all = cache.getAll(keys);
+            assertEquals(new ArrayList<String>(all.keySet()), keys);
+            for (int i = 0; i < PRESENT + MISSING; i++) {
+                assertEquals(all.get(KeyValuePair.makeKey(i)), KeyValuePair.makeValue(i));
+            }
+            if (bulk) {
+                assertEquals(loader.bulkLoads.get(), 1);
+                assertEquals(loader.bulkLoaded.get(), MISSING);
+                assertEquals(loader.loads.get(), 0);
+            } else {
+                assertEquals(loader.loads.get(), MISSING);
+            }
+            assertEquals(cache.size(), PRESENT + MISSING);
+            // Note: Every key is looked up once by each bulk read and missing keys are not looked up again when loaded
+            PersistingCacheStats stats = ((AbstractPersistingCache<String, String>) cache).persistingStats();
+            assertEquals(stats.requestCount(), 2L * (PRESENT + MISSING));
+            assertEquals(stats.missCount(), 2L * MISSING);
+        } finally {
+            cache.invalidateAll();
+            ((Closeable) cache).close();
+        }
+    }
+}
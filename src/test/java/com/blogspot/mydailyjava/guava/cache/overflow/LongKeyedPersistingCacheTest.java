@@ -0,0 +1,184 @@
+package com.blogspot.mydailyjava.guava.cache.overflow;
+
+import com.google.common.io.Files;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class LongKeyedPersistingCacheTest {
+
+    private static final int COUNT = 1000, MEMORY = 10;
+
+    @DataProvider
+    public Object[][] builders() {
+        return new Object[][]{
+                {FileSystemCacheBuilder.newBuilder()},
+                {FileSystemCacheBuilder.newBuilder().writeBehind(COUNT, 2)},
+                {FileSystemCacheBuilder.newBuilder().offHeapTier(4L * 1024L)},
+                {FileSystemCacheBuilder.newBuilder().persistenceDirectories(Files.createTempDir(), Files.createTempDir())}
+        };
+    }
+
+    @Test(dataProvider = "builders")
+    public void testPersistedValuesAreFound(FileSystemCacheBuilder<Object, Object> builder) throws Exception {
+        LongKeyedPersistingCache<String> cache = builder.maximumSize(MEMORY).valueSerializer(Serializers.strings()).buildLongKeyed();
+        try {
+            for (long key = -COUNT / 2; key < COUNT / 2; key++) {
+                cache.put(key, "value" + key);
+            }
+            assertEquals(cache.size(), (long) COUNT);
+            for (long key = -COUNT / 2; key < COUNT / 2; key++) {
+                assertEquals(cache.getIfPresent(key), "value" + key);
+            }
+            assertNull(cache.getIfPresent(COUNT));
+            assertNull(cache.getIfPresent(Long.MIN_VALUE));
+        } finally {
+            cache.invalidateAll();
+            cache.close();
+        }
+    }
+
+    @Test(dataProvider = "builders")
+    public void testPersistedValuesAreInvalidated(FileSystemCacheBuilder<Object, Object> builder) throws Exception {
+        LongKeyedPersistingCache<String> cache = builder.maximumSize(MEMORY).valueSerializer(Serializers.strings()).buildLongKeyed();
+        try {
+            for (long key = 0; key < COUNT; key++) {
+                cache.put(key, "value" + key);
+            }
+            for (long key = 0; key < COUNT; key += 2) {
+                cache.invalidate(key);
+            }
+            assertEquals(cache.size(), (long) COUNT / 2);
+            for (long key = 0; key < COUNT; key++) {
+                assertEquals(cache.getIfPresent(key), key % 2 == 0 ? null : "value" + key);
+            }
+            cache.invalidateAll();
+            assertEquals(cache.size(), 0L);
+            assertNull(cache.getIfPresent(1L));
+        } finally {
+            cache.invalidateAll();
+            cache.close();
+        }
+    }
+
+    @Test
+    public void testReplacedValuesAreCompacted() throws Exception {
+        LongKeyedPersistingCache<String> cache = FileSystemCacheBuilder.newBuilder().maximumSize(1L)
+                .valueSerializer(Serializers.strings()).buildLongKeyed();
+        try {
+            StringBuilder padding = new StringBuilder();
+            for (int i = 0; i < 1024; i++) {
+                padding.append('x');
+            }
+            // Note: Alternating between two keys spills the previous value of each key such that the log grows
+            for (int round = 0; round < 4096; round++) {
+                cache.put(round % 2, padding.toString() + round);
+            }
+            assertEquals(cache.getIfPresent(0L), padding.toString() + 4094);
+            assertEquals(cache.getIfPresent(1L), padding.toString() + 4095);
+            assertEquals(cache.size(), 2L);
+        } finally {
+            cache.invalidateAll();
+            cache.close();
+        }
+    }
+
+    @Test
+    public void testKeysSpanMemoryAndDisk() throws Exception {
+        LongKeyedPersistingCache<String> cache = FileSystemCacheBuilder.newBuilder().maximumSize(MEMORY)
+                .valueSerializer(Serializers.strings()).buildLongKeyed();
+        try {
+            for (long key = 0; key < COUNT; key++) {
+                cache.put(key, "value" + key);
+            }
+            Set<Long> keys = new HashSet<Long>(cache.asMap().keySet());
+            assertEquals(keys.size(), COUNT);
+            for (long key = 0; key < COUNT; key++) {
+                assertTrue(keys.contains(key));
+            }
+        } finally {
+            cache.invalidateAll();
+            cache.close();
+        }
+    }
+
+    @Test(dataProvider = "builders")
+    public void testMissesAreCounted(FileSystemCacheBuilder<Object, Object> builder) throws Exception {
+        LongKeyedPersistingCache<String> cache = builder.maximumSize(MEMORY).valueSerializer(Serializers.strings()).buildLongKeyed();
+        try {
+            for (long key = 0; key < COUNT; key++) {
+                cache.put(key, "value" + key);
+            }
+            for (long key = COUNT; key < 2 * COUNT; key++) {
+                assertNull(cache.getIfPresent(key));
+            }
+            assertEquals(cache.getIfPresent(0L), "value0");
+            PersistingCacheStats stats = cache.persistingStats();
+            assertEquals(stats.missCount(), (long) COUNT);
+            assertEquals(stats.requestCount(), COUNT + 1L);
+        } finally {
+            cache.invalidateAll();
+            cache.close();
+        }
+    }
+
+    @Test
+    public void testKeysSpreadWithinEachDirectory() throws Exception {
+        LongKeyedPersistingCache<String> cache = FileSystemCacheBuilder.newBuilder()
+                .persistenceDirectories(Files.createTempDir(), Files.createTempDir())
+                .valueSerializer(Serializers.strings())
+                .buildLongKeyed();
+        try {
+            // Note: Keys of one directory must not share the bits that select their slot in the directory's index
+            int[][] homeSlots = new int[2][2];
+            for (long key = 0; key < COUNT; key++) {
+                homeSlots[cache.rootIndexFor(key)][(LongIndex.hash(key) >>> 7) & 1]++;
+            }
+            for (int[] directory : homeSlots) {
+                assertTrue(directory[0] > COUNT / 8 && directory[1] > COUNT / 8);
+            }
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testWarmRestartIsRejected() throws Exception {
+        FileSystemCacheBuilder.newBuilder().persistenceDirectory(Files.createTempDir()).warmRestart().buildLongKeyed();
+    }
+
+    @Test
+    public void testIndex() throws Exception {
+        LongIndex index = new LongIndex();
+        for (long key = 0; key < COUNT; key++) {
+            assertEquals(index.put(key * 31, key, (int) key), -1);
+        }
+        for (long key = 0; key < COUNT; key += 2) {
+            assertEquals(index.remove(key * 31), (int) key);
+        }
+        assertEquals(index.put(31L, 0L, 7), 1);
+        assertEquals(index.size(), COUNT / 2);
+        for (long key = 0; key < COUNT; key++) {
+            int slot = index.find(key * 31);
+            if (key % 2 == 0) {
+                assertEquals(slot, -1);
+            } else {
+                assertTrue(slot >= 0);
+                assertEquals(index.lengthAt(slot), key == 1 ? 7 : (int) key);
+            }
+        }
+        assertTrue(index.relocate(31L, 0L, 5L));
+        assertFalse(index.relocate(31L, 0L, 6L));
+        assertEquals(index.offsetAt(index.find(31L)), 5L);
+        index.clear();
+        assertEquals(index.size(), 0);
+        assertEquals(index.find(31L), -1);
+    }
+}
@@ -0,0 +1,49 @@
+package com.blogspot.mydailyjava.guava.cache.overflow;
+
+import com.google.common.cache.Cache;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.Closeable;
+import java.util.Arrays;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+
+public class MemoryMappedReadTest {
+
+    @DataProvider
+    public Object[][] caches() {
+        return new Object[][]{
+                {FileSystemCacheBuilder.newBuilder().maximumSize(1L).memoryMappedReads().<Integer, byte[]>build()},
+                {FileSystemCacheBuilder.newBuilder().maximumSize(1L).memoryMappedReads().segmentedPersistence(1024L * 1024L).<Integer, byte[]>build()}
+        };
+    }
+
+    @Test(dataProvider = "caches")
+    public void testMemoryMappedRead(Cache<Integer, byte[]> cache) throws Exception {
+        try {
+            final int[] sizes = {0, 1, 100, 4096, 100 * 1024, 1024 * 1024};
+            for (int i = 0; i < sizes.length; i++) {
+                cache.put(i, makeValue(sizes[i]));
+            }
+            for (int round = 0; round < 2; round++) {
+                for (int i = 0; i < sizes.length; i++) {
+                    byte[] value = cache.getIfPresent(i);
+                    assertNotNull(value);
+                    assertEquals(value, makeValue(sizes[i]));
+                }
+            }
+            assertEquals(cache.size(), sizes.length);
+        } finally {
+            cache.invalidateAll();
+            ((Closeable) cache).close();
+        }
+    }
+
+    private static byte[] makeValue(int size) {
+        byte[] value = new byte[size];
+        Arrays.fill(value, (byte) size);
+        return value;
+    }
+}
@@ -0,0 +1,84 @@
+package com.blogspot.mydailyjava.guava.cache.overflow;
+
+import com.google.common.cache.Cache;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class OffHeapTierTest {
+
+    private static final int VALUE_SIZE = 1024;
+
+    @DataProvider
+    public Object[][] caches() {
+        return new Object[][]{
+                {FileSystemCacheBuilder.newBuilder().maximumSize(1L).offHeapTier(64L * 1024L).<Integer, byte[]>build()},
+                {FileSystemCacheBuilder.newBuilder().maximumSize(1L).offHeapTier(64L * 1024L).segmentedPersistence(1024L * 1024L).<Integer, byte[]>build()}
+        };
+    }
+
+    @Test(dataProvider = "caches")
+    public void testOverflowThroughOffHeapTier(Cache<Integer, byte[]> cache) throws Exception {
+        try {
+            final int count = 200;
+            for (int i = 0; i < count; i++) {
+                cache.put(i, makeValue(i));
+            }
+            assertEquals(cache.size(), count);
+            assertTrue(((FileSystemPersistingCache<Integer, byte[]>) cache).sizeOnDisk() > 0);
+            for (int i = 0; i < count; i++) {
+                byte[] value = cache.getIfPresent(i);
+                assertNotNull(value);
+                assertEquals(value, makeValue(i));
+            }
+            assertEquals(cache.size(), count);
+            cache.invalidate(0);
+            assertNull(cache.getIfPresent(0));
+            assertEquals(cache.size(), count - 1);
+        } finally {
+            cache.invalidateAll();
+            ((Closeable) cache).close();
+        }
+        assertEquals(cache.size(), 0L);
+    }
+
+    @Test
+    public void testSlabEviction() throws Exception {
+        OffHeapStore<Integer> store = new OffHeapStore<Integer>(16L * 4096L);
+        int evicted = 0;
+        for (int i = 0; i < 100; i++) {
+            Map<Integer, ByteBuffer> spilled = store.put(i, ByteBuffer.wrap(makeValue(i)));
+            for (Map.Entry<Integer, ByteBuffer> entry : spilled.entrySet()) {
+                byte[] value = new byte[entry.getValue().remaining()];
+                entry.getValue().get(value);
+                assertEquals(value, makeValue(entry.getKey()));
+                evicted++;
+            }
+        }
+        assertEquals(store.size() + evicted, 100);
+        assertTrue(store.byteSize() <= 16L * 4096L);
+        assertNull(store.get(0));
+        assertNotNull(store.get(99));
+        Map<Integer, ByteBuffer> oversized = store.put(100, ByteBuffer.allocate(8192));
+        assertEquals(oversized.keySet().iterator().next(), Integer.valueOf(100));
+        store.clear();
+        assertEquals(store.size(), 0);
+        assertEquals(store.byteSize(), 0L);
+    }
+
+    private static byte[] makeValue(int index) {
+        byte[] value = new byte[VALUE_SIZE];
+        for (int i = 0; i < value.length; i++) {
+            value[i] = (byte) (index + i);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,86 @@
+package com.blogspot.mydailyjava.guava.cache.overflow;
+
+import com.google.common.cache.Cache;
+import org.testng.annotations.Test;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.List;
+
+import static org.testng.Assert.*;
+
+public class PersistedKeyIndexTest {
+
+    @Test
+    public void testExactIndex() throws Exception {
+        assertIndexed(FileSystemCacheBuilder.newBuilder()
+                .maximumSize(1L)
+                .<String, String>build());
+    }
+
+    @Test
+    public void testBloomFilterIndex() throws Exception {
+        assertIndexed(FileSystemCacheBuilder.newBuilder()
+                .maximumSize(1L)
+                .persistedKeyBloomFilter(1000, 0.001d)
+                .<String, String>build());
+    }
+
+    @Test
+    public void testBloomFilterIsRebuiltUnderChurn() throws Exception {
+        final int expectedInsertions = 100, churn = 10 * expectedInsertions;
+        Cache<String, String> cache = FileSystemCacheBuilder.newBuilder()
+                .maximumSize(1L)
+                .persistedKeyBloomFilter(expectedInsertions, 0.01d)
+                .<String, String>build();
+        try {
+            for (int i = 0; i < churn; i++) {
+                cache.put(KeyValuePair.makeKey(i), KeyValuePair.makeValue(i));
+                // Note: The previous entry is persisted when the current entry is put and is removed right away
+                if (i > 0) {
+                    cache.invalidate(KeyValuePair.makeKey(i - 1));
+                }
+            }
+            for (int i = 0; i < churn - 1; i++) {
+                assertNull(cache.getIfPresent(KeyValuePair.makeKey(i)));
+            }
+            // Note: Only keys that were removed since the filter was last rebuilt are still assumed to be persisted
+            assertTrue(((AbstractPersistingCache<String, String>) cache).persistingStats().diskReadCount() < churn / 4);
+            assertEquals(cache.getIfPresent(KeyValuePair.makeKey(churn - 1)), KeyValuePair.makeValue(churn - 1));
+        } finally {
+            cache.invalidateAll();
+            ((Closeable) cache).close();
+        }
+    }
+
+    private static void assertIndexed(Cache<String, String> cache) throws Exception {
+        try {
+            final int testSize = 100;
+            List<KeyValuePair> keyValuePairs = KeyValuePair.makeTestElements(testSize);
+            for (KeyValuePair keyValuePair : keyValuePairs) {
+                cache.put(keyValuePair.getKey(), keyValuePair.getValue());
+            }
+            assertEquals(cache.size(), testSize);
+
+            // A file that was not written by the cache is not considered to be persisted
+            File file = ((FileSystemPersistingCache<String, String>) cache).pathToFileFor(KeyValuePair.makeKey(testSize));
+            file.getParentFile().mkdirs();
+            new FileOutputStream(file).close();
+            assertNull(cache.getIfPresent(KeyValuePair.makeKey(testSize)));
+            assertEquals(cache.size(), testSize);
+
+            for (int i = 0; i < testSize; i++) {
+                assertEquals(cache.getIfPresent(KeyValuePair.makeKey(i)), KeyValuePair.makeValue(i));
+                assertEquals(cache.size(), testSize);
+            }
+
+            cache.invalidate(KeyValuePair.makeKey(0));
+            cache.invalidate(KeyValuePair.makeKey(0));
+            assertEquals(cache.size(), testSize - 1);
+        } finally {
+            cache.invalidateAll();
+            assertEquals(cache.size(), 0);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.blogspot.mydailyjava.guava.cache.overflow;
+
+import com.google.common.cache.Cache;
+import com.google.common.io.Files;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.Closeable;
+import java.io.File;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class PersistenceDirectoriesTest {
+
+    private static final int COUNT = 100;
+
+    private File first, second;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        first = Files.createTempDir();
+        second = Files.createTempDir();
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        Cache<String, String> cache = makeCache("file", false);
+        cache.invalidateAll();
+        ((Closeable) cache).close();
+        first.delete();
+        second.delete();
+    }
+
+    private Cache<String, String> makeCache(String layout, boolean writeBehind) {
+        FileSystemCacheBuilder<Object, Object> builder = FileSystemCacheBuilder.newBuilder()
+                .maximumSize(2L)
+                .persistenceDirectories(first, second)
+                .warmRestart()
+                .persistOnClose();
+        if (layout.equals("segment")) {
+            builder.segmentedPersistence(64L * 1024L);
+        }
+        if (writeBehind) {
+            builder.writeBehind(COUNT, 1);
+        }
+        return builder.build();
+    }
+
+    @DataProvider
+    public Object[][] layouts() {
+        return new Object[][]{{"file", false}, {"file", true}, {"segment", false}, {"segment", true}};
+    }
+
+    @Test(dataProvider = "layouts")
+    public void testEntriesAreDistributed(String layout, boolean writeBehind) throws Exception {
+        Cache<String, String> cache = makeCache(layout, writeBehind);
+        try {
+            for (int i = 0; i < COUNT; i++) {
+                cache.put(KeyValuePair.makeKey(i), KeyValuePair.makeValue(i));
+            }
+            for (int i = 0; i < COUNT; i++) {
+                assertEquals(cache.getIfPresent(KeyValuePair.makeKey(i)), KeyValuePair.makeValue(i));
+            }
+            assertEquals(cache.size(), COUNT);
+            assertTrue(first.list().length > 0);
+            assertTrue(second.list().length > 0);
+            cache.invalidate(KeyValuePair.makeKey(0));
+            assertNull(cache.getIfPresent(KeyValuePair.makeKey(0)));
+            assertEquals(cache.size(), COUNT - 1);
+        } finally {
+            ((Closeable) cache).close();
+        }
+    }
+
+    @Test(dataProvider = "layouts")
+    public void testWarmRestart(String layout, boolean writeBehind) throws Exception {
+        Cache<String, String> cache = makeCache(layout, writeBehind);
+        for (int i = 0; i < COUNT; i++) {
+            cache.put(KeyValuePair.makeKey(i), KeyValuePair.makeValue(i));
+        }
+        ((Closeable) cache).close();
+        Cache<String, String> reopened = makeCache(layout, writeBehind);
+        try {
+            assertEquals(reopened.size(), COUNT);
+            for (int i = 0; i < COUNT; i++) {
+                assertEquals(reopened.getIfPresent(KeyValuePair.makeKey(i)), KeyValuePair.makeValue(i));
+            }
+        } finally {
+            ((Closeable) reopened).close();
+        }
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testWeightByUsableSpaceRequiresStableDistribution() throws Exception {
+        FileSystemCacheBuilder.newBuilder()
+                .persistenceDirectories(first, second)
+                .weightByUsableSpace()
+                .warmRestart()
+                .build();
+    }
+
+    @Test
+    public void testWeightByUsableSpace() throws Exception {
+        Cache<String, String> cache = FileSystemCacheBuilder.newBuilder()
+                .maximumSize(1L)
+                .persistenceDirectories(first, second)
+                .weightByUsableSpace()
+                .build();
+        try {
+            for (int i = 0; i < COUNT; i++) {
+                cache.put(KeyValuePair.makeKey(i), KeyValuePair.makeValue(i));
+            }
+            for (int i = 0; i < COUNT; i++) {
+                assertEquals(cache.getIfPresent(KeyValuePair.makeKey(i)), KeyValuePair.makeValue(i));
+            }
+        } finally {
+            cache.invalidateAll();
+            ((Closeable) cache).close();
+        }
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testDirectoriesMustBeDistinct() throws Exception {
+        FileSystemCacheBuilder.newBuilder().persistenceDirectories(first, first);
+    }
+}
@@ -0,0 +1,119 @@
+package com.blogspot.mydailyjava.guava.cache.overflow;
+
+import com.google.common.cache.Cache;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import static org.testng.Assert.*;
+
+public class PersistenceListenerTest {
+
+    private static class RecordingListener implements PersistenceListener {
+
+        private final ConcurrentLinkedQueue<Object[]> events = new ConcurrentLinkedQueue<Object[]>();
+
+        @Override
+        public void onPersistenceEvent(PersistenceEvent event, int keyHash, long byteSize, long durationNanos) {
+            assertTrue(durationNanos >= 0L);
+            events.add(new Object[]{event, keyHash, byteSize});
+        }
+
+        private List<Object[]> drain(PersistenceEvent event) {
+            List<Object[]> drained = new ArrayList<Object[]>();
+            for (Object[] recorded : events) {
+                if (recorded[0] == event) drained.add(recorded);
+            }
+            events.clear();
+            return drained;
+        }
+    }
+
+    @DataProvider
+    public Object[][] builders() {
+        return new Object[][]{
+                {FileSystemCacheBuilder.newBuilder().maximumSize(1L)},
+                {FileSystemCacheBuilder.newBuilder().maximumSize(1L).segmentedPersistence(1024L * 1024L)}
+        };
+    }
+
+    @Test(dataProvider = "builders")
+    public void testSpillAndDiskReadAreReported(FileSystemCacheBuilder<Object, Object> builder) throws Exception {
+        RecordingListener listener = new RecordingListener();
+        Cache<String, String> cache = builder.persistenceListener(listener).build();
+        try {
+            cache.put("a", "foo");
+            cache.put("b", "bar");
+            List<Object[]> spills = listener.drain(PersistenceEvent.SPILL);
+            assertEquals(spills.size(), 1);
+            assertEquals(spills.get(0)[1], "a".hashCode());
+            assertTrue((Long) spills.get(0)[2] > 0L);
+            assertEquals(cache.getIfPresent("a"), "foo");
+            List<Object[]> recorded = new ArrayList<Object[]>(listener.events);
+            assertEquals(listener.drain(PersistenceEvent.DISK_READ).size(), 1);
+            assertEquals(recorded.get(0)[0], PersistenceEvent.DISK_READ);
+            assertEquals(recorded.get(0)[1], "a".hashCode());
+            assertEquals(recorded.get(0)[2], spills.get(0)[2]);
+            boolean promoted = false;
+            for (Object[] event : recorded) {
+                promoted |= event[0] == PersistenceEvent.PROMOTION && event[1].equals("a".hashCode());
+            }
+            assertTrue(promoted);
+        } finally {
+            cache.invalidateAll();
+            ((FileSystemPersistingCache<?, ?>) cache).close();
+        }
+    }
+
+    @Test(dataProvider = "builders")
+    public void testInvalidationIsReported(FileSystemCacheBuilder<Object, Object> builder) throws Exception {
+        RecordingListener listener = new RecordingListener();
+        Cache<String, String> cache = builder.persistenceListener(listener).build();
+        try {
+            cache.put("a", "foo");
+            cache.put("b", "bar");
+            listener.events.clear();
+            cache.invalidate("a");
+            List<Object[]> recorded = new ArrayList<Object[]>(listener.events);
+            assertEquals(listener.drain(PersistenceEvent.INVALIDATION).size(), 1);
+            assertEquals(recorded.get(recorded.size() - 1)[0], PersistenceEvent.INVALIDATION);
+            assertEquals(recorded.get(recorded.size() - 1)[1], "a".hashCode());
+            assertEquals(recorded.get(0)[0], PersistenceEvent.DELETION);
+            cache.invalidateAll();
+            List<Object[]> invalidations = listener.drain(PersistenceEvent.INVALIDATION);
+            assertEquals(invalidations.size(), 1);
+            assertEquals(invalidations.get(0)[1], 0);
+        } finally {
+            cache.invalidateAll();
+            ((FileSystemPersistingCache<?, ?>) cache).close();
+        }
+    }
+
+    @Test
+    public void testFailingListenerIsIgnored() throws Exception {
+        Cache<String, String> cache = FileSystemCacheBuilder.newBuilder().maximumSize(1L).persistenceListener(new PersistenceListener() {
+            @Override
+            public void onPersistenceEvent(PersistenceEvent event, int keyHash, long byteSize, long durationNanos) {
+                throw new IllegalStateException();
+            }
+        }).build();
+        try {
+            cache.put("a", "foo");
+            cache.put("b", "bar");
+            assertEquals(cache.getIfPresent("a"), "foo");
+            assertEquals(cache.getIfPresent("b"), "bar");
+        } finally {
+            cache.invalidateAll();
+            ((FileSystemPersistingCache<?, ?>) cache).close();
+        }
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testListenerCannotBeSetTwice() throws Exception {
+        RecordingListener listener = new RecordingListener();
+        FileSystemCacheBuilder.newBuilder().persistenceListener(listener).persistenceListener(listener);
+    }
+}
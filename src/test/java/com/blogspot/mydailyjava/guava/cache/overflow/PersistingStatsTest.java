@@ -0,0 +1,106 @@
+package com.blogspot.mydailyjava.guava.cache.overflow;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class PersistingStatsTest {
+
+    @DataProvider
+    public Object[][] caches() {
+        return new Object[][]{
+                {FileSystemCacheBuilder.newBuilder().maximumSize(1L).<String, String>build(), false},
+                {FileSystemCacheBuilder.newBuilder().maximumSize(1L).segmentedPersistence(1024L * 1024L).<String, String>build(), false},
+                {FileSystemCacheBuilder.newBuilder().maximumSize(1L).offHeapTier(1024L * 1024L).<String, String>build(), true}
+        };
+    }
+
+    @Test(dataProvider = "caches")
+    public void testTiersAreCountedSeparately(Cache<String, String> cache, boolean offHeap) throws Exception {
+        AbstractPersistingCache<String, String> persistingCache = (AbstractPersistingCache<String, String>) cache;
+        try {
+            cache.put("a", "a");
+            cache.put("b", "b");
+            assertEquals(cache.getIfPresent("b"), "b");
+            assertEquals(cache.getIfPresent("a"), "a");
+            assertNull(cache.getIfPresent("c"));
+            PersistingCacheStats stats = persistingCache.persistingStats();
+            assertEquals(stats.heapHitCount(), 1L);
+            assertEquals(stats.persistedHitCount(), 1L);
+            assertEquals(stats.missCount(), 1L);
+            assertEquals(stats.requestCount(), 3L);
+            assertEquals(stats.offHeapHitCount(), offHeap ? 1L : 0L);
+            assertEquals(stats.diskHitCount(), offHeap ? 0L : 1L);
+            assertEquals(stats.promotionCount(), 1L);
+            assertEquals(stats.spillCount(), 2L);
+            assertEquals(stats.rejectedSpillCount(), 0L);
+            assertTrue(stats.bytesWritten() > 0L);
+            assertTrue(stats.bytesRead() > 0L);
+            assertTrue(stats.totalSerializationTime() > 0L);
+            if (!offHeap) {
+                assertEquals(stats.diskReadCount(), 1L);
+                assertEquals(stats.diskWriteCount(), 2L);
+                assertTrue(stats.diskReadLatency(0.99d) > 0L);
+                assertTrue(stats.diskWriteLatency(0.5d) > 0L);
+            }
+        } finally {
+            cache.invalidateAll();
+            persistingCache.close();
+        }
+    }
+
+    @Test
+    public void testRefreshesAreCountedAsLookups() throws Exception {
+        LoadingCache<String, String> cache = FileSystemCacheBuilder.newBuilder().maximumSize(1L).build(new CacheLoader<String, String>() {
+            @Override
+            public String load(String key) throws Exception {
+                return key;
+            }
+        });
+        AbstractPersistingCache<String, String> persistingCache = (AbstractPersistingCache<String, String>) cache;
+        try {
+            cache.put("a", "a");
+            cache.put("b", "b");
+            assertEquals(cache.getIfPresent("b"), "b");
+            cache.refresh("a");
+            cache.refresh("c");
+            PersistingCacheStats stats = persistingCache.persistingStats();
+            assertEquals(stats.heapHitCount(), 1L);
+            assertEquals(stats.persistedHitCount(), 1L);
+            assertEquals(stats.missCount(), 1L);
+            assertEquals(stats.requestCount(), 3L);
+        } finally {
+            cache.invalidateAll();
+            persistingCache.close();
+        }
+    }
+
+    @Test
+    public void testLatencyPercentiles() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 99; i++) {
+            histogram.record(1000L);
+        }
+        histogram.record(1000000L);
+        long[] snapshot = histogram.snapshot();
+        assertEquals(LatencyHistogram.count(snapshot), 100L);
+        assertEquals(LatencyHistogram.percentile(snapshot, 0.5d), 1023L);
+        assertEquals(LatencyHistogram.percentile(snapshot, 0.99d), 1023L);
+        assertEquals(LatencyHistogram.percentile(snapshot, 1.0d), (1L << 20) - 1L);
+        assertEquals(LatencyHistogram.percentile(new long[64], 0.5d), 0L);
+    }
+
+    @Test
+    public void testStripedCounter() throws Exception {
+        StripedCounter counter = new StripedCounter();
+        counter.increment();
+        counter.add(41L);
+        assertEquals(counter.sum(), 42L);
+    }
+}
@@ -0,0 +1,162 @@
+package com.blogspot.mydailyjava.guava.cache.overflow;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.Closeable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class RefreshTest {
+
+    private static final long TIMEOUT = TimeUnit.SECONDS.toMillis(10L);
+
+    private static class VersionedLoader extends CacheLoader<String, String> {
+
+        private final AtomicInteger version = new AtomicInteger();
+        private volatile CountDownLatch gate;
+
+        @Override
+        public String load(String key) throws Exception {
+            CountDownLatch gate = this.gate;
+            if (gate != null) {
+                assertTrue(gate.await(TIMEOUT, TimeUnit.MILLISECONDS));
+            }
+            return key + "-" + version.incrementAndGet();
+        }
+    }
+
+    @DataProvider
+    public Object[][] builders() {
+        return new Object[][]{
+                {FileSystemCacheBuilder.newBuilder().maximumSize(1L)},
+                {FileSystemCacheBuilder.newBuilder().maximumSize(1L).segmentedPersistence(1024L * 1024L)},
+                {FileSystemCacheBuilder.newBuilder().maximumSize(1L).offHeapTier(1024L * 1024L)}
+        };
+    }
+
+    @Test(dataProvider = "builders")
+    public void testRefreshServesPreviousValue(FileSystemCacheBuilder<Object, Object> builder) throws Exception {
+        VersionedLoader loader = new VersionedLoader();
+        LoadingCache<String, String> cache = builder.build(loader);
+        try {
+            assertEquals(cache.get("a"), "a-1");
+            CountDownLatch gate = new CountDownLatch(1);
+            loader.gate = gate;
+            cache.refresh("a");
+            assertEquals(cache.get("a"), "a-1");
+            gate.countDown();
+            awaitValue(cache, "a", "a-2");
+        } finally {
+            cache.invalidateAll();
+            ((Closeable) cache).close();
+        }
+    }
+
+    @Test(dataProvider = "builders")
+    public void testRefreshOfPersistedValue(FileSystemCacheBuilder<Object, Object> builder) throws Exception {
+        VersionedLoader loader = new VersionedLoader();
+        LoadingCache<String, String> cache = builder.build(loader);
+        try {
+            assertEquals(cache.get("a"), "a-1");
+            assertEquals(cache.get("b"), "b-2");
+            cache.refresh("a");
+            awaitValue(cache, "a", "a-3");
+        } finally {
+            cache.invalidateAll();
+            ((Closeable) cache).close();
+        }
+    }
+
+    @Test(dataProvider = "builders")
+    public void testRefreshAfterWriteInMemory(FileSystemCacheBuilder<Object, Object> builder) throws Exception {
+        ManualTicker ticker = new ManualTicker();
+        VersionedLoader loader = new VersionedLoader();
+        LoadingCache<String, String> cache = builder.ticker(ticker).refreshAfterWrite(1L, TimeUnit.MINUTES).build(loader);
+        try {
+            assertEquals(cache.get("a"), "a-1");
+            ticker.advance(2L, TimeUnit.MINUTES);
+            CountDownLatch gate = new CountDownLatch(1);
+            loader.gate = gate;
+            assertEquals(cache.get("a"), "a-1");
+            gate.countDown();
+            awaitValue(cache, "a", "a-2");
+        } finally {
+            cache.invalidateAll();
+            ((Closeable) cache).close();
+        }
+    }
+
+    @Test(dataProvider = "builders")
+    public void testRefreshAfterWriteOfPromotedValue(FileSystemCacheBuilder<Object, Object> builder) throws Exception {
+        ManualTicker ticker = new ManualTicker();
+        VersionedLoader loader = new VersionedLoader();
+        LoadingCache<String, String> cache = builder.ticker(ticker).refreshAfterWrite(1L, TimeUnit.MINUTES).build(loader);
+        try {
+            assertEquals(cache.get("a"), "a-1");
+            assertEquals(cache.get("b"), "b-2");
+            ticker.advance(2L, TimeUnit.MINUTES);
+            CountDownLatch gate = new CountDownLatch(1);
+            loader.gate = gate;
+            assertEquals(cache.get("a"), "a-1");
+            gate.countDown();
+            awaitValue(cache, "a", "a-3");
+        } finally {
+            cache.invalidateAll();
+            ((Closeable) cache).close();
+        }
+    }
+
+    @Test(dataProvider = "builders")
+    public void testNoRefreshOfRecentlyPersistedValue(FileSystemCacheBuilder<Object, Object> builder) throws Exception {
+        ManualTicker ticker = new ManualTicker();
+        VersionedLoader loader = new VersionedLoader();
+        LoadingCache<String, String> cache = builder.ticker(ticker).refreshAfterWrite(1L, TimeUnit.MINUTES).build(loader);
+        try {
+            assertEquals(cache.get("a"), "a-1");
+            assertEquals(cache.get("b"), "b-2");
+            assertEquals(cache.get("a"), "a-1");
+            assertEquals(loader.version.get(), 2);
+        } finally {
+            cache.invalidateAll();
+            ((Closeable) cache).close();
+        }
+    }
+
+    @Test
+    public void testSpecRefreshesPromotedValue() throws Exception {
+        ManualTicker ticker = new ManualTicker();
+        VersionedLoader loader = new VersionedLoader();
+        LoadingCache<String, String> cache = FileSystemCacheBuilder.from("maximumSize=1, refreshAfterWrite=1m").ticker(ticker).build(loader);
+        try {
+            assertEquals(cache.get("a"), "a-1");
+            assertEquals(cache.get("b"), "b-2");
+            ticker.advance(2L, TimeUnit.MINUTES);
+            assertEquals(cache.get("a"), "a-1");
+            awaitValue(cache, "a", "a-3");
+        } finally {
+            cache.invalidateAll();
+            ((Closeable) cache).close();
+        }
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testRefreshingCacheBuilderIsRejected() throws Exception {
+        new FileSystemLoadingPersistingCache<String, String>(CacheBuilder.newBuilder().refreshAfterWrite(1L, TimeUnit.MINUTES), new VersionedLoader());
+    }
+
+    private static void awaitValue(LoadingCache<String, String> cache, String key, String expected) throws Exception {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (!expected.equals(cache.getIfPresent(key)) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+        assertEquals(cache.getIfPresent(key), expected);
+    }
+}
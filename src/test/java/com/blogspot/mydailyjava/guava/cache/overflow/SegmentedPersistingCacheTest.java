@@ -0,0 +1,123 @@
+package com.blogspot.mydailyjava.guava.cache.overflow;
+
+import com.google.common.cache.Cache;
+import com.google.common.io.Files;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.Closeable;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.testng.Assert.*;
+
+public class SegmentedPersistingCacheTest {
+
+    private static final long SEGMENT_SIZE = 1024L;
+
+    private Cache<String, String> segmentedPersistingCache;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        segmentedPersistingCache = FileSystemCacheBuilder.newBuilder()
+                .maximumSize(1L)
+                .segmentedPersistence(SEGMENT_SIZE)
+                .build();
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        segmentedPersistingCache.invalidateAll();
+        ((Closeable) segmentedPersistingCache).close();
+    }
+
+    @Test
+    public void testCachePersistence() throws Exception {
+
+        final int testSize = 100;
+        List<KeyValuePair> keyValuePairs = KeyValuePair.makeTestElements(testSize);
+
+        for (KeyValuePair keyValuePair : keyValuePairs) {
+            segmentedPersistingCache.put(keyValuePair.getKey(), keyValuePair.getValue());
+        }
+
+        assertEquals(segmentedPersistingCache.size(), testSize);
+        assertTrue(countSegmentFiles() < testSize);
+
+        for (KeyValuePair keyValuePair : keyValuePairs) {
+            String valueFromCache = segmentedPersistingCache.getIfPresent(keyValuePair.getKey());
+            assertNotNull(valueFromCache);
+            assertEquals(valueFromCache, keyValuePair.getValue());
+            assertEquals(segmentedPersistingCache.size(), testSize);
+        }
+
+        for (int i = 0; i < testSize; i += 2) {
+            segmentedPersistingCache.invalidate(KeyValuePair.makeKey(i));
+            assertNull(segmentedPersistingCache.getIfPresent(KeyValuePair.makeKey(i)));
+        }
+        assertEquals(segmentedPersistingCache.size(), testSize / 2);
+
+        segmentedPersistingCache.invalidateAll();
+        assertEquals(segmentedPersistingCache.size(), 0);
+        assertEquals(countSegmentFiles(), 0);
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+
+        final int testSize = 500;
+        List<KeyValuePair> keyValuePairs = KeyValuePair.makeTestElements(testSize);
+
+        for (KeyValuePair keyValuePair : keyValuePairs) {
+            segmentedPersistingCache.put(keyValuePair.getKey(), keyValuePair.getValue());
+        }
+        int segmentFiles = countSegmentFiles();
+        assertTrue(segmentFiles > 2);
+
+        for (int i = 0; i < testSize - 1; i++) {
+            segmentedPersistingCache.invalidate(KeyValuePair.makeKey(i));
+        }
+
+        long timeout = System.currentTimeMillis() + 10000L;
+        while (countSegmentFiles() > 2 && System.currentTimeMillis() < timeout) {
+            Thread.sleep(10L);
+        }
+        assertTrue(countSegmentFiles() <= 2);
+        assertEquals(segmentedPersistingCache.size(), 1);
+        assertEquals(segmentedPersistingCache.getIfPresent(KeyValuePair.makeKey(testSize - 1)), KeyValuePair.makeValue(testSize - 1));
+    }
+
+    private int countSegmentFiles() {
+        File directory = ((FileSystemPersistingCache<?, ?>) segmentedPersistingCache).getPersistenceRootDirectory();
+        return directory.listFiles().length;
+    }
+
+    @Test(timeOut = 60000L)
+    public void testReadsTerminateWhileClearing() throws Exception {
+        final SegmentStore<Integer> store = new SegmentStore<Integer>(Files.createTempDir(), SEGMENT_SIZE, false);
+        final AtomicBoolean done = new AtomicBoolean();
+        Thread clearing = new Thread() {
+            @Override
+            public void run() {
+                while (!done.get()) {
+                    store.clear();
+                }
+            }
+        };
+        clearing.start();
+        try {
+            for (int i = 0; i < 10000; i++) {
+                store.put(i % 10, ByteBuffer.wrap(new byte[]{(byte) i}));
+                byte[] value = store.get(i % 10);
+                assertTrue(value == null || value.length == 1);
+            }
+        } finally {
+            done.set(true);
+            clearing.join();
+            store.close();
+        }
+    }
+}
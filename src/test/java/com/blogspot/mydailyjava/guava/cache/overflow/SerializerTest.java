@@ -0,0 +1,82 @@
+package com.blogspot.mydailyjava.guava.cache.overflow;
+
+import com.google.common.cache.Cache;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+public class SerializerTest {
+
+    @DataProvider
+    public Object[][] values() {
+        return new Object[][]{
+                {Serializers.strings(), "fooé"},
+                {Serializers.longs(), Long.MIN_VALUE},
+                {Serializers.integers(), 42},
+                {Serializers.doubles(), Math.PI},
+                {Serializers.javaSerialization(), new ArrayList<String>(Collections.singleton("foo"))},
+                {Serializers.typed(), "foo"},
+                {Serializers.typed(), ""},
+                {Serializers.typed(), 42L},
+                {Serializers.typed(), 42},
+                {Serializers.typed(), 1.5d},
+                {Serializers.typed(), 1.5f},
+                {Serializers.typed(), (short) 42},
+                {Serializers.typed(), (byte) 42},
+                {Serializers.typed(), true},
+                {Serializers.typed(), 'x'},
+                {Serializers.typed(), new ArrayList<String>(Collections.singleton("foo"))}
+        };
+    }
+
+    @Test(dataProvider = "values")
+    @SuppressWarnings("unchecked")
+    public void testRoundTrip(Serializer<Object> serializer, Object value) throws Exception {
+        ByteBuffer serialized = serializer.serialize(value);
+        assertEquals(serializer.deserialize(serialized.duplicate()), value);
+        ByteBuffer direct = ByteBuffer.allocateDirect(serialized.remaining());
+        direct.put(serialized.duplicate()).flip();
+        assertEquals(serializer.deserialize(direct), value);
+    }
+
+    @Test
+    public void testByteArrayRoundTrip() throws Exception {
+        byte[] value = {1, 2, 3};
+        assertEquals(Serializers.byteArrays().deserialize(Serializers.byteArrays().serialize(value)), value);
+        assertEquals((byte[]) Serializers.typed().deserialize(Serializers.typed().serialize(value)), value);
+    }
+
+    @Test
+    public void testTypedSerializationIsCompact() throws Exception {
+        assertEquals(Serializers.typed().serialize("foo").remaining(), 4);
+        assertEquals(Serializers.typed().serialize(42L).remaining(), 9);
+    }
+
+    @Test
+    public void testCacheWithCustomSerializers() throws Exception {
+        Cache<Long, String> cache = FileSystemCacheBuilder.newBuilder()
+                .maximumSize(1L)
+                .keySerializer(Serializers.longs())
+                .valueSerializer(Serializers.strings())
+                .build();
+        try {
+            for (long i = 0; i < 10; i++) {
+                cache.put(i, "value" + i);
+            }
+            for (long i = 0; i < 10; i++) {
+                assertEquals(cache.getIfPresent(i), "value" + i);
+            }
+            assertNull(cache.getIfPresent(10L));
+        } finally {
+            cache.invalidateAll();
+            ((Closeable) cache).close();
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package com.blogspot.mydailyjava.guava.cache.overflow;
+
+import com.google.common.cache.Cache;
+import com.google.common.io.Files;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class SnapshotTest {
+
+    private static final int COUNT = 100, MEMORY = 10;
+
+    private File snapshot;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        snapshot = File.createTempFile("snapshot", ".bin");
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        snapshot.delete();
+    }
+
+    @DataProvider
+    public Object[][] builders() {
+        return new Object[][]{
+                {FileSystemCacheBuilder.newBuilder()},
+                {FileSystemCacheBuilder.newBuilder().segmentedPersistence(64L * 1024L)},
+                {FileSystemCacheBuilder.newBuilder().offHeapTier(1024L * 1024L)},
+                {FileSystemCacheBuilder.newBuilder().persistenceDirectories(Files.createTempDir(), Files.createTempDir())}
+        };
+    }
+
+    @Test(dataProvider = "builders")
+    public void testExportAndImport(FileSystemCacheBuilder<Object, Object> builder) throws Exception {
+        FileSystemPersistingCache<String, String> source = makeSource(FileSystemCacheBuilder.newBuilder());
+        FileSystemPersistingCache<String, String> target = (FileSystemPersistingCache<String, String>) builder.maximumSize(MEMORY).<String, String>build();
+        try {
+            assertEquals(source.exportSnapshot(snapshot), (long) COUNT);
+            assertEquals(target.importSnapshot(snapshot, false), (long) COUNT);
+            assertEquals(target.getUnderlyingCache().size(), 0L);
+            for (int i = 0; i < COUNT; i++) {
+                assertEquals(target.getIfPresent("key" + i), "value" + i);
+            }
+            assertEquals(target.size(), (long) COUNT);
+        } finally {
+            close(source);
+            close(target);
+        }
+    }
+
+    @Test(dataProvider = "builders")
+    public void testExportOfLayout(FileSystemCacheBuilder<Object, Object> builder) throws Exception {
+        FileSystemPersistingCache<String, String> source = makeSource(builder);
+        FileSystemPersistingCache<String, String> target = makeTarget();
+        try {
+            assertEquals(source.exportSnapshot(snapshot), (long) COUNT);
+            assertEquals(target.importSnapshot(snapshot, false), (long) COUNT);
+            for (int i = 0; i < COUNT; i++) {
+                assertEquals(target.getIfPresent("key" + i), "value" + i);
+            }
+        } finally {
+            close(source);
+            close(target);
+        }
+    }
+
+    @Test
+    public void testRestoreMemory() throws Exception {
+        FileSystemPersistingCache<String, String> source = makeSource(FileSystemCacheBuilder.newBuilder());
+        FileSystemPersistingCache<String, String> target = makeTarget();
+        try {
+            source.exportSnapshot(snapshot);
+            assertEquals(target.importSnapshot(snapshot, true), (long) COUNT);
+            assertEquals(target.getUnderlyingCache().size(), (long) MEMORY);
+            for (int i = COUNT - MEMORY; i < COUNT; i++) {
+                assertTrue(target.getUnderlyingCache().asMap().containsKey("key" + i));
+            }
+            assertEquals(target.size(), (long) COUNT);
+        } finally {
+            close(source);
+            close(target);
+        }
+    }
+
+    @Test
+    public void testExistingEntriesAreKept() throws Exception {
+        FileSystemPersistingCache<String, String> source = makeSource(FileSystemCacheBuilder.newBuilder());
+        FileSystemPersistingCache<String, String> target = makeTarget();
+        try {
+            source.exportSnapshot(snapshot);
+            target.put("key0", "other");
+            assertEquals(target.importSnapshot(snapshot, false), (long) COUNT - 1);
+            assertEquals(target.importSnapshot(snapshot, false), 0L);
+            assertEquals(target.getIfPresent("key0"), "other");
+            assertEquals(target.size(), (long) COUNT);
+        } finally {
+            close(source);
+            close(target);
+        }
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testUnknownFormatIsRejected() throws Exception {
+        DataOutputStream outputStream = new DataOutputStream(new FileOutputStream(snapshot));
+        try {
+            outputStream.writeInt(0);
+        } finally {
+            outputStream.close();
+        }
+        FileSystemPersistingCache<String, String> target = makeTarget();
+        try {
+            target.importSnapshot(snapshot, false);
+        } finally {
+            close(target);
+        }
+    }
+
+    private static FileSystemPersistingCache<String, String> makeSource(FileSystemCacheBuilder<Object, Object> builder) {
+        Cache<String, String> cache = builder.maximumSize(MEMORY).build();
+        for (int i = 0; i < COUNT; i++) {
+            cache.put("key" + i, "value" + i);
+        }
+        return (FileSystemPersistingCache<String, String>) cache;
+    }
+
+    private static FileSystemPersistingCache<String, String> makeTarget() {
+        return (FileSystemPersistingCache<String, String>) FileSystemCacheBuilder.newBuilder().maximumSize(COUNT).<String, String>build();
+    }
+
+    private static void close(FileSystemPersistingCache<String, String> cache) throws Exception {
+        cache.invalidateAll();
+        cache.close();
+    }
+}
@@ -0,0 +1,87 @@
+package com.blogspot.mydailyjava.guava.cache.overflow;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+public class SpillAdmissionTest {
+
+    @DataProvider
+    public Object[][] builders() {
+        return new Object[][]{
+                {FileSystemCacheBuilder.newBuilder().maximumSize(1L)},
+                {FileSystemCacheBuilder.newBuilder().maximumSize(1L).segmentedPersistence(1024L * 1024L)},
+                {FileSystemCacheBuilder.newBuilder().maximumSize(1L).offHeapTier(1024L * 1024L)}
+        };
+    }
+
+    @Test(dataProvider = "builders")
+    public void testInfrequentEntryIsRejected(FileSystemCacheBuilder<Object, Object> builder) throws Exception {
+        final List<String> evicted = new ArrayList<String>();
+        Cache<String, String> cache = builder
+                .spillAdmission(2)
+                .removalListener(new RemovalListener<String, String>() {
+                    @Override
+                    public void onRemoval(RemovalNotification<String, String> notification) {
+                        if (notification.getCause() == RemovalCause.SIZE) {
+                            evicted.add(notification.getKey());
+                        }
+                    }
+                }).build();
+        try {
+            cache.put("a", "a");
+            cache.put("b", "b");
+            assertEquals(((AbstractPersistingCache<?, ?>) cache).rejectedSpillCount(), 1L);
+            assertEquals(evicted.size(), 1);
+            assertEquals(evicted.get(0), "a");
+            assertNull(cache.getIfPresent("a"));
+            assertEquals(cache.size(), 1L);
+        } finally {
+            cache.invalidateAll();
+            ((AbstractPersistingCache<?, ?>) cache).close();
+        }
+    }
+
+    @Test(dataProvider = "builders")
+    public void testFrequentEntryIsAdmitted(FileSystemCacheBuilder<Object, Object> builder) throws Exception {
+        Cache<String, String> cache = builder.spillAdmission(2).build();
+        try {
+            cache.put("a", "a");
+            assertEquals(cache.getIfPresent("a"), "a");
+            cache.put("b", "b");
+            assertEquals(((AbstractPersistingCache<?, ?>) cache).rejectedSpillCount(), 0L);
+            assertEquals(cache.getIfPresent("a"), "a");
+            // Note: Promoting the frequent entry evicts the infrequent entry which is rejected
+            assertEquals(((AbstractPersistingCache<?, ?>) cache).rejectedSpillCount(), 1L);
+            assertEquals(cache.size(), 1L);
+        } finally {
+            cache.invalidateAll();
+            ((AbstractPersistingCache<?, ?>) cache).close();
+        }
+    }
+
+    @Test
+    public void testSketchEstimatesFrequency() throws Exception {
+        FrequencySketch sketch = new FrequencySketch(1024L);
+        for (int i = 0; i < 5; i++) {
+            sketch.increment("hot");
+        }
+        sketch.increment("cold");
+        assertEquals(sketch.frequency("hot"), 5);
+        assertEquals(sketch.frequency("cold"), 1);
+        assertEquals(sketch.frequency("absent"), 0);
+        for (int i = 0; i < 100; i++) {
+            sketch.increment("hot");
+        }
+        assertEquals(sketch.frequency("hot"), 15);
+    }
+}
@@ -0,0 +1,126 @@
+package com.blogspot.mydailyjava.guava.cache.overflow;
+
+import com.google.common.cache.Cache;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.Closeable;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+import static org.testng.Assert.*;
+
+public class TwoTierMapTest {
+
+    private static final int COUNT = 20;
+
+    @DataProvider
+    public Object[][] caches() {
+        return new Object[][]{
+                {FileSystemCacheBuilder.newBuilder().maximumSize(2L).<String, String>build()},
+                {FileSystemCacheBuilder.newBuilder().maximumSize(2L).persistedKeyBloomFilter(100, 0.01d).<String, String>build()},
+                {FileSystemCacheBuilder.newBuilder().maximumSize(2L).segmentedPersistence(1024L * 1024L).<String, String>build()},
+                {FileSystemCacheBuilder.newBuilder().maximumSize(2L).offHeapTier(1024L).<String, String>build()},
+                {FileSystemCacheBuilder.newBuilder().maximumSize(2L).writeBehind(COUNT, 1).<String, String>build()}
+        };
+    }
+
+    @Test(dataProvider = "caches")
+    public void testLookupsFallThroughToPersistedEntries(Cache<String, String> cache) throws Exception {
+        try {
+            fill(cache);
+            ConcurrentMap<String, String> map = cache.asMap();
+            for (int i = 0; i < COUNT; i++) {
+                assertTrue(map.containsKey(KeyValuePair.makeKey(i)));
+                assertEquals(map.get(KeyValuePair.makeKey(i)), KeyValuePair.makeValue(i));
+            }
+            assertFalse(map.containsKey(KeyValuePair.makeKey(COUNT)));
+            assertNull(map.get(KeyValuePair.makeKey(COUNT)));
+            assertEquals(map.size(), COUNT);
+            assertFalse(map.isEmpty());
+        } finally {
+            close(cache);
+        }
+    }
+
+    @Test(dataProvider = "caches")
+    public void testIterationSpansAllTiers(Cache<String, String> cache) throws Exception {
+        try {
+            fill(cache);
+            Set<String> keys = new HashSet<String>(cache.asMap().keySet());
+            Map<String, String> entries = new HashMap<String, String>();
+            for (Map.Entry<String, String> entry : cache.asMap().entrySet()) {
+                assertNull(entries.put(entry.getKey(), entry.getValue()));
+            }
+            assertEquals(keys.size(), COUNT);
+            assertEquals(entries.size(), COUNT);
+            for (int i = 0; i < COUNT; i++) {
+                assertTrue(keys.contains(KeyValuePair.makeKey(i)));
+                assertEquals(entries.get(KeyValuePair.makeKey(i)), KeyValuePair.makeValue(i));
+            }
+            assertEquals(cache.size(), COUNT);
+        } finally {
+            close(cache);
+        }
+    }
+
+    @Test(dataProvider = "caches")
+    public void testModificationsOfPersistedEntries(Cache<String, String> cache) throws Exception {
+        try {
+            fill(cache);
+            ConcurrentMap<String, String> map = cache.asMap();
+            assertEquals(map.put(KeyValuePair.makeKey(0), "foo"), KeyValuePair.makeValue(0));
+            assertEquals(map.putIfAbsent(KeyValuePair.makeKey(1), "foo"), KeyValuePair.makeValue(1));
+            assertEquals(map.replace(KeyValuePair.makeKey(2), "bar"), KeyValuePair.makeValue(2));
+            assertTrue(map.replace(KeyValuePair.makeKey(3), KeyValuePair.makeValue(3), "qux"));
+            assertFalse(map.remove(KeyValuePair.makeKey(4), "foo"));
+            assertEquals(map.remove(KeyValuePair.makeKey(5)), KeyValuePair.makeValue(5));
+            assertNull(map.putIfAbsent(KeyValuePair.makeKey(COUNT), "baz"));
+            assertEquals(cache.getIfPresent(KeyValuePair.makeKey(0)), "foo");
+            assertEquals(cache.getIfPresent(KeyValuePair.makeKey(1)), KeyValuePair.makeValue(1));
+            assertEquals(cache.getIfPresent(KeyValuePair.makeKey(2)), "bar");
+            assertEquals(cache.getIfPresent(KeyValuePair.makeKey(3)), "qux");
+            assertEquals(cache.getIfPresent(KeyValuePair.makeKey(4)), KeyValuePair.makeValue(4));
+            assertNull(cache.getIfPresent(KeyValuePair.makeKey(5)));
+            assertEquals(cache.getIfPresent(KeyValuePair.makeKey(COUNT)), "baz");
+            assertEquals(cache.size(), COUNT);
+        } finally {
+            close(cache);
+        }
+    }
+
+    @Test(dataProvider = "caches")
+    public void testRemovalByIterator(Cache<String, String> cache) throws Exception {
+        try {
+            fill(cache);
+            Iterator<String> iterator = cache.asMap().keySet().iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().equals(KeyValuePair.makeKey(0))) {
+                    iterator.remove();
+                }
+            }
+            assertNull(cache.getIfPresent(KeyValuePair.makeKey(0)));
+            assertEquals(cache.size(), COUNT - 1);
+            cache.asMap().clear();
+            assertTrue(cache.asMap().isEmpty());
+            assertEquals(cache.size(), 0L);
+        } finally {
+            close(cache);
+        }
+    }
+
+    private static void fill(Cache<String, String> cache) {
+        for (int i = 0; i < COUNT; i++) {
+            cache.put(KeyValuePair.makeKey(i), KeyValuePair.makeValue(i));
+        }
+    }
+
+    private static void close(Cache<String, String> cache) throws Exception {
+        cache.invalidateAll();
+        ((Closeable) cache).close();
+    }
+}
@@ -0,0 +1,123 @@
+package com.blogspot.mydailyjava.guava.cache.overflow;
+
+import com.google.common.cache.Cache;
+import com.google.common.io.Files;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+
+public class WarmRestartTest {
+
+    private static final int COUNT = 20;
+
+    private File directory;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        directory = Files.createTempDir();
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        Cache<String, String> cache = makeCache("file");
+        cache.invalidateAll();
+        ((Closeable) cache).close();
+        directory.delete();
+    }
+
+    private Cache<String, String> makeCache(String layout) {
+        FileSystemCacheBuilder<Object, Object> builder = FileSystemCacheBuilder.newBuilder()
+                .maximumSize(2L)
+                .persistenceDirectory(directory)
+                .warmRestart()
+                .persistOnClose();
+        if (layout.equals("segment")) {
+            builder.segmentedPersistence(64L * 1024L);
+        } else if (layout.equals("offHeap")) {
+            builder.offHeapTier(1024L * 1024L);
+        }
+        return builder.build();
+    }
+
+    @DataProvider
+    public Object[][] layouts() {
+        return new Object[][]{{"file"}, {"segment"}, {"offHeap"}};
+    }
+
+    @Test(dataProvider = "layouts")
+    public void testWarmRestart(String layout) throws Exception {
+        Cache<String, String> cache = makeCache(layout);
+        for (int i = 0; i < COUNT; i++) {
+            cache.put(KeyValuePair.makeKey(i), KeyValuePair.makeValue(i));
+        }
+        cache.invalidate(KeyValuePair.makeKey(0));
+        ((Closeable) cache).close();
+        Cache<String, String> reopened = makeCache(layout);
+        try {
+            assertEquals(reopened.size(), COUNT - 1);
+            assertNull(reopened.getIfPresent(KeyValuePair.makeKey(0)));
+            for (int i = 1; i < COUNT; i++) {
+                assertEquals(reopened.getIfPresent(KeyValuePair.makeKey(i)), KeyValuePair.makeValue(i));
+            }
+        } finally {
+            reopened.invalidateAll();
+            ((Closeable) reopened).close();
+        }
+    }
+
+    @Test
+    public void testDamagedFilesAreDiscarded() throws Exception {
+        Cache<String, String> cache = makeCache("file");
+        for (int i = 0; i < COUNT; i++) {
+            cache.put(KeyValuePair.makeKey(i), KeyValuePair.makeValue(i));
+        }
+        ((Closeable) cache).close();
+        File partial = new File(directory, "write-123.tmp");
+        Files.write(new byte[]{1, 2, 3}, partial);
+        File damaged = ((FileSystemPersistingCache<String, String>) cache).pathToFileFor(KeyValuePair.makeKey(1));
+        RandomAccessFile randomAccessFile = new RandomAccessFile(damaged, "rw");
+        try {
+            randomAccessFile.seek(randomAccessFile.length() - 1L);
+            randomAccessFile.write(0);
+        } finally {
+            randomAccessFile.close();
+        }
+        Cache<String, String> reopened = makeCache("file");
+        try {
+            assertFalse(partial.exists());
+            assertEquals(reopened.size(), COUNT);
+            assertNull(reopened.getIfPresent(KeyValuePair.makeKey(1)));
+            assertEquals(reopened.getIfPresent(KeyValuePair.makeKey(2)), KeyValuePair.makeValue(2));
+        } finally {
+            reopened.invalidateAll();
+            ((Closeable) reopened).close();
+        }
+    }
+
+    @Test
+    public void testSegmentsWithoutManifestAreDiscarded() throws Exception {
+        Cache<String, String> cache = makeCache("segment");
+        for (int i = 0; i < COUNT; i++) {
+            cache.put(KeyValuePair.makeKey(i), KeyValuePair.makeValue(i));
+        }
+        // Note: The cache is not closed which resembles a crash
+        Cache<String, String> reopened = makeCache("segment");
+        try {
+            assertEquals(reopened.size(), 0L);
+            assertNull(reopened.getIfPresent(KeyValuePair.makeKey(COUNT - 1)));
+        } finally {
+            reopened.invalidateAll();
+            ((Closeable) reopened).close();
+            ((Closeable) cache).close();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.blogspot.mydailyjava.guava.cache.overflow;
+
+import com.google.common.cache.Cache;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class WriteBehindTest {
+
+    private static final long TIMEOUT = 10000L;
+
+    private static class FailingWriteBehindQueue extends WriteBehindQueue<String, String> {
+
+        private final AtomicInteger failures;
+        private final ConcurrentMap<String, String> persisted = new ConcurrentHashMap<String, String>();
+        private final ConcurrentMap<String, String> discarded = new ConcurrentHashMap<String, String>();
+
+        private FailingWriteBehindQueue(int failures) {
+            super(8, 1);
+            this.failures = new AtomicInteger(failures);
+        }
+
+        @Override
+        protected void persist(Map<String, String> values) throws Exception {
+            if (failures.getAndDecrement() > 0) {
+                throw new IOException("Disk failure");
+            }
+            persisted.putAll(values);
+        }
+
+        @Override
+        protected boolean isPersisted(String key) {
+            return persisted.containsKey(key);
+        }
+
+        @Override
+        protected void discard(Map<String, String> values) {
+            discarded.putAll(values);
+        }
+    }
+
+    @DataProvider
+    public Object[][] caches() {
+        return new Object[][]{
+                {FileSystemCacheBuilder.newBuilder().maximumSize(1L).writeBehind(8, 2).<String, String>build()},
+                {FileSystemCacheBuilder.newBuilder().maximumSize(1L).writeBehind(8, 2).segmentedPersistence(1024L).<String, String>build()}
+        };
+    }
+
+    @Test(dataProvider = "caches")
+    public void testWriteBehind(Cache<String, String> cache) throws Exception {
+        try {
+            final int testSize = 100;
+            List<KeyValuePair> keyValuePairs = KeyValuePair.makeTestElements(testSize);
+
+            for (KeyValuePair keyValuePair : keyValuePairs) {
+                cache.put(keyValuePair.getKey(), keyValuePair.getValue());
+                assertEquals(cache.getIfPresent(keyValuePair.getKey()), keyValuePair.getValue());
+            }
+
+            for (KeyValuePair keyValuePair : keyValuePairs) {
+                assertEquals(cache.getIfPresent(keyValuePair.getKey()), keyValuePair.getValue());
+            }
+
+            for (int i = 0; i < testSize; i += 2) {
+                cache.invalidate(KeyValuePair.makeKey(i));
+                assertNull(cache.getIfPresent(KeyValuePair.makeKey(i)));
+            }
+
+            // Note: An entry is counted twice while it is written to disk but not yet removed from the queue
+            long timeout = System.currentTimeMillis() + 10000L;
+            while (cache.size() != testSize / 2 && System.currentTimeMillis() < timeout) {
+                Thread.sleep(10L);
+            }
+            assertEquals(cache.size(), testSize / 2);
+            for (int i = 1; i < testSize; i += 2) {
+                assertEquals(cache.getIfPresent(KeyValuePair.makeKey(i)), KeyValuePair.makeValue(i));
+            }
+        } finally {
+            cache.invalidateAll();
+            ((Closeable) cache).close();
+        }
+    }
+
+    @Test
+    public void testFailedWriteIsRetried() throws Exception {
+        FailingWriteBehindQueue queue = new FailingWriteBehindQueue(1);
+        try {
+            assertTrue(queue.enqueue("a", "b"));
+            long timeout = System.currentTimeMillis() + TIMEOUT;
+            while (queue.size() > 0 && System.currentTimeMillis() < timeout) {
+                assertTrue(queue.persisted.containsKey("a") || "b".equals(queue.peek("a")));
+                Thread.sleep(10L);
+            }
+            assertEquals(queue.persisted.get("a"), "b");
+            assertTrue(queue.discarded.isEmpty());
+        } finally {
+            queue.close();
+        }
+    }
+
+    @Test
+    public void testPersistentlyFailedWriteIsDiscarded() throws Exception {
+        FailingWriteBehindQueue queue = new FailingWriteBehindQueue(Integer.MAX_VALUE);
+        try {
+            assertTrue(queue.enqueue("a", "b"));
+            long timeout = System.currentTimeMillis() + TIMEOUT;
+            while (queue.discarded.isEmpty() && System.currentTimeMillis() < timeout) {
+                Thread.sleep(10L);
+            }
+            assertEquals(queue.discarded.get("a"), "b");
+            assertNull(queue.peek("a"));
+            assertEquals(queue.size(), 0);
+            assertTrue(queue.persisted.isEmpty());
+        } finally {
+            queue.close();
+        }
+    }
+}